@@ -0,0 +1,221 @@
+package clac.creole.scope;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * Runs the Scoper heuristics directly over a ScoperCache file, without
+ * GATE documents, and writes one offset record per scope:
+ * <pre>
+ *   document  triggerID  triggerStart  triggerEnd  scopeStart  scopeEnd
+ *   heuristic  type  minorType  priorPolarity  sentimentScore
+ * </pre>
+ * separated by tabs. Missing values are written as "-".
+ *
+ * Usage:
+ * <pre>
+ *   java clac.creole.scope.CachedScoper cacheFile outputFile [param=value ...]
+ * </pre>
+ * where the parameters are the Scoper runtime parameters enableNegatorScope,
+ * enableAdjScope, enableNomScope, enableGrammarScope, filterPredicates and
+ * useDependencyScope, and journal=file. With a journal (see ScoperJournal),
+ * each document is recorded once its records are written, with the offset
+ * of the output file after them as location. A run restarted with the same
+ * journal and output file skips the recorded documents, and appends to the
+ * output after the last recorded offset. The output file is forced to disk
+ * before each sync of the journal; a restart fails if the output file is
+ * shorter than the last recorded offset (it was replaced or lost data).
+ */
+public class CachedScoper {
+
+    private final ScopeHeuristics heuristics;
+    private final boolean filterPredicates;
+
+    public CachedScoper(ScopeHeuristics heuristics, boolean filterPredicates) {
+        this.heuristics = heuristics;
+        this.filterPredicates = filterPredicates;
+    }
+
+    /** Scope every document of the cache, writing offset records */
+    public void run(ScoperCache.Reader cache, Writer out) throws IOException {
+        run(cache, out, null, null, null);
+    }
+
+    /** Scope the documents of the cache which are not completed in a
+     *  journal, recording each of them once its records are written.
+     * @param outputName name of the output in journal locations
+     * @param output     the channel of the output file, whose position is
+     *                   written to the journal after flushing out */
+    public void run(ScoperCache.Reader cache, Writer out, ScoperJournal journal,
+                    String outputName, FileChannel output) throws IOException {
+        for (String name : cache.getDocumentNames()) {
+            if (journal != null && journal.isCompleted(name)) continue;
+            int triggers = 0;
+            int scopes = 0;
+            for (ScoperSentence s : cache.getDocument(name)) {
+                triggers += s.getTriggerCount();
+                scopes += scopeSentence(name, s, out);
+            }
+            if (journal != null) {
+                out.flush();
+                journal.append(name, location(outputName, output.position()),
+                               triggers, scopes);
+            }
+        }
+    }
+
+    /** Scope the triggers of a sentence, keeping the first scope found
+     * @return the number of scopes written */
+    public int scopeSentence(String name, ScoperSentence s, Writer out)
+            throws IOException {
+        int scopes = 0;
+        for (int g = 0; g < s.getTriggerCount(); g++) {
+            if (filterPredicates && !Arrays.asList(Scoper.PREDICATE_ALL).contains(
+                    s.getTriggerFeature(g, typeFeature()))) {
+                continue;
+            }
+            int token = s.getTriggerToken(g);
+            if (token < 0) continue;
+            final long[] scope = new long[2];
+            final String[] heuristic = new String[1];
+            heuristics.scope(s, token, new ScopeHeuristics.ScopeSink() {
+                public void scope(long startOffset, long endOffset, String h) {
+                    if (heuristic[0] != null) return;
+                    scope[0] = startOffset;
+                    scope[1] = endOffset;
+                    heuristic[0] = h;
+                }
+            }, true);
+            if (heuristic[0] == null) continue;
+            StringBuilder sb = new StringBuilder();
+            sb.append(name).append('\t').append(s.getTriggerId(g));
+            sb.append('\t').append(s.getTriggerStart(g)).append('\t').append(s.getTriggerEnd(g));
+            sb.append('\t').append(scope[0]).append('\t').append(scope[1]);
+            sb.append('\t').append(heuristic[0]);
+            for (int f = 0; f < Scoper.SCOPE_INHERITED_FEATURES.length; f++) {
+                String value = s.getTriggerFeature(g, f);
+                sb.append('\t').append(value == null ? "-" : value);
+            }
+            sb.append('\n');
+            out.write(sb.toString());
+            scopes++;
+        }
+        return scopes;
+    }
+
+    /** Journal location of an output file offset */
+    private static String location(String outputName, long offset) {
+        return outputName + "@" + offset;
+    }
+
+    /** The offset of an output file after the last document recorded in a
+     *  journal, or 0 */
+    static long resumeOffset(ScoperJournal journal, String outputName) {
+        long offset = 0L;
+        String prefix = location(outputName, 0L);
+        prefix = prefix.substring(0, prefix.length() - 1);
+        for (ScoperJournal.Entry entry : journal.getEntries()) {
+            if (!entry.location.startsWith(prefix)) continue;
+            try {
+                offset = Math.max(offset, Long.parseLong(
+                        entry.location.substring(prefix.length())));
+            } catch (NumberFormatException e) {
+                // Not one of our locations
+            }
+        }
+        return offset;
+    }
+
+    private static int typeFeature() {
+        return Arrays.asList(Scoper.SCOPE_INHERITED_FEATURES)
+                     .indexOf(Scoper.TRIGGER_TYPE_FEATURE);
+    }
+
+    /** The Scoper runtime parameters, with the same defaults as the Scoper PR */
+    static Map<String, Boolean> defaultParameters() {
+        Map<String, Boolean> params = new HashMap<String, Boolean>();
+        params.put("enableNegatorScope", true);
+        params.put("enableAdjScope", true);
+        params.put("enableNomScope", false);
+        params.put("enableGrammarScope", false);
+        params.put("filterPredicates", false);
+        params.put("useDependencyScope", false);
+        return params;
+    }
+
+    /** Set a parameter from a param=value argument.
+     * @return false if the argument is not a parameter */
+    static boolean parseParameter(Map<String, Boolean> params, String arg) {
+        String[] kv = arg.split("=", 2);
+        if (kv.length != 2 || !params.containsKey(kv[0])) return false;
+        params.put(kv[0], Boolean.valueOf(kv[1]));
+        return true;
+    }
+
+    /** A CachedScoper for the given parameters */
+    static CachedScoper create(Map<String, Boolean> params) {
+        ScoperConfiguration config = new ScoperConfiguration(null,
+                params.get("enableNegatorScope"), params.get("enableAdjScope"),
+                params.get("enableNomScope"), params.get("enableGrammarScope"),
+                params.get("filterPredicates"));
+        ScopeHeuristics heuristics = new ScopeHeuristics(config,
+                params.get("useDependencyScope") ? ScopeResolver.DEPENDENCY
+                                                 : ScopeResolver.PHRASE);
+        return new CachedScoper(heuristics, params.get("filterPredicates"));
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: CachedScoper cacheFile outputFile [param=value ...]");
+            System.exit(1);
+        }
+        Map<String, Boolean> params = defaultParameters();
+        File journalFile = null;
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].startsWith("journal=")) {
+                journalFile = new File(args[i].substring("journal=".length()));
+                continue;
+            }
+            if (!parseParameter(params, args[i])) {
+                System.err.println("Unknown parameter: " + args[i]);
+                System.exit(1);
+            }
+        }
+        CachedScoper scoper = create(params);
+
+        ScoperCache.Reader cache = new ScoperCache.Reader(new File(args[0]));
+        ScoperJournal journal = journalFile == null ? null : new ScoperJournal(journalFile);
+        File outputFile = new File(args[1]);
+        long offset = journal == null ? 0L : resumeOffset(journal, outputFile.getPath());
+        if (outputFile.length() < offset) {
+            cache.close();
+            journal.close();
+            throw new IOException("Cannot resume " + outputFile + ": the journal "
+                    + journalFile + " records " + offset + " bytes of output, the file has "
+                    + outputFile.length());
+        }
+        FileOutputStream output = new FileOutputStream(outputFile, journal != null);
+        if (journal != null) {
+            // Drop the records written after the last recorded document
+            output.getChannel().truncate(offset);
+            journal.syncWith(output.getChannel());
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(output, "UTF-8"));
+        try {
+            scoper.run(cache, out, journal, outputFile.getPath(), output.getChannel());
+        } finally {
+            try {
+                out.flush();
+            } finally {
+                try {
+                    // Forces the output to disk along with the last records
+                    if (journal != null) journal.close();
+                } finally {
+                    out.close();
+                    cache.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package clac.creole.scope;
+
+/**
+ * Resolves scopes from the dependency graph alone, without syntax trees.
+ *
+ * Each token is attached to its first governor (see ScoperSentence.getTokenHead),
+ * and the yield of a token is the span of its subtree. Where the syntax
+ * tree resolver looks for the smallest phrase covering the tokens, this
+ * resolver takes the yield of their lowest common head. Where it looks for
+ * the largest phrase which excludes the trigger, this resolver climbs from
+ * that head as long as the trigger stays outside of the yield, then
+ * removes the subtree of the trigger and keeps the contiguous tokens
+ * around the selected ones. Tokens which are not attached to the graph,
+ * such as the prepositions of collapsed dependencies, are kept when they
+ * lie between tokens of the scope.
+ * Subtrees are looked up in the preorder layout of ScoperSentence, so
+ * that the cost of a scope is linear in the number of tokens it selects
+ * and the depth of the graph, rather than in the sentence length;
+ * malformed graphs with cycles are walked token by token instead.
+ */
+public class DependencyScopeResolver implements ScopeResolver {
+
+    public ScopeHeuristics.Candidate resolve(ScoperSentence s, int[] tokens,
+                                             String heuristic) {
+        if (tokens.length == 0) return null;
+        int head = commonHead(s, tokens);
+        if (s.isHeadForest()) {
+            // Subtrees are contiguous in the preorder layout
+            if (head >= 0) {
+                return span(s, s.getSubtreeFirst(head), s.getSubtreeLast(head), heuristic);
+            }
+            int first = Integer.MAX_VALUE, last = -1;
+            for (int t : tokens) {
+                first = Math.min(first, s.getSubtreeFirst(t));
+                last = Math.max(last, s.getSubtreeLast(t));
+            }
+            return span(s, first, last, heuristic);
+        }
+        boolean[] yield = new boolean[s.getTokenCount()];
+        if (head >= 0) {
+            addSubtree(s, head, yield);
+        } else {
+            // Tokens in different trees (fragments): use all their subtrees
+            for (int t : tokens) addSubtree(s, t, yield);
+        }
+        int first = -1, last = -1;
+        for (int t = 0; t < yield.length; t++) {
+            if (!yield[t]) continue;
+            if (first < 0) first = t;
+            last = t;
+        }
+        return span(s, first, last, heuristic);
+    }
+
+    public ScopeHeuristics.Candidate resolve(ScoperSentence s, int trigger, int[] tokens,
+                                             String heuristic) {
+        return resolve(s, trigger, tokens, heuristic, 0L);
+    }
+
+    public ScopeHeuristics.Candidate resolve(ScoperSentence s, int trigger, int[] tokens,
+                                             String heuristic, long deadline) {
+        int head = commonHead(s, tokens);
+        if (head < 0 || head == trigger) return fallback(s, tokens, heuristic, deadline);
+        // Climb while the yield excludes the trigger
+        int parent = s.getTokenHead(head);
+        int steps = 0;
+        while (parent >= 0 && !covers(s, parent, trigger) && steps++ <= s.getTokenCount()) {
+            head = parent;
+            parent = s.getTokenHead(head);
+        }
+        // Contiguous tokens of the yield around the selected tokens
+        int first = tokens[0], last = tokens[0];
+        for (int t : tokens) {
+            first = Math.min(first, t);
+            last = Math.max(last, t);
+        }
+        if (s.isHeadForest()) {
+            for (int t = first; t <= last; t++) {
+                if (!inYield(s, head, trigger, t)) return fallback(s, tokens, heuristic, deadline);
+            }
+            while (first > 0 && inYield(s, head, trigger, first - 1)) first--;
+            while (last < s.getTokenCount() - 1 && inYield(s, head, trigger, last + 1)) last++;
+            return span(s, first, last, heuristic);
+        }
+        boolean[] yield = new boolean[s.getTokenCount()];
+        addSubtree(s, head, yield);
+        addUnattached(s, yield);
+        boolean[] excluded = new boolean[yield.length];
+        addSubtree(s, trigger, excluded);
+        for (int t = 0; t < yield.length; t++) {
+            if (excluded[t]) yield[t] = false;
+        }
+        for (int t = first; t <= last; t++) {
+            if (!yield[t]) return fallback(s, tokens, heuristic, deadline);
+        }
+        while (first > 0 && yield[first - 1]) first--;
+        while (last < yield.length - 1 && yield[last + 1]) last++;
+        return span(s, first, last, heuristic);
+    }
+
+    /** resolve(s, tokens, heuristic), unless the deadline has passed */
+    private ScopeHeuristics.Candidate fallback(ScoperSentence s, int[] tokens,
+                                               String heuristic, long deadline) {
+        if (deadline != 0L && System.nanoTime() > deadline) return null;
+        return resolve(s, tokens, heuristic);
+    }
+
+    /** The lowest token dominating all tokens, or -1 */
+    static int commonHead(ScoperSentence s, int[] tokens) {
+        if (tokens.length == 0) return -1;
+        if (s.isHeadForest()) {
+            // The lowest head of tokens[0] whose subtree contains all tokens
+            for (int head = tokens[0]; head >= 0; head = s.getTokenHead(head)) {
+                boolean all = true;
+                for (int t : tokens) {
+                    if (!s.inSubtree(head, t)) {
+                        all = false;
+                        break;
+                    }
+                }
+                if (all) return head;
+            }
+            return -1;
+        }
+        int steps = 0;
+        for (int head = tokens[0]; head >= 0 && steps <= s.getTokenCount();
+                head = s.getTokenHead(head), steps++) {
+            boolean all = true;
+            for (int t : tokens) {
+                if (!dominates(s, head, t)) {
+                    all = false;
+                    break;
+                }
+            }
+            if (all) return head;
+        }
+        return -1;
+    }
+
+    /** Whether a token is the token itself or one of its heads */
+    static boolean dominates(ScoperSentence s, int head, int token) {
+        if (s.isHeadForest()) return s.inSubtree(head, token);
+        int steps = 0;
+        // Guard against cycles in malformed graphs
+        for (int t = token; t >= 0 && steps <= s.getTokenCount();
+                t = s.getTokenHead(t), steps++) {
+            if (t == head) return true;
+        }
+        return false;
+    }
+
+    /** Whether the yield of a head covers a token */
+    private static boolean covers(ScoperSentence s, int head, int token) {
+        if (s.isHeadForest()) {
+            return s.getSubtreeFirst(head) <= token && token <= s.getSubtreeLast(head);
+        }
+        boolean before = false, after = false;
+        for (int t = 0; t < s.getTokenCount(); t++) {
+            if (!dominates(s, head, t)) continue;
+            if (t <= token) before = true;
+            if (t >= token) after = true;
+        }
+        return before && after;
+    }
+
+    private static void addSubtree(ScoperSentence s, int head, boolean[] yield) {
+        if (s.isHeadForest()) {
+            for (int i = 0; i < s.getSubtreeSize(head); i++) {
+                yield[s.getSubtreeToken(head, i)] = true;
+            }
+            return;
+        }
+        for (int t = 0; t < yield.length; t++) {
+            if (!yield[t] && dominates(s, head, t)) yield[t] = true;
+        }
+    }
+
+    /** Whether a token is in the yield of a head, with the unattached
+     *  tokens between its tokens (see addUnattached) and without the
+     *  subtree of the trigger. Only for head forests. */
+    private static boolean inYield(ScoperSentence s, int head, int trigger, int t) {
+        if (s.inSubtree(trigger, t)) return false;
+        if (s.inSubtree(head, t)) return true;
+        // Tokens of a subtree of several tokens are all attached, so an
+        // unattached token lies between two of them iff its nearest
+        // attached tokens are in the subtree
+        if (s.isAttached(t)) return false;
+        int before = s.getAttachedBefore(t), after = s.getAttachedAfter(t);
+        return before >= 0 && after >= 0
+                && s.inSubtree(head, before) && s.inSubtree(head, after);
+    }
+
+    /** Add the unattached tokens which lie between tokens of the yield */
+    private static void addUnattached(ScoperSentence s, boolean[] yield) {
+        boolean[] attached = new boolean[yield.length];
+        for (int t = 0; t < yield.length; t++) {
+            int head = s.getTokenHead(t);
+            if (head >= 0) {
+                attached[t] = true;
+                attached[head] = true;
+            }
+        }
+        int previous = -1;
+        for (int t = 0; t < yield.length; t++) {
+            if (!yield[t]) continue;
+            if (previous >= 0) {
+                boolean gap = true;
+                for (int u = previous + 1; u < t; u++) {
+                    if (attached[u]) gap = false;
+                }
+                if (gap) {
+                    for (int u = previous + 1; u < t; u++) yield[u] = true;
+                }
+            }
+            previous = t;
+        }
+    }
+
+    private static ScopeHeuristics.Candidate span(ScoperSentence s, int first, int last,
+                                                  String heuristic) {
+        if (first < 0) return null;
+        return new ScopeHeuristics.Candidate(s.getTokenStart(first), s.getTokenEnd(last),
+                                             heuristic);
+    }
+}
@@ -0,0 +1,29 @@
+package clac.creole.scope;
+
+/**
+ * Resolves scopes to syntax tree nodes (see ScopeHeuristics.getPhrase).
+ */
+public class PhraseScopeResolver implements ScopeResolver {
+
+    public ScopeHeuristics.Candidate resolve(ScoperSentence s, int[] tokens,
+                                             String heuristic) {
+        return node(s, ScopeHeuristics.getPhrase(s, tokens), heuristic);
+    }
+
+    public ScopeHeuristics.Candidate resolve(ScoperSentence s, int trigger, int[] tokens,
+                                             String heuristic) {
+        return resolve(s, trigger, tokens, heuristic, 0L);
+    }
+
+    public ScopeHeuristics.Candidate resolve(ScoperSentence s, int trigger, int[] tokens,
+                                             String heuristic, long deadline) {
+        return node(s, ScopeHeuristics.getPhrase(s, trigger, tokens, deadline), heuristic);
+    }
+
+    private static ScopeHeuristics.Candidate node(ScoperSentence s, int node,
+                                                  String heuristic) {
+        if (node < 0) return null;
+        return new ScopeHeuristics.Candidate(s.getNodeStart(node), s.getNodeEnd(node),
+                                             heuristic);
+    }
+}
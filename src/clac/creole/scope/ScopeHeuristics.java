@@ -0,0 +1,847 @@
+package clac.creole.scope;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The scope heuristics of Scoper, applied to a ScoperSentence.
+ *
+ * Heuristics are tried in a fixed order, and every scope they find is
+ * reported to a ScopeSink. The sink decides what to do with it: Scoper
+ * keeps the first scope found for a trigger (and warns about the others).
+ * Several configurations can be evaluated together, in which case each
+ * heuristic is applied at most once per trigger and its result is shared
+ * by all configurations. Heuristics which cannot apply to the POS and
+ * dependencies of a trigger are skipped.
+ * Instances hold no state besides their configuration, so a single
+ * instance can be used by several threads.
+ */
+public class ScopeHeuristics {
+
+    /** Receives the scopes found by the heuristics */
+    public interface ScopeSink {
+        void scope(long startOffset, long endOffset, String heuristic);
+    }
+
+    /** A scope found by a heuristic */
+    public static class Candidate {
+        public final long startOffset;
+        public final long endOffset;
+        public final String heuristic;
+
+        public Candidate(long startOffset, long endOffset, String heuristic) {
+            this.startOffset = startOffset;
+            this.endOffset = endOffset;
+            this.heuristic = heuristic;
+        }
+    }
+
+    // Heuristics
+    public static final int PREPC      = 0;
+    public static final int CONJ       = 1;
+    public static final int AUX        = 2;
+    public static final int COMP       = 3;
+    public static final int SUBJ       = 4;
+    public static final int NOMINALOF  = 5;
+    public static final int PRONOMSUBJ = 6;
+    public static final int NEG        = 7;
+    public static final int MOD        = 8;
+    public static final int COPSUBJ    = 9;
+    public static final int DET        = 10;
+    public static final int PRENOMMOD  = 11;
+    public static final int GRAMMAR    = 12;
+    public static final int HEURISTIC_COUNT = 13;
+
+    /** Names of the heuristics, for tracing (see ScoperEvents) */
+    public static final String[] HEURISTIC_NAMES =
+            { "prepc", "conj", "aux", "comp", "subj", "nominalof", "pronomsubj",
+              "neg", "mod", "copsubj", "det", "prenommod", "grammarscope" };
+
+    /** The order in which heuristics are tried, as { group, heuristic } */
+    private static final int[][] STEPS = {
+        // Prepositions:
+        { ScoperConfiguration.GROUP_NEGATOR, PREPC },
+        // Conjunctions:
+        { ScoperConfiguration.GROUP_NEGATOR, CONJ },
+        // Auxiliary:
+        { ScoperConfiguration.GROUP_NEGATOR, AUX },
+        // Verbs:
+        { ScoperConfiguration.GROUP_NEGATOR, COMP },
+        { ScoperConfiguration.GROUP_NEGATOR, SUBJ },
+        // Nouns
+        { ScoperConfiguration.GROUP_NEGATOR, NOMINALOF },
+        { ScoperConfiguration.GROUP_NEGATOR, PRONOMSUBJ },
+        // Adjectives, Adverbs, Determiners
+        { ScoperConfiguration.GROUP_NEGATOR, NEG },
+        { ScoperConfiguration.GROUP_NEGATOR, MOD },
+        { ScoperConfiguration.GROUP_NEGATOR, COPSUBJ },
+        // Determiners
+        { ScoperConfiguration.GROUP_NEGATOR, DET },
+        // Adjectives
+        { ScoperConfiguration.GROUP_ADJ, MOD },
+        { ScoperConfiguration.GROUP_ADJ, COPSUBJ },
+        // Nominals
+        { ScoperConfiguration.GROUP_NOM, PRENOMMOD },
+        // GrammarScope
+        { ScoperConfiguration.GROUP_GRAMMAR, GRAMMAR },
+    };
+
+    private final ScoperConfiguration config;
+    private final ScopeResolver resolver;
+
+    public ScopeHeuristics(boolean enableNegatorScope, boolean enableAdjScope,
+                           boolean enableNomScope, boolean enableGrammarScope) {
+        this(new ScoperConfiguration(null, enableNegatorScope, enableAdjScope,
+                                     enableNomScope, enableGrammarScope, false));
+    }
+
+    public ScopeHeuristics(ScoperConfiguration config) {
+        this(config, ScopeResolver.PHRASE);
+    }
+
+    public ScopeHeuristics(ScoperConfiguration config, ScopeResolver resolver) {
+        this.config = config;
+        this.resolver = resolver;
+    }
+
+    /** Apply all enabled heuristics to the trigger of a token.
+     * @param s     the sentence
+     * @param token index of the token coextensive with the trigger
+     * @param sink  receives the scopes, in heuristic order
+     */
+    public void scope(ScoperSentence s, int token, ScopeSink sink) {
+        scope(s, token, sink, false);
+    }
+
+    /** As above; if firstOnly is set, only the first scope is reported, and
+     *  the heuristics which cannot come first are not applied. */
+    public void scope(ScoperSentence s, int token, ScopeSink sink, boolean firstOnly) {
+        scope(s, token, null, resolver, Collections.singletonList(config),
+              Collections.singletonList(sink), firstOnly);
+    }
+
+    /** Apply the heuristics of several configurations to the trigger of a
+     *  token. Each heuristic is applied at most once, and its scope is
+     *  reported to the sink of every configuration enabling it.
+     * @param s       the sentence
+     * @param token   index of the token coextensive with the trigger
+     * @param configs the configurations
+     * @param sinks   receives the scopes of each configuration (null to skip
+     *                a configuration), in heuristic order
+     */
+    public static void scope(ScoperSentence s, int token,
+            List<ScoperConfiguration> configs, List<ScopeSink> sinks) {
+        scope(s, token, null, ScopeResolver.PHRASE, configs, sinks, false);
+    }
+
+    /** As above, with the id of the trigger reported in heuristic events,
+     *  and the resolver turning the tokens found by heuristics into spans */
+    public static void scope(ScoperSentence s, int token, Object triggerId,
+            ScopeResolver resolver, List<ScoperConfiguration> configs,
+            List<ScopeSink> sinks) {
+        scope(s, token, triggerId, resolver, configs, sinks, false);
+    }
+
+    /** As above. Only the heuristics which apply to the POS and dependencies
+     *  of the trigger are tried (see Dispatch). If firstOnly is set, each
+     *  sink only receives the first scope of its configuration: heuristics
+     *  are tried in the order of their hit rate, and those which come after
+     *  a scope already found are skipped. The first scope is the same in
+     *  both modes. */
+    public static void scope(ScoperSentence s, int token, Object triggerId,
+            ScopeResolver resolver, List<ScoperConfiguration> configs,
+            List<ScopeSink> sinks, boolean firstOnly) {
+        scope(s, token, triggerId, resolver, configs, sinks, firstOnly, 0L);
+    }
+
+    /** As above. Once System.nanoTime() passes the deadline (0 for none),
+     *  the grammarscope search stops and the resolver no longer falls back
+     *  to the phrase including the trigger (see ScopeResolver), so those
+     *  heuristics find no scope.
+     * @return false if a heuristic found no scope after the deadline, i.e.
+     *         may have been cut short by it */
+    public static boolean scope(ScoperSentence s, int token, Object triggerId,
+            ScopeResolver resolver, List<ScoperConfiguration> configs,
+            List<ScopeSink> sinks, boolean firstOnly, long deadline) {
+        Trigger trigger = new Trigger(s, token, triggerId, resolver, deadline);
+        Dispatch dispatch = trigger.dispatch();
+        if (!firstOnly) {
+            for (int step : dispatch.steps) {
+                Candidate candidate = null;
+                for (int c = 0; c < configs.size(); c++) {
+                    if (sinks.get(c) == null
+                            || !configs.get(c).isEnabled(STEPS[step][0])) continue;
+                    if (candidate == null) {
+                        candidate = trigger.get(STEPS[step][1]);
+                        if (candidate == null) break;
+                    }
+                    sinks.get(c).scope(candidate.startOffset, candidate.endOffset,
+                                       candidate.heuristic);
+                }
+            }
+            return !trigger.expired;
+        }
+        // Find the first step with a scope for each configuration
+        int[] order = dispatch.order;
+        int[] first = new int[configs.size()];
+        for (int c = 0; c < configs.size(); c++) {
+            first[c] = STEPS.length;
+            if (sinks.get(c) == null) continue;
+            ScoperConfiguration config = configs.get(c);
+            for (int step : order) {
+                if (step >= first[c] || !config.isEnabled(STEPS[step][0])) continue;
+                if (trigger.get(STEPS[step][1]) != null) first[c] = step;
+            }
+            if (first[c] < STEPS.length) dispatch.hit(first[c]);
+        }
+        // Report them in heuristic order
+        for (int step : dispatch.steps) {
+            for (int c = 0; c < configs.size(); c++) {
+                if (first[c] != step) continue;
+                Candidate candidate = trigger.get(STEPS[step][1]);
+                sinks.get(c).scope(candidate.startOffset, candidate.endOffset,
+                                   candidate.heuristic);
+            }
+        }
+        return !trigger.expired;
+    }
+
+    /** Apply the heuristics of several configurations to a token, looking
+     *  their scopes up in a table computed beforehand (see ScopeTable).
+     *  Scopes are reported as by scope(), without applying any heuristic. */
+    public static void scope(ScopeTable table, int token,
+            List<ScoperConfiguration> configs, List<ScopeSink> sinks,
+            boolean firstOnly) {
+        boolean[] found = new boolean[configs.size()];
+        for (int[] step : STEPS) {
+            Candidate candidate = table.get(token, step[1]);
+            if (candidate == null) continue;
+            for (int c = 0; c < configs.size(); c++) {
+                if (sinks.get(c) == null || (firstOnly && found[c])
+                        || !configs.get(c).isEnabled(step[0])) continue;
+                sinks.get(c).scope(candidate.startOffset, candidate.endOffset,
+                                   candidate.heuristic);
+                found[c] = true;
+            }
+        }
+    }
+
+    /** Apply every heuristic which may find a scope for a token, whatever
+     *  the configuration, until System.nanoTime() passes the deadline (0
+     *  for none, see scope()).
+     * @return the scope found by each heuristic (indexed by the heuristic
+     *         constants), or null if a heuristic was cut short by the
+     *         deadline */
+    public static Candidate[] applyAll(ScoperSentence s, int token,
+                                       ScopeResolver resolver, long deadline) {
+        Trigger trigger = new Trigger(s, token, null, resolver, deadline);
+        Candidate[] candidates = new Candidate[HEURISTIC_COUNT];
+        for (int step : trigger.dispatch().steps) {
+            candidates[STEPS[step][1]] = trigger.get(STEPS[step][1]);
+            if (trigger.expired) return null;
+        }
+        return candidates;
+    }
+
+    /** Apply a single heuristic (one of the heuristic constants).
+     * @return the scope found, or null */
+    public static Candidate apply(int heuristic, ScoperSentence s, int token,
+                                  ScopeResolver resolver) {
+        return new Trigger(s, token, null, resolver, 0L).get(heuristic);
+    }
+
+    /** The heuristics applied to a trigger, with the results of each
+     *  heuristic kept so that they are computed once. */
+    private static class Trigger {
+        final ScoperSentence s;
+        final int token;
+        final Object id;
+        final ScopeResolver resolver;
+        // NOTE: Pass the heuristic functions the following:
+        //     deps: Dependencies with Trigger as argument (Governor or Dependant)
+        //     cdeps: Collapsed Dependencies inferring trigger (such as prepc_without, conj_nor)
+        List<ScoperDependency> deps;
+        List<ScoperDependency> cdeps;
+        final Candidate[] results = new Candidate[HEURISTIC_COUNT];
+        final boolean[] done = new boolean[HEURISTIC_COUNT];
+        /** System.nanoTime() at which the heuristics give up, or 0 */
+        final long deadline;
+        /** Whether a heuristic found no scope after the deadline */
+        boolean expired;
+
+        Trigger(ScoperSentence s, int token, Object id, ScopeResolver resolver,
+                long deadline) {
+            this.s = s;
+            this.token = token;
+            this.id = id;
+            this.resolver = deadline == 0L ? resolver : new BoundedResolver(resolver, deadline);
+            this.deadline = deadline;
+        }
+
+        /** The dispatch entry for the POS and dependencies of the trigger */
+        Dispatch dispatch() {
+            loadDependencies();
+            return Dispatch.get(Dispatch.signature(s, token, deps, cdeps));
+        }
+
+        Candidate get(int heuristic) {
+            if (!done[heuristic]) {
+                if (ScoperEvents.isHeuristicEnabled()) {
+                    long start = System.nanoTime();
+                    results[heuristic] = compute(heuristic);
+                    ScoperEvents.heuristicApplied(HEURISTIC_NAMES[heuristic], id,
+                            results[heuristic] != null, System.nanoTime() - start);
+                } else {
+                    results[heuristic] = compute(heuristic);
+                }
+                done[heuristic] = true;
+                if (results[heuristic] == null && deadline != 0L
+                        && System.nanoTime() > deadline) {
+                    expired = true;
+                }
+            }
+            return results[heuristic];
+        }
+
+        private void loadDependencies() {
+            if (deps == null) {
+                deps  = s.getDependencies(token);
+                cdeps = s.getCollapsedDependencies(token);
+            }
+        }
+
+        private Candidate compute(int heuristic) {
+            loadDependencies();
+            switch (heuristic) {
+                case PREPC:      return prepcScope(resolver, s, token, cdeps);
+                case CONJ:       return conjScope(resolver, s, token, cdeps);
+                case AUX:        return auxScope(resolver, s, token, deps);
+                case COMP:       return compScope(resolver, s, token, deps);
+                case SUBJ:       return subjScope(resolver, s, token, deps);
+                case NOMINALOF:  return nominalofScope(resolver, s, token, deps);
+                case PRONOMSUBJ: return pronomsubjScope(resolver, s, token, deps);
+                case NEG:        return negScope(resolver, s, token, deps);
+                case MOD:        return modScope(resolver, s, token, deps);
+                case COPSUBJ:    return copsubjScope(resolver, s, token, deps);
+                case DET:        return detScope(resolver, s, token, deps);
+                case PRENOMMOD:  return prenommodScope(resolver, s, token, deps);
+                case GRAMMAR:    return grammarScope(resolver, s, token, deps, deadline);
+                default: throw new IllegalArgumentException("Unknown heuristic " + heuristic);
+            }
+        }
+    }
+
+    /** The steps which may find a scope for a class of triggers, and how
+     *  often each of them found the first scope.
+     *
+     * Triggers are classed by a signature made of their POS class and of the
+     * kinds of dependencies they have. Each heuristic requires a POS class
+     * and/or a kind of dependency (the conditions checked at the start of
+     * the heuristic methods), so the steps whose requirements are not met
+     * can be skipped: they would not find a scope.
+     * Dispatch entries are shared by all threads, and the hit counts are
+     * updated without locking; the order is recomputed from time to time.
+     */
+    private static class Dispatch {
+        // POS classes
+        static final int POS_OTHER = 0;
+        static final int POS_PREP  = 1;
+        static final int POS_NOUN  = 2;
+        static final int POS_ADJ   = 3;
+        static final int POS_BITS  = 2;
+
+        // Kinds of dependencies (gov: the trigger is the governor)
+        static final int DEP_PREPC     = 1;       // collapsed prep*, gov
+        static final int DEP_CONJ      = 1 << 1;  // collapsed conj*, gov
+        static final int DEP_AUX       = 1 << 2;
+        static final int DEP_COMP      = 1 << 3;  // gov
+        static final int DEP_SUBJ_GOV  = 1 << 4;  // gov
+        static final int DEP_PREP_OF   = 1 << 5;  // gov
+        static final int DEP_SUBJ      = 1 << 6;
+        static final int DEP_NEG       = 1 << 7;
+        static final int DEP_MOD       = 1 << 8;
+        static final int DEP_COP       = 1 << 9;  // gov
+        static final int DEP_DET       = 1 << 10;
+        static final int DEP_MOD_GOV   = 1 << 11; // gov
+        static final int DEP_ANY_GOV   = 1 << 12; // gov
+
+        /** Recompute the order after this many hits */
+        static final int REORDER_INTERVAL = 1024;
+
+        private static final Map<Integer, Dispatch> ENTRIES =
+                new ConcurrentHashMap<Integer, Dispatch>();
+
+        /** Applicable steps, in heuristic order */
+        final int[] steps;
+        /** Applicable steps, most frequent first scope first */
+        volatile int[] order;
+        private final AtomicLongArray hits;
+        private final AtomicInteger count =
+                new AtomicInteger();
+
+        private Dispatch(int signature) {
+            int pos = signature & ((1 << POS_BITS) - 1);
+            int kinds = signature >>> POS_BITS;
+            int[] applicable = new int[STEPS.length];
+            int n = 0;
+            for (int step = 0; step < STEPS.length; step++) {
+                if (applies(STEPS[step][1], pos, kinds)) applicable[n++] = step;
+            }
+            steps = Arrays.copyOf(applicable, n);
+            order = steps;
+            hits = new AtomicLongArray(STEPS.length);
+        }
+
+        static Dispatch get(int signature) {
+            Dispatch dispatch = ENTRIES.get(signature);
+            if (dispatch == null) {
+                // Entries are equivalent, so a race only wastes an instance
+                dispatch = new Dispatch(signature);
+                ENTRIES.put(signature, dispatch);
+            }
+            return dispatch;
+        }
+
+        /** The signature of a trigger: POS class and kinds of dependencies */
+        static int signature(ScoperSentence s, int token,
+                List<ScoperDependency> deps, List<ScoperDependency> cdeps) {
+            int kinds = 0;
+            for (ScoperDependency dep : deps) {
+                String type = dep.getType();
+                if (dep.isGov()) {
+                    kinds |= DEP_ANY_GOV;
+                    if (contains(Scoper.COMP_DEPENDENCIES, type))    kinds |= DEP_COMP;
+                    if (contains(Scoper.SUBJ_DEPENDENCIES, type))    kinds |= DEP_SUBJ_GOV;
+                    if (contains(Scoper.PREP_OF_DEPENDENCIES, type)) kinds |= DEP_PREP_OF;
+                    if (contains(Scoper.COP_DEPENDENCIES, type))     kinds |= DEP_COP;
+                    if (contains(Scoper.MOD_DEPENDENCIES, type))     kinds |= DEP_MOD_GOV;
+                } else {
+                    if (contains(Scoper.AUX_DEPENDENCIES, type))     kinds |= DEP_AUX;
+                    if (contains(Scoper.SUBJ_DEPENDENCIES, type))    kinds |= DEP_SUBJ;
+                    if (contains(Scoper.NEG_DEPENDENCIES, type))     kinds |= DEP_NEG;
+                    if (contains(Scoper.MOD_DEPENDENCIES, type))     kinds |= DEP_MOD;
+                    if (contains(Scoper.DET_DEPENDENCIES, type))     kinds |= DEP_DET;
+                }
+            }
+            for (ScoperDependency dep : cdeps) {
+                if (!dep.isGov()) continue;
+                if (startsWith(Scoper.PREP_DEPENDENCIES, dep.getType())) kinds |= DEP_PREPC;
+                if (startsWith(Scoper.CONJ_DEPENDENCIES, dep.getType())) kinds |= DEP_CONJ;
+            }
+            int pos = POS_OTHER;
+            if (filterPos(s, token, Scoper.TOKEN_CATEGORY_PREP))      pos = POS_PREP;
+            else if (filterPos(s, token, Scoper.TOKEN_CATEGORY_NOUN)) pos = POS_NOUN;
+            else if (filterPos(s, token, Scoper.TOKEN_CATEGORY_ADJ))  pos = POS_ADJ;
+            return (kinds << POS_BITS) | pos;
+        }
+
+        /** Whether a heuristic may find a scope for a trigger of this
+         *  POS class with these kinds of dependencies */
+        static boolean applies(int heuristic, int pos, int kinds) {
+            switch (heuristic) {
+                case PREPC:      return pos == POS_PREP && (kinds & DEP_PREPC) != 0;
+                case CONJ:       return pos == POS_PREP && (kinds & DEP_CONJ) != 0;
+                case AUX:        return (kinds & DEP_AUX) != 0;
+                case COMP:       return (kinds & DEP_COMP) != 0;
+                case SUBJ:       return (kinds & DEP_SUBJ_GOV) != 0;
+                case NOMINALOF:  return pos == POS_NOUN && (kinds & DEP_PREP_OF) != 0;
+                case PRONOMSUBJ: return (kinds & DEP_SUBJ) != 0;
+                case NEG:        return (kinds & DEP_NEG) != 0;
+                case MOD:        return (kinds & DEP_MOD) != 0;
+                case COPSUBJ:    return pos == POS_ADJ && (kinds & DEP_COP) != 0
+                                                       && (kinds & DEP_SUBJ_GOV) != 0;
+                case DET:        return (kinds & DEP_DET) != 0;
+                case PRENOMMOD:  return pos == POS_NOUN && (kinds & DEP_MOD_GOV) != 0;
+                case GRAMMAR:    return (kinds & DEP_ANY_GOV) != 0;
+                default: throw new IllegalArgumentException("Unknown heuristic " + heuristic);
+            }
+        }
+
+        /** Record that a step found the first scope of a trigger */
+        void hit(int step) {
+            hits.incrementAndGet(step);
+            if (count.incrementAndGet() % REORDER_INTERVAL == 0) reorder();
+        }
+
+        /** Sort the steps by hits, keeping the heuristic order for ties */
+        private void reorder() {
+            Integer[] sorted = new Integer[steps.length];
+            final long[] counts = new long[STEPS.length];
+            for (int i = 0; i < steps.length; i++) {
+                sorted[i] = steps[i];
+                counts[steps[i]] = hits.get(steps[i]);
+            }
+            Arrays.sort(sorted, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    if (counts[a] != counts[b]) return counts[a] > counts[b] ? -1 : 1;
+                    return a - b;
+                }
+            });
+            int[] newOrder = new int[sorted.length];
+            for (int i = 0; i < sorted.length; i++) newOrder[i] = sorted[i];
+            order = newOrder;
+        }
+
+        private static boolean contains(String[] types, String type) {
+            for (String t : types) {
+                if (t.equals(type)) return true;
+            }
+            return false;
+        }
+
+        private static boolean startsWith(String[] types, String type) {
+            for (String t : types) {
+                if (type.startsWith(t)) return true;
+            }
+            return false;
+        }
+    }
+
+    // Scope Heuristics
+
+    /** Annotate the scope of a negation modifier.
+     * trigger(T) ^ neg(X, T) =&gt; scope(X)
+     */
+    static Candidate negScope(ScopeResolver resolver, ScoperSentence s, int trigger,
+                            List<ScoperDependency> dependencies) {
+        // Annotate the governor of neg dependencies
+        List<ScoperDependency> scopeDeps =
+                Scoper.filterDependencies(dependencies, Scoper.NEG_DEPENDENCIES, false);
+        if (scopeDeps.isEmpty()) return null;
+        // Use the trigger to find the scope
+        return resolver.resolve(s, trigger, targets(scopeDeps), scopeDeps.get(0).getType());
+    }
+
+    /** Annotate the scope of a negation determiner.
+     * trigger(T) ^ det(X, T) ^ comp(Y, X) =&gt; scope(Y)
+     */
+    static Candidate detScope(ScopeResolver resolver, ScoperSentence s, int trigger,
+                            List<ScoperDependency> dependencies) {
+        // Annotate the governor of det dependencies
+        List<ScoperDependency> scopeDeps =
+                Scoper.filterDependencies(dependencies, Scoper.DET_DEPENDENCIES, false);
+        if (scopeDeps.isEmpty()) return null;
+        // If that governor is the object of a verb, include that verb
+        // TODO: only supports single target (this should be fine)
+        int target = scopeDeps.get(0).getTargetId();
+        List<ScoperDependency> tempDeps = Scoper.filterDependencies(
+                s.getDependencies(target), Scoper.COMP_DEPENDENCIES, false);
+        scopeDeps.addAll(tempDeps);
+        // Use the trigger to find the scope
+        return resolver.resolve(s, trigger, targets(scopeDeps), "det");
+    }
+
+    /** Annotate the scope of a subject.
+     * trigger(T) ^ nsubj(X, T) =&gt; scope(X)
+     */
+    static Candidate pronomsubjScope(ScopeResolver resolver, ScoperSentence s, int trigger,
+                            List<ScoperDependency> dependencies) {
+        // Annotate the governor of nsubj dependencies
+        List<ScoperDependency> scopeDeps =
+                Scoper.filterDependencies(dependencies, Scoper.SUBJ_DEPENDENCIES, false);
+        if (scopeDeps.isEmpty()) return null;
+        // Use the trigger to find the scope
+        return resolver.resolve(s, trigger, targets(scopeDeps), "pronomsubj");
+    }
+
+    /** Annotate the scope of a preposition.
+     * trigger(T) ^ preposition(T) ^ prepc_*(Y, X) =&gt; scope(X)
+     */
+    static Candidate prepcScope(ScopeResolver resolver, ScoperSentence s, int trigger,
+                            List<ScoperDependency> dependencies) {
+        // Filter all but prepositions
+        if (!filterPos(s, trigger, Scoper.TOKEN_CATEGORY_PREP)) return null;
+        // Annotate the target of PREP dependencies
+        List<ScoperDependency> scopeDeps =
+                Scoper.filterDependenciesStartsWith(dependencies, Scoper.PREP_DEPENDENCIES, true);
+        if (scopeDeps.isEmpty()) return null;
+        // Use the trigger to find the scope
+        return resolver.resolve(s, trigger, targets(scopeDeps), scopeDeps.get(0).getType());
+    }
+
+    /** Annotate the scope of a verb.
+     * trigger(T) ^ comp(T, X) =&gt; scope(X)
+     */
+    static Candidate compScope(ScopeResolver resolver, ScoperSentence s, int trigger,
+                            List<ScoperDependency> dependencies) {
+        List<ScoperDependency> scopeDeps =
+                Scoper.filterDependencies(dependencies, Scoper.COMP_DEPENDENCIES, true);
+        if (scopeDeps.isEmpty()) return null;
+        // Use the trigger to find the scope
+        return resolver.resolve(s, trigger, targets(scopeDeps), scopeDeps.get(0).getType());
+    }
+
+    /** Annotate the scope of an intransitive verb.
+     * trigger(T) ^ subj(T, X) =&gt; scope(X)
+     */
+    static Candidate subjScope(ScopeResolver resolver, ScoperSentence s, int trigger,
+                            List<ScoperDependency> dependencies) {
+        List<ScoperDependency> scopeDeps =
+                Scoper.filterDependencies(dependencies, Scoper.SUBJ_DEPENDENCIES, true);
+        if (scopeDeps.isEmpty()) return null;
+        // Use the trigger to find the scope
+        return resolver.resolve(s, trigger, targets(scopeDeps), scopeDeps.get(0).getType());
+    }
+
+    /** Annotate the scope of a nominalization with of.
+     * trigger(T) ^ noun(T) ^ prep_of(T, X) =&gt; scope(X)
+     */
+    static Candidate nominalofScope(ScopeResolver resolver, ScoperSentence s, int trigger,
+                            List<ScoperDependency> dependencies) {
+        // Filter all but nouns
+        if (!filterPos(s, trigger, Scoper.TOKEN_CATEGORY_NOUN)) return null;
+        // Annotate the target of prep_of dependencies
+        List<ScoperDependency> scopeDeps =
+                Scoper.filterDependencies(dependencies, Scoper.PREP_OF_DEPENDENCIES, true);
+        if (scopeDeps.isEmpty()) return null;
+        // Use the trigger to find the scope
+        return resolver.resolve(s, trigger, targets(scopeDeps), "nominalof");
+    }
+
+    /** Annotate the scope of conjunction.
+     * trigger(T) ^ cc(T) ^ conj_*(Y, X) =&gt; scope(X)
+     */
+    static Candidate conjScope(ScopeResolver resolver, ScoperSentence s, int trigger,
+                            List<ScoperDependency> dependencies) {
+        // Filter all but prepositions
+        if (!filterPos(s, trigger, Scoper.TOKEN_CATEGORY_PREP)) return null;
+        // Annotate the target of PREP dependencies
+        List<ScoperDependency> scopeDeps =
+                Scoper.filterDependenciesStartsWith(dependencies, Scoper.CONJ_DEPENDENCIES, true);
+        if (scopeDeps.isEmpty()) return null;
+        // Use the trigger to find the scope
+        return resolver.resolve(s, trigger, targets(scopeDeps), scopeDeps.get(0).getType());
+    }
+
+    /** Annotate the scope of an auxiliary.
+     * trigger(T) ^ aux(X, T) =&gt; scope(X)
+     */
+    static Candidate auxScope(ScopeResolver resolver, ScoperSentence s, int trigger,
+                            List<ScoperDependency> dependencies) {
+        // Annotate the governor of mod dependencies, if exists
+        List<ScoperDependency> scopeDeps =
+                Scoper.filterDependencies(dependencies, Scoper.AUX_DEPENDENCIES, false);
+        if (scopeDeps.isEmpty()) return null;
+        // Use the trigger to find the scope
+        return resolver.resolve(s, trigger, targets(scopeDeps), scopeDeps.get(0).getType());
+    }
+
+    /** Annotate the scope of a modifier.
+     * trigger(T) ^ mod(X, T) =&gt; scope(X)
+     */
+    static Candidate modScope(ScopeResolver resolver, ScoperSentence s, int trigger,
+                            List<ScoperDependency> dependencies) {
+        // Annotate the governor of mod dependencies, if exists
+        List<ScoperDependency> scopeDeps =
+                Scoper.filterDependencies(dependencies, Scoper.MOD_DEPENDENCIES, false);
+        if (scopeDeps.isEmpty()) return null;
+        return resolver.resolve(s, targets(scopeDeps), scopeDeps.get(0).getType());
+    }
+
+    /** Annotate the subject of an adjective with a copula.
+     * trigger(T) ^ adjective(T) ^ cop(T, X) ^ nsubj(T, Y) =&gt; scope(Y)
+     */
+    static Candidate copsubjScope(ScopeResolver resolver, ScoperSentence s, int trigger,
+                            List<ScoperDependency> dependencies) {
+        // Filter all but adjectives
+        if (!filterPos(s, trigger, Scoper.TOKEN_CATEGORY_ADJ)) return null;
+        // Check if there is a copula
+        List<ScoperDependency> copDeps =
+                Scoper.filterDependencies(dependencies, Scoper.COP_DEPENDENCIES);
+        if (copDeps.isEmpty()) return null;
+        // Annotate the subject, if exists
+        List<ScoperDependency> scopeDeps =
+                Scoper.filterDependencies(dependencies, Scoper.SUBJ_DEPENDENCIES);
+        if (scopeDeps.isEmpty()) return null;
+        return resolver.resolve(s, targets(scopeDeps), "copsubj");
+    }
+
+    /** Annotate the scope of a noun with a premodifier.
+     * trigger(T) ^ noun(T) ^ mod(Y, T) ^ mod(X, T) ^ Y &lt; X =&gt; scope(X)
+     */
+    static Candidate prenommodScope(ScopeResolver resolver, ScoperSentence s, int trigger,
+                            List<ScoperDependency> dependencies) {
+        // Filter all but nouns
+        if (!filterPos(s, trigger, Scoper.TOKEN_CATEGORY_NOUN)) return null;
+        // Annotate the dep of a mod dependencies, if exists
+        List<ScoperDependency> scopeDeps =
+                Scoper.filterDependencies(dependencies, Scoper.MOD_DEPENDENCIES, true);
+        if (scopeDeps.isEmpty()) return null;
+        int scope = -1;
+        // Look for the nearest prenominal modifier
+        for (ScoperDependency dep : scopeDeps) {
+            int candidate = dep.getTargetId();
+            // Verify that the candidate scope precedes trigger
+            if (s.getTokenStart(candidate) < s.getTokenStart(trigger)) {
+                // Get the closest modifier to the trigger
+                if (scope < 0 || s.getTokenStart(candidate) > s.getTokenStart(scope)) {
+                    scope = candidate;
+                }
+            }
+        }
+        if (scope < 0) return null;
+        return new Candidate(s.getTokenStart(scope), s.getTokenEnd(scope), "prenommod");
+    }
+
+    /** Annotate using the grammarscope approach.
+     * trigger(T) ^ *dep(T, X) =&gt; scope(X)
+     */
+    static Candidate grammarScope(ScopeResolver resolver, ScoperSentence s, int trigger,
+                            List<ScoperDependency> dependencies, long deadline) {
+        // Get dependants for this trigger
+        List<ScoperDependency> scopeDeps = Scoper.filterDependencies(dependencies);
+        if (scopeDeps.isEmpty()) return null;
+        // and recursively anotate dependants of dependants, etc.
+        LinkedList<Integer> openList = new LinkedList<Integer>(targetList(scopeDeps));
+        List<Integer> closeList = new ArrayList<Integer>();
+        // Visited tokens, proportional to the scope rather than the sentence
+        Set<Integer> closed = new HashSet<Integer>();
+        while (openList.size() != 0) {
+            // Give up once the deadline (if any) has passed
+            if (deadline != 0L && System.nanoTime() > deadline) return null;
+            int a = openList.remove();
+            if (closed.add(a)) {
+                closeList.add(a);
+                List<ScoperDependency> deps =
+                        Scoper.filterDependencies(s.getDependencies(a));
+                openList.addAll(targetList(deps));
+            }
+        }
+        return resolver.resolve(s, toArray(closeList), "grammarscope");
+    }
+
+    // Phrases
+
+    /** Find the smallest phrase dominating a list of tokens (see Scoper.getPhrase).
+     * @return a node index, or -1 if there is no common node */
+    public static int getPhrase(ScoperSentence s, int[] tokens) {
+        // Find the smallest STN which is common to all paths
+        Extent extent = new Extent(s, tokens);
+        for (int node : s.getNodeOrder()) {
+            if (extent.dominatedBy(node)) return node;
+        }
+        System.err.println("Error: No common node for candidate tokens");
+        return -1;
+    }
+
+    /** Find the largest phrase dominating a list of tokens, but not including
+     *  the trigger (see Scoper.getPhrase). Reverts to getPhrase(tokens) if no
+     *  node is found.
+     * @return a node index, or -1 if there is no common node */
+    public static int getPhrase(ScoperSentence s, int trigger, int[] tokens) {
+        return getPhrase(s, trigger, tokens, 0L);
+    }
+
+    /** As above, without reverting to getPhrase(tokens) once
+     *  System.nanoTime() has passed the deadline (0 for none) */
+    public static int getPhrase(ScoperSentence s, int trigger, int[] tokens, long deadline) {
+        long triggerStart = s.getTokenStart(trigger);
+        long triggerEnd   = s.getTokenEnd(trigger);
+        // Find the largest STN which is common to all paths but excludes trigger
+        Extent extent = new Extent(s, tokens);
+        int[] order = s.getNodeOrder();
+        for (int i = order.length - 1; i >= 0; i--) {
+            int node = order[i];
+            if (s.nodeOverlaps(node, triggerStart, triggerEnd)) continue;
+            if (extent.dominatedBy(node)) return node;
+        }
+        System.err.println("Warning: No common node for candidate tokens excluding trigger");
+        if (deadline != 0L && System.nanoTime() > deadline) return -1;
+        // Revert to getPhrase without trigger
+        return getPhrase(s, tokens);
+    }
+
+    /** A resolver passing a deadline to the fallback of another */
+    private static class BoundedResolver implements ScopeResolver {
+        final ScopeResolver resolver;
+        final long deadline;
+
+        BoundedResolver(ScopeResolver resolver, long deadline) {
+            this.resolver = resolver;
+            this.deadline = deadline;
+        }
+
+        public Candidate resolve(ScoperSentence s, int[] tokens, String heuristic) {
+            return resolver.resolve(s, tokens, heuristic);
+        }
+
+        public Candidate resolve(ScoperSentence s, int trigger, int[] tokens,
+                                 String heuristic) {
+            return resolver.resolve(s, trigger, tokens, heuristic, deadline);
+        }
+
+        public Candidate resolve(ScoperSentence s, int trigger, int[] tokens,
+                                 String heuristic, long deadline) {
+            return resolver.resolve(s, trigger, tokens, heuristic, deadline);
+        }
+    }
+
+    /** The tokens whose common phrase is looked for. A non-empty node
+     *  overlaps every non-empty token iff it starts before the first token
+     *  end and ends after the last token start, so a node is checked in
+     *  constant time; empty tokens and nodes are checked one by one. */
+    private static class Extent {
+        final ScoperSentence s;
+        final int[] tokens;
+        long minEnd = Long.MAX_VALUE;
+        long maxStart = Long.MIN_VALUE;
+        boolean nonEmpty = true;
+
+        Extent(ScoperSentence s, int[] tokens) {
+            this.s = s;
+            this.tokens = tokens;
+            for (int t : tokens) {
+                minEnd = Math.min(minEnd, s.getTokenEnd(t));
+                maxStart = Math.max(maxStart, s.getTokenStart(t));
+                if (s.getTokenStart(t) >= s.getTokenEnd(t)) nonEmpty = false;
+            }
+        }
+
+        /** Whether a node is on the path of every token */
+        boolean dominatedBy(int node) {
+            if (tokens.length == 0) return false;
+            if (nonEmpty && s.getNodeStart(node) < s.getNodeEnd(node)) {
+                return s.getNodeStart(node) < minEnd && s.getNodeEnd(node) > maxStart;
+            }
+            for (int t : tokens) {
+                if (!s.nodeOverlaps(node, s.getTokenStart(t), s.getTokenEnd(t))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // Helpers
+
+    /** Returns true iff token's POS matches given POS (see Scoper.filterPos) */
+    static boolean filterPos(ScoperSentence s, int token, String pos) {
+        String tokenPos = s.getTokenCategory(token);
+        return tokenPos != null && tokenPos.startsWith(pos);
+    }
+
+    /** Convert dependency targets to token indices */
+    static int[] targets(List<ScoperDependency> deps) {
+        int[] tokens = new int[deps.size()];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = deps.get(i).getTargetId();
+        }
+        return tokens;
+    }
+
+    private static List<Integer> targetList(List<ScoperDependency> deps) {
+        List<Integer> tokens = new ArrayList<Integer>(deps.size());
+        for (ScoperDependency dep : deps) {
+            tokens.add(dep.getTargetId());
+        }
+        return tokens;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) array[i] = list.get(i);
+        return array;
+    }
+}
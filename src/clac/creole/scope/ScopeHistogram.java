@@ -0,0 +1,98 @@
+package clac.creole.scope;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A mergeable histogram of non-negative values, using power of two buckets.
+ * Bucket 0 holds the value 0, and bucket i holds values in [2^(i-1), 2^i).
+ * All updates are atomic, so a single histogram may be shared by several
+ * threads, and histograms built separately can be merged.
+ */
+public class ScopeHistogram {
+
+    public static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final StripedCounter count = new StripedCounter();
+    private final StripedCounter total = new StripedCounter();
+    private final AtomicLong max = new AtomicLong(0L);
+
+    /** Record a single value (negative values are counted as 0) */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        buckets.incrementAndGet(bucket(value));
+        count.increment();
+        total.add(value);
+        updateMax(value);
+    }
+
+    /** Add all the values recorded by another histogram */
+    public void merge(ScopeHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = other.buckets.get(i);
+            if (n != 0) buckets.addAndGet(i, n);
+        }
+        count.merge(other.count);
+        total.merge(other.total);
+        updateMax(other.max.get());
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getTotal() {
+        return total.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = getCount();
+        return n == 0 ? 0.0 : (double) getTotal() / n;
+    }
+
+    /** Number of values recorded in bucket i */
+    public long getBucket(int i) {
+        return buckets.get(i);
+    }
+
+    /** Smallest value that falls in bucket i */
+    public static long bucketLowerBound(int i) {
+        return i == 0 ? 0L : 1L << (i - 1);
+    }
+
+    /** Format the histogram as a JSON object */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"count\": ").append(getCount());
+        sb.append(", \"mean\": ").append(String.format(Locale.ROOT, "%.3f", getMean()));
+        sb.append(", \"max\": ").append(getMax());
+        sb.append(", \"buckets\": {");
+        boolean first = true;
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = buckets.get(i);
+            if (n == 0) continue;
+            if (!first) sb.append(", ");
+            sb.append("\"").append(bucketLowerBound(i)).append("\": ").append(n);
+            first = false;
+        }
+        sb.append("}}");
+        return sb.toString();
+    }
+
+    private static int bucket(long value) {
+        return value == 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+    }
+
+    private void updateMax(long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+}
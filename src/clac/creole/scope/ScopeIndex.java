@@ -0,0 +1,959 @@
+package clac.creole.scope;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import gate.Annotation;
+
+/**
+ * An inverted index of the tokens of a corpus and of the scopes covering
+ * them (see the scopeIndexFile parameter of Scoper), to find sentences such
+ * as "recommend in the scope of a negator" without going back to the
+ * documents.
+ *
+ * Each term (a token string, in lower case) has a posting for every token
+ * and kind of scope covering it. The kind of a scope is its output (empty,
+ * or the configuration in sweep mode), the type, minorType and priorPolarity
+ * it inherited from its trigger (see SCOPE_INHERITED_FEATURES) and its
+ * heuristic; a token in no scope gets a posting of the empty kind of the
+ * output. A token is covered by a scope if the scope contains it, as in
+ * ScopeMatrix. The kinds of the postings of a sentence which was not fully
+ * scoped (see ScopeMatrix.getStatus) also have its status, unsampled or
+ * outOfBudget, so that its tokens are not taken for tokens in no scope.
+ * Sentences are numbered over the whole index, in the order the documents
+ * were written. Sentence ids and posting counts are longs, so that an index
+ * of a large corpus (millions of documents, common terms with billions of
+ * postings) does not overflow.
+ *
+ * File layout (big endian):
+ * <pre>
+ *   header:    int MAGIC, int VERSION, int document count, int term
+ *              count, int kind count, long sentence count, long posting
+ *              count, long offsets of the kinds, documents, sentences,
+ *              postings and terms
+ *   kinds:     output, type, minorType, priorPolarity, heuristic, status
+ *              (strings: int length, UTF-8 bytes; empty if unset)
+ *   documents: long first sentence and long name offset of each document,
+ *              then the names
+ *   sentences: long start, long end
+ *   postings:  long sentence, int token (in the sentence), int kind; by term,
+ *              then sentence, token and kind
+ *   terms:     long name offset, long first posting, long posting count of
+ *              each term, in term order, then the names
+ * </pre>
+ * The writer sorts postings in memory, spills them to run files next to the
+ * index, and merges them into the index when its last user releases it. The
+ * reader maps the file, and only reads the terms, postings and sentences a
+ * query needs.
+ */
+public class ScopeIndex {
+
+    public static final int MAGIC   = 0x53434958; // "SCIX"
+    public static final int VERSION = 3;
+
+    private static final int HEADER_SIZE = 5 * 4 + 2 * 8 + 5 * 8;
+    private static final int POSTING_SIZE = 8 + 4 + 4;
+    private static final int TERM_SIZE = 8 + 8 + 8;
+    private static final int DOCUMENT_SIZE = 8 + 8;
+    private static final int SENTENCE_SIZE = 8 + 8;
+    /** Maximum size of a single mapping */
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    // Fields of a kind
+    public static final int KIND_OUTPUT    = 0;
+    public static final int KIND_TYPE      = 1;
+    public static final int KIND_MINORTYPE = 2;
+    public static final int KIND_POLARITY  = 3;
+    public static final int KIND_HEURISTIC = 4;
+    public static final int KIND_STATUS    = 5;
+    private static final int KIND_FIELDS   = 6;
+
+    /** The status field of the kinds, by ScopeMatrix sentence status */
+    public static final String[] STATUS = { "", "unsampled", "outOfBudget" };
+
+    /** Writers shared between workers, by output file */
+    private static final SharedResources<Writer> WRITERS = new SharedResources<Writer>() {
+        protected Writer open(File file) throws IOException {
+            return new Writer(file);
+        }
+    };
+
+    /** The term of a token string */
+    public static String term(String token) {
+        return token.toLowerCase(Locale.ROOT);
+    }
+
+    /** Get the writer of a file (see SharedResources) */
+    public static Writer acquireWriter(File file) throws IOException {
+        return WRITERS.acquire(file);
+    }
+
+    /** Release a writer. Its last user writes the index. */
+    public static void releaseWriter(Writer writer) throws IOException {
+        if (WRITERS.release(writer.file)) writer.close();
+    }
+
+    /** Writes the index of documents, each as a whole */
+    public static class Writer {
+        /** Postings kept in memory before they are spilled to a run file */
+        public static final int RUN_POSTINGS = 1 << 20;
+
+        private final File file;
+        private final Map<String, Integer> termIds = new HashMap<String, Integer>();
+        private final List<String> terms = new ArrayList<String>();
+        private final Map<List<String>, Integer> kindIds = new HashMap<List<String>, Integer>();
+        private final List<List<String>> kinds = new ArrayList<List<String>>();
+        // Postings not yet spilled: term, token, kind, and their sentences
+        private int[] postings = new int[3 * RUN_POSTINGS];
+        private long[] postingSentences = new long[RUN_POSTINGS];
+        private int size = 0;
+        private long postingCount = 0;
+        private final List<File> runs = new ArrayList<File>();
+        // Document names and sentence offsets, until the index is written
+        private final File namesFile;
+        private final File sentencesFile;
+        private final DataOutputStream names;
+        private final DataOutputStream sentences;
+        private long[] firstSentence = new long[1024];
+        private long[] nameOffset = new long[1024];
+        private long namesSize = 0;
+        private int documentCount = 0;
+        private long sentenceCount = 0;
+        private boolean closed = false;
+
+        public Writer(File file) throws IOException {
+            this.file = file;
+            File dir = file.getAbsoluteFile().getParentFile();
+            this.namesFile = File.createTempFile("scix", ".names", dir);
+            this.sentencesFile = File.createTempFile("scix", ".sentences", dir);
+            this.names = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(namesFile)));
+            this.sentences = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(sentencesFile)));
+        }
+
+        /** Index the tokens of a document.
+         * @param name        the id of the document (see Scoper.getDocumentId)
+         * @param sentences   the offsets of the sentences ({ start, end }), in
+         *                    document order
+         * @param status      the status of each sentence (see
+         *                    ScopeMatrix.getStatus), or null if all are
+         *                    SCOPED
+         * @param tokenStart  the start offsets of the tokens, in document order
+         * @param tokenEnd    the end offsets of the tokens (tokens do not overlap)
+         * @param tokenString the strings of the tokens (null tokens are not
+         *                    indexed)
+         * @param scopes      the Scope annotations of each output (empty for
+         *                    the output annotation set of Scoper, the
+         *                    configuration name in sweep mode)
+         */
+        public void writeDocument(String name, List<long[]> sentences, byte[] status,
+                long[] tokenStart, long[] tokenEnd, String[] tokenString,
+                Map<String, Collection<Annotation>> scopes) throws IOException {
+            // Postings with document ids: token (in the document), sentence,
+            // token (in the sentence), kind
+            List<List<String>> localKinds = new ArrayList<List<String>>();
+            Map<List<String>, Integer> localIds = new HashMap<List<String>, Integer>();
+            IntList local = new IntList();
+            for (Map.Entry<String, Collection<Annotation>> e : scopes.entrySet()) {
+                sweep(sentences, status, tokenStart, tokenEnd, tokenString, e.getKey(),
+                      e.getValue(), localKinds, localIds, local);
+            }
+            String[] tokenTerm = new String[tokenString.length];
+            for (int t = 0; t < tokenString.length; t++) {
+                if (tokenString[t] != null) tokenTerm[t] = term(tokenString[t]);
+            }
+
+            synchronized (this) {
+                if (closed) throw new IOException("Scope index closed: " + file);
+                int[] kindId = new int[localKinds.size()];
+                for (int k = 0; k < kindId.length; k++) {
+                    Integer id = kindIds.get(localKinds.get(k));
+                    if (id == null) {
+                        id = kinds.size();
+                        kinds.add(localKinds.get(k));
+                        kindIds.put(localKinds.get(k), id);
+                    }
+                    kindId[k] = id;
+                }
+                // A document is never split between runs, so that sentence
+                // ids grow from one run to the next
+                int n = local.size / 4;
+                if (size + n > RUN_POSTINGS) spill();
+                if (n > postingSentences.length) {
+                    postings = new int[3 * n];
+                    postingSentences = new long[n];
+                }
+                long base = sentenceCount;
+                for (int p = 0; p < local.size; p += 4) {
+                    String term = tokenTerm[local.values[p]];
+                    Integer id = termIds.get(term);
+                    if (id == null) {
+                        id = terms.size();
+                        terms.add(term);
+                        termIds.put(term, id);
+                    }
+                    postings[3 * size] = id;
+                    postings[3 * size + 1] = local.values[p + 2];
+                    postings[3 * size + 2] = kindId[local.values[p + 3]];
+                    postingSentences[size] = base + local.values[p + 1];
+                    size++;
+                }
+                postingCount += n;
+
+                if (documentCount == firstSentence.length) {
+                    firstSentence = Arrays.copyOf(firstSentence, 2 * documentCount);
+                    nameOffset = Arrays.copyOf(nameOffset, 2 * documentCount);
+                }
+                firstSentence[documentCount] = base;
+                nameOffset[documentCount] = namesSize;
+                documentCount++;
+                byte[] bytes = name.getBytes("UTF-8");
+                names.writeInt(bytes.length);
+                names.write(bytes);
+                namesSize += 4 + bytes.length;
+                for (long[] sentence : sentences) {
+                    this.sentences.writeLong(sentence[0]);
+                    this.sentences.writeLong(sentence[1]);
+                }
+                sentenceCount += sentences.size();
+            }
+        }
+
+        /** Sort the postings in memory by term, and write them to a run file:
+         *  for each term, int term id, int count, then the postings */
+        private void spill() throws IOException {
+            if (size == 0) return;
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) order[i] = i;
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    int pa = 3 * a, pb = 3 * b;
+                    if (postings[pa] != postings[pb]) {
+                        return terms.get(postings[pa]).compareTo(terms.get(postings[pb]));
+                    }
+                    if (postingSentences[a] != postingSentences[b]) {
+                        return postingSentences[a] < postingSentences[b] ? -1 : 1;
+                    }
+                    for (int f = 1; f < 3; f++) {
+                        if (postings[pa + f] != postings[pb + f]) {
+                            return postings[pa + f] < postings[pb + f] ? -1 : 1;
+                        }
+                    }
+                    return 0;
+                }
+            });
+            File run = File.createTempFile("scix", ".run", namesFile.getParentFile());
+            runs.add(run);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(run)));
+            try {
+                for (int i = 0; i < size; ) {
+                    int term = postings[3 * order[i]];
+                    int j = i;
+                    while (j < size && postings[3 * order[j]] == term) j++;
+                    out.writeInt(term);
+                    out.writeInt(j - i);
+                    for (; i < j; i++) {
+                        int p = 3 * order[i];
+                        out.writeLong(postingSentences[order[i]]);
+                        out.writeInt(postings[p + 1]);
+                        out.writeInt(postings[p + 2]);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            size = 0;
+        }
+
+        /** Write the index, and delete the temporary files */
+        public synchronized void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try {
+                names.close();
+                sentences.close();
+                spill();
+                write();
+            } finally {
+                namesFile.delete();
+                sentencesFile.delete();
+                for (File run : runs) run.delete();
+            }
+        }
+
+        private void write() throws IOException {
+            CountingOutputStream counter = new CountingOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file)));
+            DataOutputStream out = new DataOutputStream(counter);
+            long[] offsets = new long[5];
+            try {
+                out.write(new byte[HEADER_SIZE]);
+
+                offsets[0] = counter.count;
+                for (List<String> kind : kinds) {
+                    for (String field : kind) writeString(out, field);
+                }
+
+                offsets[1] = counter.count;
+                long namesStart = offsets[1] + (long) DOCUMENT_SIZE * documentCount;
+                for (int d = 0; d < documentCount; d++) {
+                    out.writeLong(firstSentence[d]);
+                    out.writeLong(namesStart + nameOffset[d]);
+                }
+                copy(namesFile, out);
+
+                offsets[2] = counter.count;
+                copy(sentencesFile, out);
+
+                offsets[3] = counter.count;
+                long[] first = new long[terms.size()];
+                long[] count = new long[terms.size()];
+                merge(out, first, count);
+
+                offsets[4] = counter.count;
+                Integer[] order = new Integer[terms.size()];
+                for (int i = 0; i < order.length; i++) order[i] = i;
+                Arrays.sort(order, new Comparator<Integer>() {
+                    public int compare(Integer a, Integer b) {
+                        return terms.get(a).compareTo(terms.get(b));
+                    }
+                });
+                long nameStart = offsets[4] + (long) TERM_SIZE * order.length;
+                for (Integer term : order) {
+                    out.writeLong(nameStart);
+                    out.writeLong(first[term]);
+                    out.writeLong(count[term]);
+                    nameStart += 4 + terms.get(term).getBytes("UTF-8").length;
+                }
+                for (Integer term : order) writeString(out, terms.get(term));
+            } finally {
+                out.close();
+            }
+
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.writeInt(MAGIC);
+                raf.writeInt(VERSION);
+                raf.writeInt(documentCount);
+                raf.writeInt(terms.size());
+                raf.writeInt(kinds.size());
+                raf.writeLong(sentenceCount);
+                raf.writeLong(postingCount);
+                for (long offset : offsets) raf.writeLong(offset);
+            } finally {
+                raf.close();
+            }
+        }
+
+        /** Merge the runs into the postings of the index. Sentence ids grow
+         *  from one run to the next, so the postings of a term are the
+         *  postings of each run, in run order. */
+        private void merge(DataOutputStream out, long[] first, long[] count)
+                throws IOException {
+            PriorityQueue<Run> queue = new PriorityQueue<Run>(Math.max(1, runs.size()),
+                    new Comparator<Run>() {
+                        public int compare(Run r1, Run r2) {
+                            int c = terms.get(r1.term).compareTo(terms.get(r2.term));
+                            return c != 0 ? c : r1.index - r2.index;
+                        }
+                    });
+            try {
+                for (int i = 0; i < runs.size(); i++) {
+                    Run run = new Run(i, runs.get(i));
+                    if (run.next()) queue.add(run);
+                    else run.in.close();
+                }
+                byte[] buffer = new byte[64 * POSTING_SIZE];
+                long posting = 0;
+                while (!queue.isEmpty()) {
+                    Run run = queue.poll();
+                    if (count[run.term] == 0) first[run.term] = posting;
+                    count[run.term] += run.count;
+                    posting += run.count;
+                    for (long left = (long) run.count * POSTING_SIZE; left > 0; ) {
+                        int n = (int) Math.min(left, buffer.length);
+                        run.in.readFully(buffer, 0, n);
+                        out.write(buffer, 0, n);
+                        left -= n;
+                    }
+                    if (run.next()) queue.add(run);
+                    else run.in.close();
+                }
+            } finally {
+                for (Run run : queue) run.in.close();
+            }
+        }
+
+        public File getFile() {
+            return file;
+        }
+    }
+
+    /** Add the postings of the tokens of a document for the scopes of an
+     *  output, in a single sweep over its tokens and scopes (as
+     *  ScopeMatrix.build) */
+    private static void sweep(List<long[]> sentences, byte[] status, long[] tokenStart,
+            long[] tokenEnd, String[] tokenString, String output, Collection<Annotation> scopes,
+            List<List<String>> kinds, Map<List<String>, Integer> kindIds, IntList postings) {
+        int n = scopes.size();
+        long[] scopeStart = new long[n];
+        long[] scopeEnd = new long[n];
+        int[] scopeKind = new int[n];
+        Integer[] byStart = new Integer[n];
+        Integer[] byEnd = new Integer[n];
+        int none = kindId(kinds, kindIds, output, null, null, null, null, null);
+        int i = 0;
+        for (Annotation scope : scopes) {
+            scopeStart[i] = scope.getStartNode().getOffset();
+            scopeEnd[i] = scope.getEndNode().getOffset();
+            gate.FeatureMap f = scope.getFeatures();
+            scopeKind[i] = kindId(kinds, kindIds, output,
+                    f.get(Scoper.TRIGGER_TYPE_FEATURE),
+                    f.get(Scoper.TRIGGER_MINORTYPE_FEATURE),
+                    f.get(Scoper.TRIGGER_POLARITY_FEATURE),
+                    f.get(Scoper.SCOPE_HEURISTIC_FEATURE), null);
+            byStart[i] = i;
+            byEnd[i] = i;
+            i++;
+        }
+        Arrays.sort(byStart, byOffset(scopeStart));
+        Arrays.sort(byEnd, byOffset(scopeEnd));
+
+        int[] kindCount = new int[kinds.size()];
+        int[] active = new int[kinds.size()]; // Kinds which had a count, in any order
+        boolean[] isActive = new boolean[kinds.size()];
+        int activeKinds = 0;
+        byte[] state = new byte[n]; // 0: not started, 1: active, 2: ended
+        int added = 0, removed = 0, t = 0;
+        // Kinds with the status of a sentence which was not fully scoped
+        Map<Integer, Integer> statusKinds = new HashMap<Integer, Integer>();
+        for (int s = 0; s < sentences.size(); s++) {
+            long[] sentence = sentences.get(s);
+            byte sentenceStatus = status == null ? ScopeMatrix.SCOPED : status[s];
+            statusKinds.clear();
+            while (t < tokenStart.length && tokenStart[t] < sentence[0]) t++;
+            int first = t;
+            for (; t < tokenStart.length && tokenEnd[t] <= sentence[1]; t++) {
+                for (; added < n && scopeStart[byStart[added]] <= tokenStart[t]; added++) {
+                    int k = byStart[added];
+                    if (state[k] != 0) continue;
+                    state[k] = 1;
+                    if (kindCount[scopeKind[k]]++ == 0 && !isActive[scopeKind[k]]) {
+                        isActive[scopeKind[k]] = true;
+                        active[activeKinds++] = scopeKind[k];
+                    }
+                }
+                for (; removed < n && scopeEnd[byEnd[removed]] < tokenEnd[t]; removed++) {
+                    int k = byEnd[removed];
+                    if (state[k] == 1) kindCount[scopeKind[k]]--;
+                    state[k] = 2;
+                }
+                if (tokenString[t] == null) continue;
+                int posting = postings.size;
+                for (int a = 0; a < activeKinds; ) {
+                    if (kindCount[active[a]] == 0) {
+                        isActive[active[a]] = false;
+                        active[a] = active[--activeKinds];
+                        continue;
+                    }
+                    postings.add(t, s, t - first, withStatus(kinds, kindIds, statusKinds,
+                                                             active[a], sentenceStatus));
+                    a++;
+                }
+                if (postings.size == posting) {
+                    postings.add(t, s, t - first, withStatus(kinds, kindIds, statusKinds,
+                                                             none, sentenceStatus));
+                }
+            }
+        }
+    }
+
+    /** The kind of a sentence status, for a kind without status */
+    private static int withStatus(List<List<String>> kinds, Map<List<String>, Integer> kindIds,
+                                  Map<Integer, Integer> statusKinds, int kind, byte status) {
+        if (status == ScopeMatrix.SCOPED) return kind;
+        Integer id = statusKinds.get(kind);
+        if (id == null) {
+            Object[] fields = kinds.get(kind).toArray();
+            fields[KIND_STATUS] = STATUS[status];
+            id = kindId(kinds, kindIds, fields);
+            statusKinds.put(kind, id);
+        }
+        return id;
+    }
+
+    private static int kindId(List<List<String>> kinds, Map<List<String>, Integer> kindIds,
+                              Object... fields) {
+        String[] kind = new String[KIND_FIELDS];
+        for (int f = 0; f < KIND_FIELDS; f++) {
+            kind[f] = fields[f] == null ? "" : fields[f].toString();
+        }
+        List<String> key = Arrays.asList(kind);
+        Integer id = kindIds.get(key);
+        if (id == null) {
+            id = kinds.size();
+            kinds.add(key);
+            kindIds.put(key, id);
+        }
+        return id;
+    }
+
+    private static Comparator<Integer> byOffset(final long[] offsets) {
+        return new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return offsets[a] < offsets[b] ? -1 : (offsets[a] == offsets[b] ? 0 : 1);
+            }
+        };
+    }
+
+    /** A set of scopes covering a token, null fields matching any value.
+     *  An empty string matches an unset feature; a type of "" matches
+     *  tokens in no scope. */
+    public static class Scope {
+        private final String[] fields = new String[KIND_FIELDS];
+
+        public Scope() {}
+
+        /** Scopes of triggers of this type */
+        public Scope(String type) {
+            fields[KIND_TYPE] = type;
+        }
+
+        public Scope type(String type)            { fields[KIND_TYPE] = type; return this; }
+        public Scope minorType(String minorType)  { fields[KIND_MINORTYPE] = minorType; return this; }
+        public Scope polarity(String polarity)    { fields[KIND_POLARITY] = polarity; return this; }
+        public Scope heuristic(String heuristic)  { fields[KIND_HEURISTIC] = heuristic; return this; }
+        public Scope output(String output)        { fields[KIND_OUTPUT] = output; return this; }
+        /** Scopes of the sentences with this status (one of STATUS) */
+        public Scope status(String status)        { fields[KIND_STATUS] = status; return this; }
+
+        boolean matches(String[] kind) {
+            for (int f = 0; f < KIND_FIELDS; f++) {
+                if (fields[f] != null && !fields[f].equals(kind[f])) return false;
+            }
+            return true;
+        }
+
+        /** Parse a scope written as key=value pairs separated by commas, the
+         *  keys being type, minorType, priorPolarity, heuristic, output and
+         *  status; a value alone is a type, and none stands for tokens in no
+         *  scope (of fully scoped sentences) */
+        public static Scope parse(String text) {
+            Scope scope = new Scope();
+            for (String pair : text.split(",")) {
+                int eq = pair.indexOf('=');
+                String key = eq < 0 ? Scoper.TRIGGER_TYPE_FEATURE : pair.substring(0, eq).trim();
+                String value = pair.substring(eq + 1).trim();
+                if (eq < 0 && value.equals("none")) {
+                    value = "";
+                    scope.status("");
+                }
+                if (key.equals(Scoper.TRIGGER_TYPE_FEATURE)) scope.type(value);
+                else if (key.equals(Scoper.TRIGGER_MINORTYPE_FEATURE)) scope.minorType(value);
+                else if (key.equals(Scoper.TRIGGER_POLARITY_FEATURE)) scope.polarity(value);
+                else if (key.equals(Scoper.SCOPE_HEURISTIC_FEATURE)) scope.heuristic(value);
+                else if (key.equals("output")) scope.output(value);
+                else if (key.equals("status")) scope.status(value);
+                else throw new IllegalArgumentException("Unknown scope field " + key);
+            }
+            return scope;
+        }
+    }
+
+    /** A conjunctive query: sentences with a token of each term, in all the
+     *  scopes given with the term */
+    public static class Query {
+        private final List<String> terms = new ArrayList<String>();
+        private final List<Scope[]> scopes = new ArrayList<Scope[]>();
+
+        /** Require a token of this term, covered by all these scopes */
+        public Query term(String term, Scope... scopes) {
+            this.terms.add(ScopeIndex.term(term));
+            this.scopes.add(scopes);
+            return this;
+        }
+
+        /** Parse a query: terms separated by spaces, each followed by the
+         *  scopes covering it, as @scope (see Scope.parse), e.g.
+         *  "recommend@negator", "price@sentiment,priorPolarity=negative@modal"
+         *  or "recommend@none" */
+        public static Query parse(String text) {
+            Query query = new Query();
+            for (String clause : text.trim().split("\\s+")) {
+                String[] parts = clause.split("@");
+                Scope[] scopes = new Scope[parts.length - 1];
+                for (int i = 1; i < parts.length; i++) scopes[i - 1] = Scope.parse(parts[i]);
+                query.term(parts[0], scopes);
+            }
+            return query;
+        }
+    }
+
+    /** A sentence found by a query */
+    public static class Hit {
+        public final long sentence;
+        public final String document;
+        public final long start;
+        public final long end;
+
+        Hit(long sentence, String document, long start, long end) {
+            this.sentence = sentence;
+            this.document = document;
+            this.start = start;
+            this.end = end;
+        }
+
+        public String toString() {
+            return document + "\t" + start + "\t" + end;
+        }
+    }
+
+    /** Reads an index through a memory mapped view of the file. A reader
+     *  may be used by several threads. */
+    public static class Reader {
+        private final File file;
+        private final RandomAccessFile raf;
+        private final MappedByteBuffer[] segments;
+        private final int documentCount;
+        private final long sentenceCount;
+        private final int termCount;
+        private final long postingCount;
+        private final String[][] kinds;
+        private final long documentsOffset;
+        private final long sentencesOffset;
+        private final long postingsOffset;
+        private final long termsOffset;
+
+        public Reader(File file) throws IOException {
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                long size = channel.size();
+                if (size < HEADER_SIZE) {
+                    throw new IOException("Not a scope index file: " + file);
+                }
+                // Segments overlap by a long, so that numbers never span two
+                segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+                for (int i = 0; i < segments.length; i++) {
+                    long start = i * SEGMENT_SIZE;
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                            Math.min(SEGMENT_SIZE + 8, size - start));
+                }
+                if (getInt(0) != MAGIC) {
+                    throw new IOException("Not a scope index file: " + file);
+                }
+                int version = getInt(4);
+                if (version != VERSION) {
+                    throw new IOException("Unsupported scope index version "
+                            + version + ": " + file);
+                }
+                documentCount = getInt(8);
+                termCount = getInt(12);
+                kinds = new String[getInt(16)][KIND_FIELDS];
+                sentenceCount = getLong(20);
+                postingCount = getLong(28);
+                long kindsOffset = getLong(36);
+                documentsOffset = getLong(44);
+                sentencesOffset = getLong(52);
+                postingsOffset = getLong(60);
+                termsOffset = getLong(68);
+                long offset = kindsOffset;
+                for (String[] kind : kinds) {
+                    for (int f = 0; f < KIND_FIELDS; f++) {
+                        kind[f] = getString(offset);
+                        offset += 4 + getInt(offset);
+                    }
+                }
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        private int getInt(long offset) {
+            return segments[(int) (offset / SEGMENT_SIZE)].getInt((int) (offset % SEGMENT_SIZE));
+        }
+
+        private long getLong(long offset) {
+            return segments[(int) (offset / SEGMENT_SIZE)].getLong((int) (offset % SEGMENT_SIZE));
+        }
+
+        private String getString(long offset) throws UnsupportedEncodingException {
+            byte[] bytes = new byte[getInt(offset)];
+            for (int i = 0; i < bytes.length; i++) {
+                long o = offset + 4 + i;
+                bytes[i] = segments[(int) (o / SEGMENT_SIZE)].get((int) (o % SEGMENT_SIZE));
+            }
+            return new String(bytes, "UTF-8");
+        }
+
+        public int getDocumentCount()  { return documentCount; }
+        public long getSentenceCount() { return sentenceCount; }
+        public int getTermCount()      { return termCount; }
+        public long getPostingCount()  { return postingCount; }
+
+        /** The kinds of scopes, indexed by the KIND_* fields */
+        public List<String[]> getKinds() {
+            List<String[]> result = new ArrayList<String[]>(kinds.length);
+            for (String[] kind : kinds) result.add(kind.clone());
+            return result;
+        }
+
+        public String getDocumentName(int document) throws IOException {
+            return getString(getLong(documentsOffset + (long) DOCUMENT_SIZE * document + 8));
+        }
+
+        /** The document of a sentence */
+        public int getDocument(long sentence) {
+            int lo = 0, hi = documentCount - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (getLong(documentsOffset + (long) DOCUMENT_SIZE * mid) <= sentence) lo = mid;
+                else hi = mid - 1;
+            }
+            return lo;
+        }
+
+        public long getSentenceStart(long sentence) {
+            return getLong(sentencesOffset + SENTENCE_SIZE * sentence);
+        }
+
+        public long getSentenceEnd(long sentence) {
+            return getLong(sentencesOffset + SENTENCE_SIZE * sentence + 8);
+        }
+
+        public Hit getHit(long sentence) throws IOException {
+            return new Hit(sentence, getDocumentName(getDocument(sentence)),
+                           getSentenceStart(sentence), getSentenceEnd(sentence));
+        }
+
+        /** The index of a term in the term table, or -1 */
+        private int findTerm(String term) throws IOException {
+            int lo = 0, hi = termCount - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int c = getString(getLong(termsOffset + (long) TERM_SIZE * mid)).compareTo(term);
+                if (c == 0) return mid;
+                if (c < 0) lo = mid + 1;
+                else hi = mid - 1;
+            }
+            return -1;
+        }
+
+        /** The number of postings of a term */
+        public long getPostingCount(String term) throws IOException {
+            int t = findTerm(term(term));
+            return t < 0 ? 0 : getLong(termsOffset + (long) TERM_SIZE * t + 16);
+        }
+
+        /** The sentences matching a query, in index order */
+        public long[] find(Query query) throws IOException {
+            int n = query.terms.size();
+            if (n == 0) return new long[0];
+            // Postings of each term, rarest first
+            final long[] first = new long[n];
+            final long[] count = new long[n];
+            Integer[] order = new Integer[n];
+            for (int i = 0; i < n; i++) {
+                int t = findTerm(query.terms.get(i));
+                if (t < 0) return new long[0];
+                first[i] = getLong(termsOffset + (long) TERM_SIZE * t + 8);
+                count[i] = getLong(termsOffset + (long) TERM_SIZE * t + 16);
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return count[a] < count[b] ? -1 : (count[a] == count[b] ? 0 : 1);
+                }
+            });
+            long[] sentences = null;
+            for (int i : order) {
+                sentences = match(first[i], count[i], query.scopes.get(i), sentences);
+                if (sentences.length == 0) break;
+            }
+            return sentences;
+        }
+
+        /** The sentences with a token of these postings covered by all the
+         *  scopes, among the candidates (if not null) */
+        private long[] match(long first, long count, Scope[] scopes, long[] candidates) {
+            // The scopes matched by each kind
+            int all = (1 << scopes.length) - 1;
+            int[] matched = new int[kinds.length];
+            for (int k = 0; k < kinds.length; k++) {
+                for (int s = 0; s < scopes.length; s++) {
+                    if (scopes[s].matches(kinds[k])) matched[k] |= 1 << s;
+                }
+            }
+            LongList result = new LongList();
+            long p = 0;
+            int c = 0;
+            while (p < count) {
+                if (candidates != null) {
+                    if (c == candidates.length) break;
+                    p = lowerBound(first, p, count, candidates[c]);
+                    if (p == count) break;
+                    if (getSentence(first + p) != candidates[c++]) continue;
+                }
+                // The postings of the sentence, by token
+                long sentence = getSentence(first + p);
+                boolean found = false;
+                while (!found && p < count && getSentence(first + p) == sentence) {
+                    long offset = postingsOffset + POSTING_SIZE * (first + p);
+                    int token = getInt(offset + 8);
+                    int mask = 0;
+                    for (; p < count; p++) {
+                        offset = postingsOffset + POSTING_SIZE * (first + p);
+                        if (getLong(offset) != sentence || getInt(offset + 8) != token) break;
+                        mask |= matched[getInt(offset + 12)];
+                    }
+                    found = mask == all;
+                }
+                if (found) {
+                    result.add(sentence);
+                    while (p < count && getSentence(first + p) == sentence) p++;
+                }
+            }
+            return Arrays.copyOf(result.values, result.size);
+        }
+
+        private long getSentence(long posting) {
+            return getLong(postingsOffset + POSTING_SIZE * posting);
+        }
+
+        /** The first posting from p whose sentence is at least s */
+        private long lowerBound(long first, long p, long count, long s) {
+            long lo = p, hi = count;
+            while (lo < hi) {
+                long mid = (lo + hi) >>> 1;
+                if (getSentence(first + mid) < s) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public void close() throws IOException {
+            raf.close();
+        }
+    }
+
+    /** Query an index from the command line, printing the sentences found
+     *  (document, start and end offsets) */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: ScopeIndex index.scix query...");
+            System.err.println("  e.g. ScopeIndex index.scix \"recommend@negator\"");
+            System.exit(1);
+        }
+        Reader reader = new Reader(new File(args[0]));
+        try {
+            for (int i = 1; i < args.length; i++) {
+                long startTime = System.nanoTime();
+                long[] sentences = reader.find(Query.parse(args[i]));
+                long millis = (System.nanoTime() - startTime) / 1000000L;
+                for (long sentence : sentences) {
+                    System.out.println(reader.getHit(sentence));
+                }
+                System.err.println(args[i] + ": " + sentences.length + " sentences in "
+                                   + millis + " ms");
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /** A growing array of ints */
+    private static class IntList {
+        int[] values = new int[64];
+        int size = 0;
+
+        void add(int... v) {
+            if (size + v.length > values.length) {
+                values = Arrays.copyOf(values, Math.max(2 * values.length, size + v.length));
+            }
+            System.arraycopy(v, 0, values, size, v.length);
+            size += v.length;
+        }
+    }
+
+    /** A growing array of longs */
+    private static class LongList {
+        long[] values = new long[64];
+        int size = 0;
+
+        void add(long v) {
+            if (size == values.length) values = Arrays.copyOf(values, 2 * values.length);
+            values[size++] = v;
+        }
+    }
+
+    /** Counts the bytes written, for the offsets of the sections */
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /** A run file being merged */
+    private static class Run {
+        final int index;
+        final DataInputStream in;
+        int term;
+        int count;
+
+        Run(int index, File file) throws IOException {
+            this.index = index;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        }
+
+        /** Read the header of the next term, false at the end of the run */
+        boolean next() throws IOException {
+            try {
+                term = in.readInt();
+            } catch (EOFException e) {
+                return false;
+            }
+            count = in.readInt();
+            return true;
+        }
+    }
+
+    private static void copy(File file, OutputStream out) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[1 << 16];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
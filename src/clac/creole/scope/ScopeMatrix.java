@@ -0,0 +1,379 @@
+package clac.creole.scope;
+
+import java.io.*;
+import java.util.*;
+
+import gate.Annotation;
+
+/**
+ * The scopes covering each token of a sentence, for feature extraction
+ * (see the scopeMatrixFile parameter of Scoper). For every token, the matrix
+ * holds:
+ * <ul>
+ *   <li>a mask of the trigger types of the scopes it is in: bit i for
+ *       TYPES[i] (the predicate types, then any other type)</li>
+ *   <li>its depth: the number of scopes it is in</li>
+ *   <li>a mask of the polarities of the sentiment scopes it is in: bit i
+ *       for POLARITIES[i]</li>
+ * </ul>
+ * A token is in a scope if the scope contains it. Each sentence also has a
+ * status: SCOPED, or UNSAMPLED when its triggers were left out of the
+ * sample, or OUT_OF_BUDGET when some of its triggers were not (fully)
+ * scoped for lack of time. The tokens of a sentence which is not SCOPED may
+ * be in scopes which are missing from its matrix.
+ *
+ * Matrices are written to a binary file (big endian):
+ * <pre>
+ *   header:    int MAGIC, int VERSION, the TYPES and POLARITIES (each as
+ *              int count, then strings: int length, UTF-8 bytes)
+ *   documents: document id, output name (strings), int sentence count,
+ *              then for each sentence long start, long end, byte status,
+ *              int token count, and for each token int start and int end (relative
+ *              to the start of the sentence), short mask, short depth,
+ *              byte polarities
+ * </pre>
+ * The output name is empty for the output annotation set of Scoper, and
+ * the configuration name in sweep mode.
+ */
+public class ScopeMatrix {
+
+    public static final int MAGIC   = 0x53434d58; // "SCMX"
+    public static final int VERSION = 2;
+
+    /** Status of a sentence whose triggers were all scoped */
+    public static final byte SCOPED        = 0;
+    /** Status of a sentence whose triggers were all left out of the sample */
+    public static final byte UNSAMPLED     = 1;
+    /** Status of a sentence whose triggers were not all (fully) scoped, as
+     *  a time budget ran out */
+    public static final byte OUT_OF_BUDGET = 2;
+
+    /** Trigger types of the bits of the masks */
+    public static final String[] TYPES;
+    /** Bit of scopes whose trigger type is not a predicate type */
+    public static final int OTHER = Scoper.PREDICATE_ALL.length;
+    /** Polarities of the bits of the polarity masks */
+    public static final String[] POLARITIES = Scoper.SENTIMENT_ALL;
+
+    static {
+        TYPES = Arrays.copyOf(Scoper.PREDICATE_ALL, Scoper.PREDICATE_ALL.length + 1);
+        TYPES[OTHER] = "other";
+    }
+
+    /** Writers shared between workers, by output file */
+    private static final SharedResources<Writer> WRITERS = new SharedResources<Writer>() {
+        protected Writer open(File file) throws IOException {
+            return new Writer(file);
+        }
+    };
+
+    private final long start;
+    private final long end;
+    private final byte status;
+    private final int[] tokenStart;
+    private final int[] tokenEnd;
+    private final short[] mask;
+    private final short[] depth;
+    private final byte[] polarity;
+
+    private ScopeMatrix(long start, long end, byte status, int tokens) {
+        this.start = start;
+        this.end = end;
+        this.status = status;
+        this.tokenStart = new int[tokens];
+        this.tokenEnd = new int[tokens];
+        this.mask = new short[tokens];
+        this.depth = new short[tokens];
+        this.polarity = new byte[tokens];
+    }
+
+    public long getStart() { return start; }
+    public long getEnd()   { return end; }
+    /** SCOPED, UNSAMPLED or OUT_OF_BUDGET: unless SCOPED, tokens in no
+     *  scope may be in scopes which were not looked for */
+    public byte getStatus() { return status; }
+
+    public int getTokenCount() { return mask.length; }
+
+    public long getTokenStart(int t) { return start + tokenStart[t]; }
+    public long getTokenEnd(int t)   { return start + tokenEnd[t]; }
+    /** The mask of the trigger types of the scopes a token is in */
+    public int getMask(int t)        { return mask[t]; }
+    /** The number of scopes a token is in */
+    public int getDepth(int t)       { return depth[t]; }
+    /** The mask of the polarities of the sentiment scopes a token is in */
+    public int getPolarity(int t)    { return polarity[t]; }
+
+    /** Whether a token is in the scope of a trigger of a type (one of TYPES) */
+    public boolean isInScope(int t, String type) {
+        int bit = Arrays.asList(TYPES).indexOf(type);
+        return bit >= 0 && (mask[t] & (1 << bit)) != 0;
+    }
+
+    /** Compute the matrices of the sentences of a document, in a single
+     *  sweep over its tokens and scopes.
+     * @param sentences  the offsets of the sentences ({ start, end }), in
+     *                   document order
+     * @param status     the status of each sentence, or null if all are
+     *                   SCOPED
+     * @param tokenStart the start offsets of the tokens, in document order
+     * @param tokenEnd   the end offsets of the tokens (tokens do not overlap)
+     * @param scopes     the Scope annotations of the document
+     */
+    public static List<ScopeMatrix> build(List<long[]> sentences, byte[] status,
+            long[] tokenStart, long[] tokenEnd, Collection<Annotation> scopes) {
+        int n = scopes.size();
+        long[] scopeStart = new long[n];
+        long[] scopeEnd = new long[n];
+        int[] scopeType = new int[n];
+        int[] scopePolarity = new int[n];
+        Integer[] byStart = new Integer[n];
+        Integer[] byEnd = new Integer[n];
+        int i = 0;
+        for (Annotation scope : scopes) {
+            scopeStart[i] = scope.getStartNode().getOffset();
+            scopeEnd[i] = scope.getEndNode().getOffset();
+            Object type = scope.getFeatures().get(Scoper.TRIGGER_TYPE_FEATURE);
+            int bit = type == null ? -1 : Arrays.asList(Scoper.PREDICATE_ALL).indexOf(type);
+            scopeType[i] = bit < 0 ? OTHER : bit;
+            scopePolarity[i] = Scoper.PREDICATE_SENTIMENT.equals(type)
+                    ? Arrays.asList(POLARITIES).indexOf(
+                          scope.getFeatures().get(Scoper.TRIGGER_POLARITY_FEATURE))
+                    : -1;
+            byStart[i] = i;
+            byEnd[i] = i;
+            i++;
+        }
+        Arrays.sort(byStart, byOffset(scopeStart));
+        Arrays.sort(byEnd, byOffset(scopeEnd));
+
+        // Scopes are added once they start at or before the token, and
+        // removed once they end before the end of the token
+        int[] typeCount = new int[TYPES.length];
+        int[] polarityCount = new int[POLARITIES.length];
+        int active = 0;
+        byte[] state = new byte[n]; // 0: not started, 1: active, 2: ended
+        int added = 0, removed = 0, t = 0;
+        List<ScopeMatrix> matrices = new ArrayList<ScopeMatrix>(sentences.size());
+        for (int j = 0; j < sentences.size(); j++) {
+            long[] sentence = sentences.get(j);
+            while (t < tokenStart.length && tokenStart[t] < sentence[0]) t++;
+            int first = t;
+            while (t < tokenStart.length && tokenEnd[t] <= sentence[1]) t++;
+            ScopeMatrix matrix = new ScopeMatrix(sentence[0], sentence[1],
+                    status == null ? SCOPED : status[j], t - first);
+            for (int k = first; k < t; k++) {
+                for (; added < n && scopeStart[byStart[added]] <= tokenStart[k]; added++) {
+                    int s = byStart[added];
+                    if (state[s] != 0) continue;
+                    state[s] = 1;
+                    active++;
+                    typeCount[scopeType[s]]++;
+                    if (scopePolarity[s] >= 0) polarityCount[scopePolarity[s]]++;
+                }
+                for (; removed < n && scopeEnd[byEnd[removed]] < tokenEnd[k]; removed++) {
+                    int s = byEnd[removed];
+                    if (state[s] == 1) {
+                        active--;
+                        typeCount[scopeType[s]]--;
+                        if (scopePolarity[s] >= 0) polarityCount[scopePolarity[s]]--;
+                    }
+                    state[s] = 2;
+                }
+                int m = k - first;
+                matrix.tokenStart[m] = (int) (tokenStart[k] - sentence[0]);
+                matrix.tokenEnd[m] = (int) (tokenEnd[k] - sentence[0]);
+                matrix.depth[m] = (short) Math.min(active, Short.MAX_VALUE);
+                for (int b = 0; b < TYPES.length; b++) {
+                    if (typeCount[b] > 0) matrix.mask[m] |= 1 << b;
+                }
+                for (int b = 0; b < POLARITIES.length; b++) {
+                    if (polarityCount[b] > 0) matrix.polarity[m] |= 1 << b;
+                }
+            }
+            matrices.add(matrix);
+        }
+        return matrices;
+    }
+
+    private static Comparator<Integer> byOffset(final long[] offsets) {
+        return new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return offsets[a] < offsets[b] ? -1 : (offsets[a] == offsets[b] ? 0 : 1);
+            }
+        };
+    }
+
+    /** Get the writer of a file (see SharedResources) */
+    public static Writer acquireWriter(File file) throws IOException {
+        return WRITERS.acquire(file);
+    }
+
+    /** Release a writer, closing it if this is its last user */
+    public static void releaseWriter(Writer writer) throws IOException {
+        if (WRITERS.release(writer.file)) writer.close();
+    }
+
+    /** Writes the matrices of documents to a file, each as a whole */
+    public static class Writer {
+        private final File file;
+        private final DataOutputStream out;
+
+        public Writer(File file) throws IOException {
+            this.file = file;
+            this.out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeStrings(out, TYPES);
+            writeStrings(out, POLARITIES);
+        }
+
+        /** Write the matrices of the sentences of a document */
+        public void writeDocument(String name, String output, List<ScopeMatrix> matrices)
+                throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream doc = new DataOutputStream(bytes);
+            writeString(doc, name);
+            writeString(doc, output == null ? "" : output);
+            doc.writeInt(matrices.size());
+            for (ScopeMatrix matrix : matrices) {
+                doc.writeLong(matrix.start);
+                doc.writeLong(matrix.end);
+                doc.writeByte(matrix.status);
+                doc.writeInt(matrix.mask.length);
+                for (int t = 0; t < matrix.mask.length; t++) {
+                    doc.writeInt(matrix.tokenStart[t]);
+                    doc.writeInt(matrix.tokenEnd[t]);
+                    doc.writeShort(matrix.mask[t]);
+                    doc.writeShort(matrix.depth[t]);
+                    doc.writeByte(matrix.polarity[t]);
+                }
+            }
+            doc.flush();
+            synchronized (this) {
+                bytes.writeTo(out);
+            }
+        }
+
+        public synchronized void close() throws IOException {
+            out.close();
+        }
+
+        public File getFile() {
+            return file;
+        }
+    }
+
+    /** The matrices of a document, as read from a file */
+    public static class Document {
+        public final String name;
+        public final String output;
+        public final List<ScopeMatrix> sentences;
+
+        Document(String name, String output, List<ScopeMatrix> sentences) {
+            this.name = name;
+            this.output = output;
+            this.sentences = sentences;
+        }
+    }
+
+    /** Reads the documents of a file, in the order they were written */
+    public static class Reader {
+        private final File file;
+        private final DataInputStream in;
+        private final String[] types;
+        private final String[] polarities;
+
+        public Reader(File file) throws IOException {
+            this.file = file;
+            this.in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Not a scope matrix file: " + file);
+                }
+                int version = in.readInt();
+                if (version != VERSION) {
+                    throw new IOException("Unsupported scope matrix version "
+                            + version + ": " + file);
+                }
+                types = readStrings(in);
+                polarities = readStrings(in);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        /** The trigger types of the bits of the masks, as written */
+        public String[] getTypes() {
+            return types.clone();
+        }
+
+        /** The polarities of the bits of the polarity masks, as written */
+        public String[] getPolarities() {
+            return polarities.clone();
+        }
+
+        /** Read the next document, or null at the end of the file */
+        public Document read() throws IOException {
+            String name;
+            try {
+                name = readString(in);
+            } catch (EOFException e) {
+                return null;
+            }
+            String output = readString(in);
+            int n = in.readInt();
+            List<ScopeMatrix> sentences = new ArrayList<ScopeMatrix>(n);
+            for (int i = 0; i < n; i++) {
+                long start = in.readLong();
+                long end = in.readLong();
+                byte status = in.readByte();
+                ScopeMatrix matrix = new ScopeMatrix(start, end, status, in.readInt());
+                for (int t = 0; t < matrix.mask.length; t++) {
+                    matrix.tokenStart[t] = in.readInt();
+                    matrix.tokenEnd[t] = in.readInt();
+                    matrix.mask[t] = in.readShort();
+                    matrix.depth[t] = in.readShort();
+                    matrix.polarity[t] = in.readByte();
+                }
+                sentences.add(matrix);
+            }
+            return new Document(name, output, sentences);
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] strings)
+            throws IOException {
+        out.writeInt(strings.length);
+        for (String s : strings) writeString(out, s);
+    }
+
+    private static String[] readStrings(DataInputStream in) throws IOException {
+        String[] strings = new String[in.readInt()];
+        for (int i = 0; i < strings.length; i++) strings[i] = readString(in);
+        return strings;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
@@ -0,0 +1,30 @@
+package clac.creole.scope;
+
+/**
+ * Turns the tokens selected by a scope heuristic into a scope span.
+ *
+ * PHRASE uses the syntax tree (SyntaxTreeNode annotations), as Scoper
+ * always did. DEPENDENCY only uses the dependency graph, so Scoper can
+ * run after a dependency parser without constituency trees.
+ */
+public interface ScopeResolver {
+
+    ScopeResolver PHRASE     = new PhraseScopeResolver();
+    ScopeResolver DEPENDENCY = new DependencyScopeResolver();
+
+    /** The smallest unit covering all tokens (see Scoper.getPhrase).
+     * @return the scope, or null if there is none */
+    ScopeHeuristics.Candidate resolve(ScoperSentence s, int[] tokens, String heuristic);
+
+    /** The largest unit covering all tokens but not the trigger, or
+     *  resolve(s, tokens, heuristic) if there is none (see Scoper.getPhrase).
+     * @return the scope, or null if there is none */
+    ScopeHeuristics.Candidate resolve(ScoperSentence s, int trigger, int[] tokens,
+                                      String heuristic);
+
+    /** As above, but without falling back to resolve(s, tokens, heuristic)
+     *  once System.nanoTime() has passed the deadline (0 for none).
+     * @return the scope, or null if there is none */
+    ScopeHeuristics.Candidate resolve(ScoperSentence s, int trigger, int[] tokens,
+                                      String heuristic, long deadline);
+}
@@ -0,0 +1,64 @@
+package clac.creole.scope;
+
+import gate.Annotation;
+import gate.FeatureMap;
+
+/**
+ * A scope found by Scoper, as streamed to the subscribers of Scoper
+ * (see ScoperFlow).
+ */
+public class ScopeResult {
+
+    private final String document;
+    private final String configuration;
+    private final Integer triggerId;
+    private final long triggerStart;
+    private final long triggerEnd;
+    private final Integer scopeId;
+    private final long scopeStart;
+    private final long scopeEnd;
+    private final String heuristic;
+    /** Values of Scoper.SCOPE_INHERITED_FEATURES */
+    private final String[] features;
+
+    public ScopeResult(String document, String configuration, Annotation trigger,
+                       Integer scopeId, long scopeStart, long scopeEnd, String heuristic) {
+        this.document = document;
+        this.configuration = configuration;
+        this.triggerId = trigger.getId();
+        this.triggerStart = trigger.getStartNode().getOffset();
+        this.triggerEnd = trigger.getEndNode().getOffset();
+        this.scopeId = scopeId;
+        this.scopeStart = scopeStart;
+        this.scopeEnd = scopeEnd;
+        this.heuristic = heuristic;
+        FeatureMap triggerFeatures = trigger.getFeatures();
+        this.features = new String[Scoper.SCOPE_INHERITED_FEATURES.length];
+        for (int f = 0; f < features.length; f++) {
+            Object value = triggerFeatures.get(Scoper.SCOPE_INHERITED_FEATURES[f]);
+            features[f] = value == null ? null : value.toString();
+        }
+    }
+
+    /** Id of the document (see Scoper.getDocumentId) */
+    public String getDocument()      { return document; }
+    /** Name of the sweep configuration, or null */
+    public String getConfiguration() { return configuration; }
+    public Integer getTriggerId()    { return triggerId; }
+    public long getTriggerStart()    { return triggerStart; }
+    public long getTriggerEnd()      { return triggerEnd; }
+    public Integer getScopeId()      { return scopeId; }
+    public long getScopeStart()      { return scopeStart; }
+    public long getScopeEnd()        { return scopeEnd; }
+    public String getHeuristic()     { return heuristic; }
+
+    public String getType()           { return features[0]; }
+    public String getMinorType()      { return features[1]; }
+    public String getPriorPolarity()  { return features[2]; }
+    public String getSentimentScore() { return features[3]; }
+
+    public String toString() {
+        return document + ":" + triggerId + " [" + triggerStart + "," + triggerEnd
+             + "] -> (" + heuristic + ") [" + scopeStart + "," + scopeEnd + "]";
+    }
+}
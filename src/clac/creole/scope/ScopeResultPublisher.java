@@ -0,0 +1,119 @@
+package clac.creole.scope;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import gate.Executable;
+
+/**
+ * Publishes items to any number of subscribers, respecting their demand:
+ * publish() blocks until every subscriber has requested the item (or
+ * cancelled), so a slow subscriber throttles the publishing thread instead
+ * of items being buffered. Items may be published by several threads,
+ * each subscriber receives them one at a time. A publishing thread waiting
+ * for demand also gives up when the execution it runs for is interrupted,
+ * so that a subscriber which stops requesting cannot hold a controller.
+ */
+public class ScopeResultPublisher<T> implements ScoperFlow.Publisher<T> {
+
+    /** How often a publisher waiting for demand checks whether its
+     *  execution was interrupted, in milliseconds */
+    public static final long POLL_MILLIS = 100L;
+
+    private final List<DemandSubscription> subscriptions =
+            new CopyOnWriteArrayList<DemandSubscription>();
+
+    public void subscribe(ScoperFlow.Subscriber<? super T> subscriber) {
+        if (subscriber == null) throw new NullPointerException("subscriber");
+        DemandSubscription subscription = new DemandSubscription(subscriber);
+        subscriptions.add(subscription);
+        subscriber.onSubscribe(subscription);
+    }
+
+    /** Whether there are subscribers, i.e. whether items need to be built */
+    public boolean hasSubscribers() {
+        return !subscriptions.isEmpty();
+    }
+
+    /** Send an item to every subscriber, waiting for their demand */
+    public void publish(T item) throws InterruptedException {
+        publish(item, null);
+    }
+
+    /** Send an item to every subscriber, waiting for their demand unless
+     *  an execution (or null) is interrupted. GATE interrupts only set a
+     *  flag, which is checked every POLL_MILLIS while waiting.
+     * @throws InterruptedException if the thread or the execution was
+     *         interrupted while waiting */
+    public void publish(T item, Executable execution) throws InterruptedException {
+        for (DemandSubscription subscription : subscriptions) {
+            subscription.deliver(item, execution);
+        }
+    }
+
+    /** Complete all subscriptions */
+    public void complete() {
+        for (DemandSubscription subscription : subscriptions) {
+            subscription.complete(null);
+        }
+    }
+
+    /** Complete all subscriptions with an error */
+    public void error(Throwable throwable) {
+        for (DemandSubscription subscription : subscriptions) {
+            subscription.complete(throwable);
+        }
+    }
+
+    private class DemandSubscription implements ScoperFlow.Subscription {
+        private final ScoperFlow.Subscriber<? super T> subscriber;
+        private long demand = 0;
+        private boolean done = false;
+
+        DemandSubscription(ScoperFlow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        public synchronized void request(long n) {
+            if (done) return;
+            if (n <= 0) {
+                complete(new IllegalArgumentException(
+                        "Non-positive request: " + n));
+                return;
+            }
+            demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            notifyAll();
+        }
+
+        public synchronized void cancel() {
+            done = true;
+            subscriptions.remove(this);
+            notifyAll();
+        }
+
+        synchronized void deliver(T item, Executable execution)
+                throws InterruptedException {
+            while (demand == 0 && !done) {
+                if (execution != null && execution.isInterrupted()) {
+                    throw new InterruptedException("Execution interrupted");
+                }
+                wait(POLL_MILLIS);
+            }
+            if (done) return;
+            if (demand != Long.MAX_VALUE) demand--;
+            subscriber.onNext(item);
+        }
+
+        synchronized void complete(Throwable throwable) {
+            if (done) return;
+            done = true;
+            subscriptions.remove(this);
+            notifyAll();
+            if (throwable == null) {
+                subscriber.onComplete();
+            } else {
+                subscriber.onError(throwable);
+            }
+        }
+    }
+}
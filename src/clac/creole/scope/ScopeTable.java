@@ -0,0 +1,180 @@
+package clac.creole.scope;
+
+import java.util.*;
+
+/**
+ * The scope each heuristic finds for every token of a sentence.
+ *
+ * The heuristics only depend on the token of a trigger, its POS and its
+ * dependencies, so a table computed once per sentence can scope any set of
+ * triggers: Scoper looks the scopes up, and keeps the first one, without
+ * going through the syntax tree or the dependencies again (see the
+ * useScopeTable parameter). The tables of a document are kept in a document
+ * feature, as text:
+ * <pre>
+ *   scopeTable  VERSION  resolver
+ *   S  start  end  token offsets (start end start end ...)
+ *   C  token  heuristic  start  end  name
+ * </pre>
+ * with one S line per sentence, followed by a C line for each scope found.
+ * Tables are matched to sentences by offsets: the feature must be removed
+ * when the document is parsed again.
+ */
+public class ScopeTable {
+
+    public static final int VERSION = 1;
+
+    private static final String HEADER = "scopeTable";
+
+    private final long start;
+    private final long end;
+    private final long[] tokenStart;
+    private final long[] tokenEnd;
+    // Scopes by token * HEURISTIC_COUNT + heuristic
+    private final ScopeHeuristics.Candidate[] scopes;
+
+    private ScopeTable(long start, long end, long[] tokenStart, long[] tokenEnd) {
+        this.start = start;
+        this.end = end;
+        this.tokenStart = tokenStart;
+        this.tokenEnd = tokenEnd;
+        this.scopes = new ScopeHeuristics.Candidate[
+                tokenStart.length * ScopeHeuristics.HEURISTIC_COUNT];
+    }
+
+    /** Apply every heuristic to every token of a sentence, until
+     *  System.nanoTime() passes the deadline (0 for none).
+     * @return the table, or null if it was cut short by the deadline */
+    public static ScopeTable compute(ScoperSentence s, ScopeResolver resolver,
+                                     long deadline) {
+        int n = s.getTokenCount();
+        long[] tokenStart = new long[n];
+        long[] tokenEnd = new long[n];
+        for (int t = 0; t < n; t++) {
+            tokenStart[t] = s.getTokenStart(t);
+            tokenEnd[t] = s.getTokenEnd(t);
+        }
+        ScopeTable table = new ScopeTable(s.getStart(), s.getEnd(), tokenStart, tokenEnd);
+        for (int t = 0; t < n; t++) {
+            ScopeHeuristics.Candidate[] candidates =
+                    ScopeHeuristics.applyAll(s, t, resolver, deadline);
+            if (candidates == null) return null;
+            System.arraycopy(candidates, 0, table.scopes,
+                    t * ScopeHeuristics.HEURISTIC_COUNT, candidates.length);
+        }
+        return table;
+    }
+
+    public long getStart() { return start; }
+    public long getEnd()   { return end; }
+
+    public int getTokenCount() { return tokenStart.length; }
+
+    /** The index of the token with these offsets, or -1 (see
+     *  ScoperSentence.getToken) */
+    public int getToken(long s, long e) {
+        int lo = 0, hi = tokenStart.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (tokenStart[mid] < s) lo = mid + 1;
+            else hi = mid - 1;
+        }
+        for (int t = lo; t < tokenStart.length && tokenStart[t] == s; t++) {
+            if (tokenEnd[t] == e) return t;
+        }
+        return -1;
+    }
+
+    /** The scope found by a heuristic for a token, or null */
+    public ScopeHeuristics.Candidate get(int token, int heuristic) {
+        return scopes[token * ScopeHeuristics.HEURISTIC_COUNT + heuristic];
+    }
+
+    /** The key of the table of a sentence in the map returned by decode() */
+    public static String key(long start, long end) {
+        return start + ":" + end;
+    }
+
+    /** Write the tables of a document */
+    public static String encode(Collection<ScopeTable> tables, ScopeResolver resolver) {
+        List<ScopeTable> sorted = new ArrayList<ScopeTable>(tables);
+        Collections.sort(sorted, new Comparator<ScopeTable>() {
+            public int compare(ScopeTable t1, ScopeTable t2) {
+                if (t1.start != t2.start) return t1.start < t2.start ? -1 : 1;
+                return t1.end < t2.end ? -1 : t1.end == t2.end ? 0 : 1;
+            }
+        });
+        StringBuilder sb = new StringBuilder();
+        sb.append(HEADER).append('\t').append(VERSION).append('\t')
+          .append(resolverName(resolver)).append('\n');
+        for (ScopeTable table : sorted) {
+            sb.append("S\t").append(table.start).append('\t').append(table.end).append('\t');
+            for (int t = 0; t < table.tokenStart.length; t++) {
+                if (t > 0) sb.append(' ');
+                sb.append(table.tokenStart[t]).append(' ').append(table.tokenEnd[t]);
+            }
+            sb.append('\n');
+            for (int i = 0; i < table.scopes.length; i++) {
+                ScopeHeuristics.Candidate scope = table.scopes[i];
+                if (scope == null) continue;
+                sb.append("C\t").append(i / ScopeHeuristics.HEURISTIC_COUNT)
+                  .append('\t').append(i % ScopeHeuristics.HEURISTIC_COUNT)
+                  .append('\t').append(scope.startOffset).append('\t').append(scope.endOffset)
+                  .append('\t').append(ScoperJournal.escape(scope.heuristic)).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    /** Read the tables of a document, by sentence (see key()).
+     * @return the tables, or an empty map if they were written by another
+     *         version or for another resolver */
+    public static Map<String, ScopeTable> decode(String text, ScopeResolver resolver) {
+        Map<String, ScopeTable> tables = new HashMap<String, ScopeTable>();
+        String[] lines = text.split("\n");
+        String[] header = lines[0].split("\t", -1);
+        if (header.length != 3 || !header[0].equals(HEADER)
+                || !header[1].equals(String.valueOf(VERSION))
+                || !header[2].equals(resolverName(resolver))) {
+            System.err.println("Warning: ignoring scope table of another version or resolver");
+            return tables;
+        }
+        ScopeTable table = null;
+        try {
+            for (int l = 1; l < lines.length; l++) {
+                String[] fields = lines[l].split("\t", -1);
+                if (fields[0].equals("S") && fields.length == 4) {
+                    String[] offsets = fields[3].length() == 0 ? new String[0]
+                                                               : fields[3].split(" ");
+                    long[] tokenStart = new long[offsets.length / 2];
+                    long[] tokenEnd = new long[offsets.length / 2];
+                    for (int t = 0; t < tokenStart.length; t++) {
+                        tokenStart[t] = Long.parseLong(offsets[2 * t]);
+                        tokenEnd[t] = Long.parseLong(offsets[2 * t + 1]);
+                    }
+                    table = new ScopeTable(Long.parseLong(fields[1]),
+                            Long.parseLong(fields[2]), tokenStart, tokenEnd);
+                    tables.put(key(table.start, table.end), table);
+                } else if (fields[0].equals("C") && fields.length == 6 && table != null) {
+                    int token = Integer.parseInt(fields[1]);
+                    int heuristic = Integer.parseInt(fields[2]);
+                    table.scopes[token * ScopeHeuristics.HEURISTIC_COUNT + heuristic] =
+                            new ScopeHeuristics.Candidate(Long.parseLong(fields[3]),
+                                    Long.parseLong(fields[4]),
+                                    ScoperJournal.unescape(fields[5]));
+                } else {
+                    throw new IllegalArgumentException(lines[l]);
+                }
+            }
+        } catch (RuntimeException e) {
+            // NumberFormatException, ArrayIndexOutOfBoundsException, ...
+            System.err.println("Warning: ignoring invalid scope table: " + e);
+            tables.clear();
+        }
+        return tables;
+    }
+
+    private static String resolverName(ScopeResolver resolver) {
+        return resolver == ScopeResolver.DEPENDENCY ? "dependency" : "phrase";
+    }
+}
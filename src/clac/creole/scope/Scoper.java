@@ -20,6 +20,7 @@ package clac.creole.scope;
 import gate.stanford.Parser;
 
 import java.io.*;
+import java.net.*;
 import java.util.*;
 
 import gate.*;
@@ -33,7 +34,8 @@ import gate.util.*;
 @CreoleResource(name = "Scoper",
         comment = "Annotates Scope of a Trigger List")
 public class Scoper extends AbstractLanguageAnalyser
-        implements ProcessingResource {
+        implements ProcessingResource, ControllerAwarePR,
+                   ScoperFlow.Publisher<ScopeResult> {
 
     // Parameters
     protected String inputAnnotationSetName;
@@ -46,10 +48,35 @@ public class Scoper extends AbstractLanguageAnalyser
     protected boolean enableNegatorScope;
     protected boolean enableNomScope;
     protected boolean enableGrammarScope;
-
-    // Private attributes
-    private AnnotationSet inAnns;
-    private AnnotationSet outAnns;
+    protected URL statisticsFile;
+    protected Integer sentenceWindowSize;
+    protected URL sentenceCacheFile;
+    protected boolean readSentenceCache;
+    protected List<String> sweepConfigurations;
+    protected URL eventLogFile;
+    protected boolean useDependencyScope;
+    protected Integer documentTimeBudget;
+    protected Integer sentenceTimeBudget;
+    protected boolean logHeuristicEvents;
+    protected boolean useScopeTable;
+    protected Double samplingRate;
+    protected List<String> samplingRates;
+    protected Long samplingSeed;
+    protected URL scopeMatrixFile;
+    protected URL scopeIndexFile;
+    protected boolean warnMultipleScopes;
+
+    // Private attributes (shared by all executions)
+    private volatile ScoperStatistics statistics;
+    private ScoperEvents.LogListener eventLog;
+    private volatile ScopeMatrix.Writer matrixWriter;
+    private volatile ScopeIndex.Writer indexWriter;
+    // Sentence cache
+    private ScoperCache.Writer cacheWriter;
+    private ScoperCache.Reader cacheReader;
+    // Subscribers to the scopes found in PHASE 1
+    private final ScopeResultPublisher<ScopeResult> results =
+            new ScopeResultPublisher<ScopeResult>();
 
     /// CONSTANTS ///
 
@@ -66,6 +93,17 @@ public class Scoper extends AbstractLanguageAnalyser
     public static final String TRIGGER_SCOPEID_FEATURE      = "scopeID";
     public static final String TRIGGER_SCOPESTRING_FEATURE  = "scopeString";
     public static final String TRIGGER_RSCOPEIDS_FEATURE    = "rScopeIDs";
+    public static final String TRIGGER_DEGRADED_FEATURE     = "degraded";
+    /** Set to "false" on the triggers left out of the sample (see samplingRate) */
+    public static final String TRIGGER_SAMPLED_FEATURE      = "sampled";
+
+    // Degradations (values of TRIGGER_DEGRADED_FEATURE)
+    /** The sentence ran out of time, expensive heuristics were skipped */
+    public static final String DEGRADED_SENTENCE_BUDGET = "sentenceBudget";
+    /** The document ran out of time, the trigger was not scoped */
+    public static final String DEGRADED_DOCUMENT_BUDGET = "documentBudget";
+    /** The trigger is outside of any sentence, it was not scoped */
+    public static final String DEGRADED_NO_SENTENCE     = "noSentence";
 
     // Scope
     public static final String SCOPE_ANNOTATION_TYPE        = "Scope";
@@ -76,6 +114,10 @@ public class Scoper extends AbstractLanguageAnalyser
             { TRIGGER_TYPE_FEATURE, TRIGGER_MINORTYPE_FEATURE,
               TRIGGER_POLARITY_FEATURE, TRIGGER_SCORE_FEATURE };
 
+    // Document
+    /** Scopes of every token for every heuristic (see ScopeTable) */
+    public static final String DOCUMENT_SCOPETABLE_FEATURE  = "scopeTable";
+
     // Token
     public static final String TOKEN_ANNOTATION_TYPE  = ANNIEConstants.TOKEN_ANNOTATION_TYPE;
     public static final String TOKEN_STRING_FEATURE   = ANNIEConstants.TOKEN_STRING_FEATURE_NAME;
@@ -140,77 +182,682 @@ public class Scoper extends AbstractLanguageAnalyser
 
     /** Execute PR over a single document */
     public void execute() throws ExecutionException {
+        interrupted = false;
+        execute(document);
+    }
 
-        inAnns  = document.getAnnotations(inputAnnotationSetName);
-        outAnns = document.getAnnotations(outputAnnotationSetName);
+    /** Execute PR over a document.
+     * All the state of an execution is kept in its ExecutionContext, so a
+     * single configured instance can process several documents concurrently
+     * (but not the same document). */
+    public void execute(Document document) throws ExecutionException {
 
         if (document == null) {
             throw new GateRuntimeException("No document to process!");
         }
 
-        AnnotationSet triggers = inAnns.get(triggerAnnName);
+        long startTime = ScoperEvents.isEnabled() ? System.nanoTime() : 0L;
+        ExecutionContext ctx = new ExecutionContext(document);
+        ctx.inAnns  = document.getAnnotations(inputAnnotationSetName);
+        ctx.outAnns = document.getAnnotations(outputAnnotationSetName);
+        ctx.statistics = statistics;
+        if (documentTimeBudget != null && documentTimeBudget > 0) {
+            ctx.deadline = System.nanoTime() + documentTimeBudget * 1000000L;
+        }
+
+        if (ctx.statistics != null) {
+            ctx.statistics.recordDocument();
+        }
+
+        // Read the parsed sentences from the cache, or prepare to write them
+        openSentenceCache(ctx);
+        if (isSampling()) {
+            try {
+                ctx.sampler = new ScoperSampler(samplingRate == null ? 1.0 : samplingRate,
+                        samplingRates, samplingSeed == null ? 0L : samplingSeed);
+            } catch (IllegalArgumentException e) {
+                throw new ExecutionException(e.getMessage(), e);
+            }
+            ctx.unsampled = Collections.newSetFromMap(new IdentityHashMap<Annotation, Boolean>());
+        }
+        if (useScopeTable) {
+            Object tables = document.getFeatures().get(DOCUMENT_SCOPETABLE_FEATURE);
+            ctx.scopeTables = tables instanceof String
+                    ? ScopeTable.decode((String) tables, getResolver())
+                    : new HashMap<String, ScopeTable>();
+        }
+
+        if (matrixWriter != null || indexWriter != null) {
+            ctx.sentenceStatus = new HashMap<Integer, Byte>();
+        }
+
+        try {
+            ctx.outputs = createOutputs(ctx);
+            if (sentenceWindowSize == null || sentenceWindowSize <= 0) {
+                AnnotationSet triggers = ctx.inAnns.get(triggerAnnName);
+                annotateScopes(ctx, triggers);
+                propagateScopes(ctx, triggers);
+            } else {
+                executeWindows(ctx, sentenceWindowSize);
+            }
+            if (ctx.cacheSentences != null) {
+                ctx.cacheWriter.writeDocument(ctx.documentId, ctx.cacheSentences);
+            }
+            if (ctx.scopeTablesChanged) {
+                document.getFeatures().put(DOCUMENT_SCOPETABLE_FEATURE,
+                        ScopeTable.encode(ctx.scopeTables.values(), getResolver()));
+            }
+            if (matrixWriter != null || indexWriter != null) {
+                DocumentTokens tokens = new DocumentTokens(ctx, sentenceAnnName);
+                writeScopeMatrices(ctx, tokens);
+                writeScopeIndex(ctx, tokens);
+            }
+            if (startTime != 0L) {
+                ScoperEvents.documentExecuted(document.getName(), ctx.triggers,
+                        ctx.scopes, System.nanoTime() - startTime);
+            }
+        } catch (IOException e) {
+            throw new ExecutionException("Could not write to sentence cache "
+                    + ctx.cacheWriter.getFile(), e);
+        }
+    }
+
+    /** The sentences and tokens of a document, for the scope matrices and
+     *  the scope index */
+    private static class DocumentTokens {
+        final List<long[]> sentences = new ArrayList<long[]>();
+        /** The status of each sentence (see ScopeMatrix.getStatus) */
+        final byte[] sentenceStatus;
+        final long[] tokenStart;
+        final long[] tokenEnd;
+        final String[] tokenString;
+
+        DocumentTokens(ExecutionContext ctx, String sentenceAnnName) {
+            List<Annotation> annotations =
+                    gate.Utils.inDocumentOrder(ctx.inAnns.get(sentenceAnnName));
+            sentenceStatus = new byte[annotations.size()];
+            for (Annotation sentence : annotations) {
+                Byte status = ctx.sentenceStatus.get(sentence.getId());
+                if (status != null) sentenceStatus[sentences.size()] = status;
+                sentences.add(new long[] { sentence.getStartNode().getOffset(),
+                                           sentence.getEndNode().getOffset() });
+            }
+            // Tokens from the cached sentences, or from the annotations
+            if (ctx.cachedSentences != null) {
+                int n = 0;
+                for (ScoperSentence s : ctx.cachedSentences) n += s.getTokenCount();
+                tokenStart = new long[n];
+                tokenEnd = new long[n];
+                tokenString = new String[n];
+                n = 0;
+                for (ScoperSentence s : ctx.cachedSentences) {
+                    for (int t = 0; t < s.getTokenCount(); t++, n++) {
+                        tokenStart[n] = s.getTokenStart(t);
+                        tokenEnd[n] = s.getTokenEnd(t);
+                        tokenString[n] = s.getTokenString(t);
+                    }
+                }
+            } else {
+                List<Annotation> tokens =
+                        gate.Utils.inDocumentOrder(ctx.inAnns.get(TOKEN_ANNOTATION_TYPE));
+                tokenStart = new long[tokens.size()];
+                tokenEnd = new long[tokens.size()];
+                tokenString = new String[tokens.size()];
+                for (int t = 0; t < tokens.size(); t++) {
+                    Annotation token = tokens.get(t);
+                    tokenStart[t] = token.getStartNode().getOffset();
+                    tokenEnd[t] = token.getEndNode().getOffset();
+                    Object string = token.getFeatures().get(TOKEN_STRING_FEATURE);
+                    tokenString[t] = string == null ? null : string.toString();
+                }
+            }
+        }
+    }
 
-        // Optionally remove triggers which are not predicates
-        List<Annotation> predicates;
-        if (filterPredicates) {
-            predicates = filterTypes( gate.Utils.inDocumentOrder(triggers),
-                                      PREDICATE_ALL );
+    /** Write the scope matrices of the sentences of the document, for each
+     *  output (see ScopeMatrix) */
+    private void writeScopeMatrices(ExecutionContext ctx, DocumentTokens tokens)
+            throws ExecutionException {
+        ScopeMatrix.Writer writer = matrixWriter;
+        if (writer == null) return;
+        try {
+            for (ScopeOutput output : ctx.outputs) {
+                writer.writeDocument(ctx.documentId,
+                        output.copyTriggers ? output.config.getName() : null,
+                        ScopeMatrix.build(tokens.sentences, tokens.sentenceStatus,
+                                tokens.tokenStart, tokens.tokenEnd,
+                                output.outAnns.get(SCOPE_ANNOTATION_TYPE)));
+            }
+        } catch (IOException e) {
+            throw new ExecutionException("Could not write to scope matrix file "
+                    + writer.getFile(), e);
+        }
+    }
+
+    /** Add the tokens of the document and the scopes covering them to the
+     *  scope index (see ScopeIndex) */
+    private void writeScopeIndex(ExecutionContext ctx, DocumentTokens tokens)
+            throws ExecutionException {
+        ScopeIndex.Writer writer = indexWriter;
+        if (writer == null) return;
+        Map<String, Collection<Annotation>> scopes =
+                new LinkedHashMap<String, Collection<Annotation>>();
+        for (ScopeOutput output : ctx.outputs) {
+            scopes.put(output.copyTriggers ? output.config.getName() : "",
+                       output.outAnns.get(SCOPE_ANNOTATION_TYPE));
+        }
+        try {
+            writer.writeDocument(ctx.documentId, tokens.sentences, tokens.sentenceStatus,
+                    tokens.tokenStart, tokens.tokenEnd, tokens.tokenString, scopes);
+        } catch (IOException e) {
+            throw new ExecutionException("Could not write to scope index "
+                    + writer.getFile(), e);
+        }
+    }
+
+    /** The checkpoint journal record of a document processed by this PR
+     *  (see ScoperPipeline.setJournal): the output annotation sets, the
+     *  number of triggers, and the number of scopes in the outputs. */
+    public ScoperJournal.Entry getJournalEntry(Document document) throws ExecutionException {
+        List<String> sets = new ArrayList<String>();
+        if (sweepConfigurations == null || sweepConfigurations.isEmpty()) {
+            sets.add(outputAnnotationSetName == null ? "" : outputAnnotationSetName);
         } else {
-            predicates = gate.Utils.inDocumentOrder(triggers);
+            try {
+                for (ScoperConfiguration config : ScoperConfiguration.parseAll(sweepConfigurations)) {
+                    sets.add(config.getName());
+                }
+            } catch (IllegalArgumentException e) {
+                throw new ExecutionException(e.getMessage(), e);
+            }
+        }
+        StringBuilder location = new StringBuilder();
+        int scopes = 0;
+        for (String set : sets) {
+            if (location.length() > 0) location.append(',');
+            location.append(set);
+            scopes += document.getAnnotations(set).get(SCOPE_ANNOTATION_TYPE).size();
+        }
+        int triggers = document.getAnnotations(inputAnnotationSetName).get(triggerAnnName).size();
+        return new ScoperJournal.Entry(getDocumentId(document), location.toString(),
+                                       triggers, scopes);
+    }
+
+    /** The id of a document in checkpoint journals, sentence caches, scope
+     *  matrices, scope indexes and ScopeResults: its datastore id, or its
+     *  source URL, or its name. Names are not used when there is a better
+     *  choice, since GATE makes them unique with a counter suffix. */
+    public static String getDocumentId(Document document) {
+        if (document.getLRPersistenceId() != null) {
+            return document.getLRPersistenceId().toString();
         }
+        if (document.getSourceUrl() != null) {
+            return document.getSourceUrl().toString();
+        }
+        return document.getName();
+    }
+
+    /** The state of a single execution of Scoper over a document */
+    private static class ExecutionContext {
+        final Document document;
+        /** The id of the document in the side outputs (see getDocumentId) */
+        final String documentId;
+        /** The input annotations (of the document, or of the current window) */
+        AnnotationSet inAnns;
+        AnnotationSet outAnns;
+        ScoperStatistics statistics;
+        /** Where scopes are written: the output set, or one set per sweep configuration */
+        List<ScopeOutput> outputs;
+        ScoperCache.Writer cacheWriter;
+        /** Sentences of the document read from the cache */
+        List<ScoperSentence> cachedSentences;
+        /** Sentences of the document to write to the cache */
+        List<ScoperSentence> cacheSentences;
+        // Counts reported in ScoperEvents
+        int triggers;
+        int scopes;
+        /** The sentence being scoped in PHASE 1 */
+        Annotation sentence;
+        /** System.nanoTime() at which the document budget runs out, or 0 */
+        long deadline;
+        /** Scopes of inAnns within existingScopesRegion, by trigger span
+         *  (see getExistingScope) */
+        Map<String, Annotation> existingScopes;
+        Annotation existingScopesRegion;
+        /** Scope tables of the sentences of the document, by span, or null
+         *  (see useScopeTable) */
+        Map<String, ScopeTable> scopeTables;
+        boolean scopeTablesChanged;
+        /** Chooses the sampled triggers, or null when all are scoped */
+        ScoperSampler sampler;
+        /** Triggers (and their copies) left out of the sample */
+        Set<Annotation> unsampled;
+        /** The status of the sentences which are not ScopeMatrix.SCOPED, by
+         *  sentence id, or null when no matrices or index are written */
+        Map<Integer, Byte> sentenceStatus;
+
+        ExecutionContext(Document document) {
+            this.document = document;
+            this.documentId = getDocumentId(document);
+        }
+    }
 
-        // PHASE 1: Attempt to find scope for all predicates
-        for (Annotation predicate : predicates) {
-            // Make sure predicates are limited to a single token
-            Annotation token = getToken(predicate);
-            if (token != null) {
-                // NOTE: Pass the heuristic functions the following:
-                //     predicate: The Trigger Annotation
-                //     deps: Dependencies with Trigger as argument (Governor or Dependant)
-                //     cdeps: Collapsed Dependencies inferring trigger (such as prepc_without, conj_nor)
-                //     inAnns: Required only to get other dependencies
-                List<ScoperDependency> deps  = getDependencies(predicate);
-                List<ScoperDependency> cdeps = getCollapsedDependencies(predicate);
-                if (enableNegatorScope) {
-                    // Prepositions:
-                    prepcScope(predicate, cdeps);
-                    // Conjunctions:
-                    conjScope(predicate, cdeps);
-                    // Auxiliary:
-                    auxScope(predicate, deps);
-                    // Verbs:
-                    compScope(predicate, deps);
-                    subjScope(predicate, deps);
-                    // Nouns
-                    nominalofScope(predicate, deps);
-                    pronomsubjScope(predicate, deps);
-                    // Adjectives, Adverbs, Determiners
-                    negScope(predicate, deps);
-                    modScope(predicate, deps);
-                    copsubjScope(predicate, deps);
-                    // Determiners
-                    detScope(predicate, deps, inAnns);
+    /** The scopes of one configuration, and the annotation set they are
+     *  written to. */
+    private static class ScopeOutput {
+        final ScoperConfiguration config;
+        final AnnotationSet outAnns;
+        /** Whether triggers are copied to outAnns (sweep mode), so that the
+         *  trigger features of each configuration are kept apart */
+        final boolean copyTriggers;
+        /** Scopes created in the current document or window, by trigger span */
+        final Map<String, BufferedScope> triggerScopes = new HashMap<String, BufferedScope>();
+        /** Scopes not yet added to outAnns, in the order they were found */
+        final List<BufferedScope> pending = new ArrayList<BufferedScope>();
+        /** Copies of the input triggers in outAnns, by input trigger id */
+        final Map<Integer, Annotation> triggerCopies = new HashMap<Integer, Annotation>();
+
+        ScopeOutput(ScoperConfiguration config, AnnotationSet outAnns,
+                    boolean copyTriggers) {
+            this.config = config;
+            this.outAnns = outAnns;
+            this.copyTriggers = copyTriggers;
+        }
+
+        /** The trigger which gets the scope features of an input trigger */
+        Annotation getTrigger(Annotation trigger) {
+            return copyTriggers ? triggerCopies.get(trigger.getId()) : trigger;
+        }
+    }
+
+    /** Create the outputs of this run. In sweep mode, each configuration
+     *  is written to the annotation set of the same name, which is cleared
+     *  of the triggers and scopes of previous runs. */
+    private List<ScopeOutput> createOutputs(ExecutionContext ctx) throws ExecutionException {
+        List<ScopeOutput> result = new ArrayList<ScopeOutput>();
+        if (sweepConfigurations == null || sweepConfigurations.isEmpty()) {
+            result.add(new ScopeOutput(new ScoperConfiguration(outputAnnotationSetName,
+                    enableNegatorScope, enableAdjScope, enableNomScope,
+                    enableGrammarScope, filterPredicates), ctx.outAnns, false));
+            return result;
+        }
+        List<ScoperConfiguration> configs;
+        try {
+            configs = ScoperConfiguration.parseAll(sweepConfigurations);
+        } catch (IllegalArgumentException e) {
+            throw new ExecutionException(e.getMessage(), e);
+        }
+        for (ScoperConfiguration config : configs) {
+            if (config.getName().equals(inputAnnotationSetName)) {
+                throw new ExecutionException("Sweep configuration "
+                        + config.getName() + " would overwrite the input annotation set");
+            }
+            AnnotationSet anns = ctx.document.getAnnotations(config.getName());
+            anns.removeAll(anns.get(triggerAnnName));
+            anns.removeAll(anns.get(SCOPE_ANNOTATION_TYPE));
+            result.add(new ScopeOutput(config, anns, true));
+        }
+        return result;
+    }
+
+    /** Copy the triggers to the outputs which keep their own triggers */
+    private void copyTriggers(ExecutionContext ctx, AnnotationSet triggers)
+            throws ExecutionException {
+        for (ScopeOutput output : ctx.outputs) {
+            if (!output.copyTriggers) continue;
+            for (Annotation trigger : gate.Utils.inDocumentOrder(triggers)) {
+                FeatureMap features = gate.Factory.newFeatureMap();
+                features.putAll(trigger.getFeatures());
+                try {
+                    Integer id = output.outAnns.add(trigger.getStartNode().getOffset(),
+                            trigger.getEndNode().getOffset(), trigger.getType(), features);
+                    output.triggerCopies.put(trigger.getId(), output.outAnns.get(id));
+                } catch (InvalidOffsetException e) {
+                    throw new ExecutionException("Could not copy trigger "
+                            + trigger.getId() + " to " + output.config.getName(), e);
+                }
+            }
+        }
+    }
+
+    /** Process the document in windows of consecutive sentences.
+     * Each window works on its own view of the input annotations, which is
+     * released before moving on, so that memory is bounded by the window
+     * size rather than by the document size. The outputs written once per
+     * document (sentence cache, scope matrices and index, scope tables)
+     * are still collected for the whole document. */
+    private void executeWindows(ExecutionContext ctx, int windowSize)
+            throws ExecutionException {
+        AnnotationSet docAnns = ctx.inAnns;
+        List<Annotation> sentences =
+                gate.Utils.inDocumentOrder(docAnns.get(sentenceAnnName));
+        Long previousEnd = 0L;
+        try {
+            for (int i = 0; i < sentences.size(); i += windowSize) {
+                int last = Math.min(i + windowSize, sentences.size()) - 1;
+                Long start = sentences.get(i).getStartNode().getOffset();
+                Long end   = sentences.get(last).getEndNode().getOffset();
+                for (ScopeOutput output : ctx.outputs) {
+                    output.triggerScopes.clear();
+                    output.triggerCopies.clear();
+                }
+                // Triggers between two windows are outside of any sentence
+                skipOutsideSentences(ctx,
+                        docAnns.getContained(previousEnd, start).get(triggerAnnName));
+                previousEnd = end;
+                // PHASE 1 on a view of the window
+                ctx.inAnns = docAnns.get(start, end);
+                annotateScopes(ctx, ctx.inAnns.getContained(start, end).get(triggerAnnName));
+                // PHASE 2 on a fresh view, which includes the new scopes
+                ctx.inAnns = docAnns.get(start, end);
+                propagateScopes(ctx, ctx.inAnns.getContained(start, end).get(triggerAnnName));
+            }
+            for (ScopeOutput output : ctx.outputs) {
+                output.triggerCopies.clear();
+            }
+            skipOutsideSentences(ctx, docAnns.getContained(previousEnd,
+                    ctx.document.getContent().size()).get(triggerAnnName));
+        } finally {
+            ctx.inAnns = docAnns;
+        }
+    }
+
+    /** Mark triggers outside of any sentence in the windows mode, where no
+     *  window holds them (see annotateScopes) */
+    private void skipOutsideSentences(ExecutionContext ctx, AnnotationSet triggers)
+            throws ExecutionException {
+        if (triggers.isEmpty()) return;
+        ctx.triggers += triggers.size();
+        copyTriggers(ctx, triggers);
+        for (Annotation trigger : triggers) {
+            degrade(ctx, trigger, DEGRADED_NO_SENTENCE);
+        }
+    }
+
+    /** PHASE 1: Attempt to find scope for all predicates.
+     * Predicates are processed sentence by sentence. Predicates outside of
+     * any sentence have no scope, and are marked as degraded (noSentence).
+     * The heuristics are applied once per predicate, for all outputs. */
+    private void annotateScopes(ExecutionContext ctx, AnnotationSet triggers)
+            throws ExecutionException {
+        long startTime = ScoperEvents.isEnabled() ? System.nanoTime() : 0L;
+        ctx.triggers += triggers.size();
+        copyTriggers(ctx, triggers);
+        List<Annotation> predicates = gate.Utils.inDocumentOrder(triggers);
+        if (ctx.sampler != null) {
+            sample(ctx, predicates);
+        }
+        ScopeResolver resolver = getResolver();
+        List<ScoperConfiguration> configs = new ArrayList<ScoperConfiguration>();
+        // Configurations used once a sentence runs out of time
+        List<ScoperConfiguration> cheapConfigs = new ArrayList<ScoperConfiguration>();
+        for (ScopeOutput output : ctx.outputs) {
+            configs.add(output.config);
+            cheapConfigs.add(output.config.without(ScoperConfiguration.GROUP_GRAMMAR));
+        }
+        long sentenceBudget = sentenceTimeBudget == null || sentenceTimeBudget <= 0 ? 0L
+                            : sentenceTimeBudget * 1000000L;
+
+        List<Annotation> sentences =
+                gate.Utils.inDocumentOrder(ctx.inAnns.get(sentenceAnnName));
+        int p = 0;
+        for (Annotation sentence : sentences) {
+            Long start = sentence.getStartNode().getOffset();
+            Long end   = sentence.getEndNode().getOffset();
+            // Skip predicates which are outside of any sentence
+            while (p < predicates.size()
+                    && predicates.get(p).getStartNode().getOffset() < start) {
+                degrade(ctx, predicates.get(p), DEGRADED_NO_SENTENCE);
+                p++;
+            }
+            int first = p;
+            while (p < predicates.size()
+                    && predicates.get(p).getStartNode().getOffset() < end) {
+                p++;
+            }
+            // Sentences without sampled triggers are only parsed for the caches
+            boolean sampled = hasSampledTrigger(ctx, predicates, first, p);
+            if (!sampled && p > first) {
+                setSentenceStatus(ctx, sentence, ScopeMatrix.UNSAMPLED);
+            }
+            if (!sampled && ctx.cacheSentences == null && ctx.scopeTables == null) continue;
+            if (isInterrupted()) {
+                throw new ExecutionInterruptedException("The execution of the \""
+                        + getName() + "\" Scoper has been abruptly interrupted!");
+            }
+            // Once the document is out of time, the remaining triggers get no scope
+            if (ctx.deadline != 0L && System.nanoTime() > ctx.deadline) {
+                for (int i = first; sampled && i < p; i++) {
+                    degrade(ctx, predicates.get(i), DEGRADED_DOCUMENT_BUDGET);
+                }
+                if (sampled) setSentenceStatus(ctx, sentence, ScopeMatrix.OUT_OF_BUDGET);
+                continue;
+            }
+            long sentenceDeadline = sentenceBudget > 0 ? System.nanoTime() + sentenceBudget : 0L;
+            // With scope tables, the sentence is only parsed to compute its table
+            ScoperSentence structure = null;
+            ScopeTable table = null;
+            if (ctx.scopeTables != null) {
+                table = ctx.scopeTables.get(ScopeTable.key(start, end));
+            }
+            if (table == null || ctx.cacheSentences != null) {
+                structure = getSentenceStructure(ctx, sentence);
+            }
+            // Out of time, the triggers are scoped from the structure (cheaply,
+            // or not at all) instead of applying every heuristic to every token.
+            // A table cut short by the budgets is dropped.
+            long parsed = System.nanoTime();
+            if (ctx.scopeTables != null && table == null
+                    && (ctx.deadline == 0L || parsed <= ctx.deadline)
+                    && (sentenceDeadline == 0L || parsed <= sentenceDeadline)) {
+                long tableDeadline = sentenceDeadline == 0L ? ctx.deadline
+                                   : ctx.deadline == 0L ? sentenceDeadline
+                                   : Math.min(sentenceDeadline, ctx.deadline);
+                table = ScopeTable.compute(structure, resolver, tableDeadline);
+                if (table != null) {
+                    ctx.scopeTables.put(ScopeTable.key(start, end), table);
+                    ctx.scopeTablesChanged = true;
+                }
+            }
+            if (!sampled) continue;
+            ctx.sentence = sentence;
+            for (int i = first; i < p; i++) {
+                final Annotation predicate = predicates.get(i);
+                // Optionally skip triggers which are not predicates
+                List<ScopeHeuristics.ScopeSink> sinks = getSinks(ctx, predicate);
+                if (sinks == null) continue;
+                List<ScoperConfiguration> triggerConfigs = configs;
+                boolean degraded = false;
+                if (ctx.deadline != 0L || sentenceDeadline != 0L) {
+                    long now = System.nanoTime();
+                    if (ctx.deadline != 0L && now > ctx.deadline) {
+                        degrade(ctx, predicate, DEGRADED_DOCUMENT_BUDGET);
+                        setSentenceStatus(ctx, sentence, ScopeMatrix.OUT_OF_BUDGET);
+                        continue;
+                    }
+                    if (sentenceDeadline != 0L && now > sentenceDeadline) {
+                        degrade(ctx, predicate, DEGRADED_SENTENCE_BUDGET);
+                        setSentenceStatus(ctx, sentence, ScopeMatrix.OUT_OF_BUDGET);
+                        degraded = true;
+                        triggerConfigs = cheapConfigs;
+                    }
                 }
-                if (enableAdjScope) {
-                    modScope(predicate, deps);
-                    copsubjScope(predicate, deps);
+                // Make sure predicates are limited to a single token
+                long predicateStart = predicate.getStartNode().getOffset();
+                long predicateEnd   = predicate.getEndNode().getOffset();
+                int token = table != null ? table.getToken(predicateStart, predicateEnd)
+                                          : structure.getToken(predicateStart, predicateEnd);
+                if (token < 0) {
+                    if (DEBUG) {
+                        System.err.println( "Warning: no token for trigger ("
+                            + getAnnotationText(predicate, ctx.document).toString() + ")" );
+                    }
+                    continue;
+                }
+                // Later scopes are only needed for the multiple scope warnings
+                if (table != null) {
+                    ScopeHeuristics.scope(table, token, triggerConfigs, sinks,
+                                          !warnMultipleScopes);
+                } else if (!ScopeHeuristics.scope(structure, token, predicate.getId(),
+                        resolver, triggerConfigs, sinks, !warnMultipleScopes,
+                        sentenceDeadline)
+                        && !degraded) {
+                    // The sentence ran out of time while scoping this trigger
+                    degrade(ctx, predicate, DEGRADED_SENTENCE_BUDGET);
+                    setSentenceStatus(ctx, sentence, ScopeMatrix.OUT_OF_BUDGET);
                 }
-                if (enableNomScope) {
-                    prenommodScope(predicate, deps);
+            }
+            commitScopes(ctx);
+        }
+        for (; p < predicates.size(); p++) {
+            degrade(ctx, predicates.get(p), DEGRADED_NO_SENTENCE);
+        }
+        commitScopes(ctx);
+        if (startTime != 0L) {
+            ScoperEvents.phaseExecuted(ctx.document.getName(), ScoperEvents.PHASE_SCOPE,
+                    triggers.size(), System.nanoTime() - startTime);
+        }
+    }
+
+    /** Record the status of a sentence for the scope matrices and index */
+    private static void setSentenceStatus(ExecutionContext ctx, Annotation sentence,
+                                          byte status) {
+        if (ctx.sentenceStatus != null) ctx.sentenceStatus.put(sentence.getId(), status);
+    }
+
+    /** Whether only a sample of the triggers is scoped */
+    private boolean isSampling() {
+        return (samplingRate != null && samplingRate < 1.0)
+                || (samplingRates != null && !samplingRates.isEmpty());
+    }
+
+    /** Choose the triggers left out of the sample, with their copies */
+    private void sample(ExecutionContext ctx, List<Annotation> predicates) {
+        for (Annotation predicate : predicates) {
+            if (ctx.sampler.isSampled(ctx.documentId, predicate)) continue;
+            ctx.unsampled.add(predicate);
+            for (ScopeOutput output : ctx.outputs) {
+                if (output.copyTriggers) ctx.unsampled.add(output.getTrigger(predicate));
+            }
+        }
+    }
+
+    /** Whether some of the predicates from first (inclusive) to last
+     *  (exclusive) are sampled. The other triggers of their sentence are
+     *  scoped as well, as their scopes may cover the sampled triggers. */
+    private static boolean hasSampledTrigger(ExecutionContext ctx,
+            List<Annotation> predicates, int first, int last) {
+        for (int i = first; i < last; i++) {
+            if (ctx.unsampled == null || !ctx.unsampled.contains(predicates.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** The resolver turning the tokens found by heuristics into scopes */
+    private ScopeResolver getResolver() {
+        return useDependencyScope ? ScopeResolver.DEPENDENCY : ScopeResolver.PHRASE;
+    }
+
+    /** Record that a predicate was processed in a degraded way, in each
+     *  output which accepts it */
+    private void degrade(ExecutionContext ctx, Annotation predicate, String degradation) {
+        boolean accepted = false;
+        for (ScopeOutput output : ctx.outputs) {
+            if (!output.config.acceptsTrigger(
+                    predicate.getFeatures().get(TRIGGER_TYPE_FEATURE))) continue;
+            output.getTrigger(predicate).getFeatures()
+                  .put(TRIGGER_DEGRADED_FEATURE, degradation);
+            accepted = true;
+        }
+        if (accepted && ctx.statistics != null) {
+            ctx.statistics.recordDegradation(degradation);
+        }
+    }
+
+    /** Get the sinks annotating the scopes of a predicate in each output
+     *  (null for outputs which filter it out), or null if no output
+     *  accepts the predicate. */
+    private List<ScopeHeuristics.ScopeSink> getSinks(final ExecutionContext ctx,
+                                                     final Annotation predicate) {
+        List<ScopeHeuristics.ScopeSink> sinks = new ArrayList<ScopeHeuristics.ScopeSink>();
+        boolean accepted = false;
+        for (final ScopeOutput output : ctx.outputs) {
+            if (!output.config.acceptsTrigger(
+                    predicate.getFeatures().get(TRIGGER_TYPE_FEATURE))) {
+                sinks.add(null);
+                continue;
+            }
+            accepted = true;
+            sinks.add(new ScopeHeuristics.ScopeSink() {
+                public void scope(long startOffset, long endOffset, String heuristic) {
+                    annotateScope(ctx, output, startOffset, endOffset,
+                                  predicate, heuristic);
                 }
-                if (enableGrammarScope) {
-                    grammarScope(predicate, deps);
+            });
+        }
+        return accepted ? sinks : null;
+    }
+
+    /** Get the parsed structure of a sentence, from the sentence cache if
+     *  possible, and add it to the sentences being written to the cache. */
+    private ScoperSentence getSentenceStructure(ExecutionContext ctx,
+                                                Annotation sentence) {
+        ScoperSentence structure = null;
+        if (ctx.cachedSentences != null) {
+            structure = ScoperCache.findSentence(ctx.cachedSentences,
+                    sentence.getStartNode().getOffset(),
+                    sentence.getEndNode().getOffset());
+        }
+        if (structure == null) {
+            structure = ScoperSentence.fromAnnotations(sentence, ctx.inAnns,
+                    ctx.cacheSentences == null ? null : triggerAnnName);
+        }
+        if (ctx.cacheSentences != null) {
+            ctx.cacheSentences.add(structure);
+        }
+        return structure;
+    }
+
+    /** PHASE 2: Propagate the scope features, in each output */
+    private void propagateScopes(ExecutionContext ctx, AnnotationSet triggers) {
+        long startTime = ScoperEvents.isEnabled() ? System.nanoTime() : 0L;
+        for (ScopeOutput output : ctx.outputs) {
+            if (output.copyTriggers) {
+                List<Annotation> copies = new ArrayList<Annotation>();
+                for (Annotation trigger : triggers) {
+                    copies.add(output.getTrigger(trigger));
                 }
+                propagateScopes(ctx, copies, output.outAnns, output.config.getName());
+            } else {
+                propagateScopes(ctx, triggers, ctx.inAnns, null);
             }
         }
+        if (startTime != 0L) {
+            ScoperEvents.phaseExecuted(ctx.document.getName(), ScoperEvents.PHASE_PROPAGATE,
+                    triggers.size(), System.nanoTime() - startTime);
+        }
+    }
 
-        // PHASE 2: Propagate the scope features
+    /** Propagate the scope features of triggers, looking for scopes and
+     *  their triggers in alist */
+    private void propagateScopes(ExecutionContext ctx, Iterable<Annotation> triggers,
+                                 AnnotationSet alist, String configuration) {
         for (Annotation trigger : triggers) {
             FeatureMap features = trigger.getFeatures();
-            boolean hasScope = false;
+            // Triggers left out of the sample get neither scopes nor noscope
+            if (ctx.unsampled != null && ctx.unsampled.contains(trigger)) {
+                features.put(TRIGGER_SAMPLED_FEATURE, "false");
+                if (ctx.statistics != null) {
+                    ctx.statistics.recordUnsampled(configuration, trigger);
+                }
+                continue;
+            }
+            Set<String> scopeTypes = new HashSet<String>();
             // Get list of scopes this trigger is embedded in
             PriorityQueue<Annotation> scopes =
-                    getPath(trigger, SCOPE_ANNOTATION_TYPE);
+                    getPath(trigger, SCOPE_ANNOTATION_TYPE, alist);
             // Get list as Annotation IDs, and verify that trigger does not scope over itself
             ArrayList<Integer> ids = getIdList(trigger, scopes);
 
@@ -221,7 +868,7 @@ public class Scoper extends AbstractLanguageAnalyser
             // Get the scope types and add as features
             while (scopes.size() > 0) {
                 Annotation scope = scopes.remove();
-                Annotation scopeTrigger = getScopeTrigger(scope);
+                Annotation scopeTrigger = getScopeTrigger(scope, alist);
                 if (scopeTrigger == null) {
                     continue;
                 }
@@ -237,11 +884,14 @@ public class Scoper extends AbstractLanguageAnalyser
                 } else {
                     features.put(type, "true");
                 }
-                hasScope = true;
+                scopeTypes.add(type);
             }
-            if (!hasScope) {
+            if (scopeTypes.isEmpty()) {
                 features.put(NO_SCOPE, "true");
             }
+            if (ctx.statistics != null) {
+                ctx.statistics.recordTrigger(configuration, trigger, ids.size(), scopeTypes);
+            }
         }
     }
 
@@ -269,239 +919,218 @@ public class Scoper extends AbstractLanguageAnalyser
         init();
     }
 
-    // Scope Heuristics
-
-    /** Annotate the scope of a negation modifier.
-     * trigger(T) ^ neg(X, T) =&gt; scope(X)
-     */
-    private void negScope(Annotation trigger, List<ScoperDependency> dependencies) {
-        // Annotate the governor of neg dependencies
-        List<ScoperDependency> scopeDeps =
-                filterDependencies(dependencies, NEG_DEPENDENCIES, false);
-        if (scopeDeps == null || scopeDeps.isEmpty()) return;
-        List<Annotation> scopeAnns = targetsToAnns(scopeDeps);
-        // Use the trigger to find the scope
-        Annotation scope = getPhrase(trigger, scopeAnns);
-        annotateScope(scope, trigger, scopeDeps.get(0).getType());
-    }
-
-    /** Annotate the scope of a negation determiner.
-     * trigger(T) ^ det(X, T) ^ comp(Y, X) =&gt; scope(Y)
-     */
-    private void detScope(Annotation trigger, List<ScoperDependency> dependencies, AnnotationSet alist) {
-        // Annotate the governor of det dependencies
-        List<ScoperDependency> scopeDeps =
-                filterDependencies(dependencies, DET_DEPENDENCIES, false);
-        if (scopeDeps == null || scopeDeps.isEmpty()) return;
-        // If that governor is the object of a verb, include that verb
-        // TODO: only supports single target (this should be fine)
-        Annotation target = alist.get(Integer.parseInt(scopeDeps.get(0).getTargetId().toString()));
-        List<ScoperDependency> targetDependencies = getDependencies(target);
-        List<ScoperDependency> tempDeps =
-                filterDependencies(targetDependencies, COMP_DEPENDENCIES, false);
-        if (!(tempDeps == null || tempDeps.isEmpty()))
-            scopeDeps.addAll(tempDeps);
-        List<Annotation> scopeAnns = targetsToAnns(scopeDeps);
-        // Use the trigger to find the scope
-        Annotation scope = getPhrase(trigger, scopeAnns);
-        annotateScope(scope, trigger, "det");
-    }
-
-    /** Annotate the scope of a subject.
-     * trigger(T) ^ nsubj(X, T) =&gt; scope(X)
-     */
-    private void pronomsubjScope(Annotation trigger, List<ScoperDependency> dependencies) {
-        // Annotate the governor of nsubj dependencies
-        List<ScoperDependency> scopeDeps =
-                filterDependencies(dependencies, SUBJ_DEPENDENCIES, false);
-        if (scopeDeps == null || scopeDeps.isEmpty()) return;
-        List<Annotation> scopeAnns = targetsToAnns(scopeDeps);
-        // Use the trigger to find the scope
-        Annotation scope = getPhrase(trigger, scopeAnns);
-        annotateScope(scope, trigger, "pronomsubj");
-    }
-
-    /** Annotate the scope of a preposition.
-     * trigger(T) ^ preposition(T) ^ prepc_*(Y, X) =&gt; scope(X)
-     */
-    private void prepcScope(Annotation trigger, List<ScoperDependency> dependencies) {
-        // Filter all but prepositions
-        Annotation token = getToken(trigger);
-        if (!filterPos(token, TOKEN_CATEGORY_PREP)) return;
-        // Annotate the target of PREP dependencies
-        List<ScoperDependency> scopeDeps =
-                filterDependenciesStartsWith(dependencies, PREP_DEPENDENCIES, true);
-        if (scopeDeps == null || scopeDeps.isEmpty()) return;
-        List<Annotation> scopeAnns = targetsToAnns(scopeDeps);
-        // Use the trigger to find the scope
-        Annotation scope = getPhrase(trigger, scopeAnns);
-        annotateScope(scope, trigger, scopeDeps.get(0).getType());
-    }
-
-    /** Annotate the scope of a verb.
-     * trigger(T) ^ comp(T, X) =&gt; scope(X)
-     */
-    private void compScope(Annotation trigger, List<ScoperDependency> dependencies) {
-        // Annotate the governor of nsubj dependencies
-        List<ScoperDependency> scopeDeps =
-                filterDependencies(dependencies, COMP_DEPENDENCIES, true);
-        if (scopeDeps == null || scopeDeps.isEmpty()) return;
-        List<Annotation> scopeAnns = targetsToAnns(scopeDeps);
-        // Use the trigger to find the scope
-        Annotation scope = getPhrase(trigger, scopeAnns);
-        annotateScope(scope, trigger, scopeDeps.get(0).getType());
-    }
-
-    /** Annotate the scope of an intransitive verb.
-     * trigger(T) ^ subj(T, X) =&gt; scope(X)
-     */
-    private void subjScope(Annotation trigger, List<ScoperDependency> dependencies) {
-        // Annotate the governor of nsubj dependencies
-        List<ScoperDependency> scopeDeps =
-                filterDependencies(dependencies, SUBJ_DEPENDENCIES, true);
-        if (scopeDeps == null || scopeDeps.isEmpty()) return;
-        List<Annotation> scopeAnns = targetsToAnns(scopeDeps);
-        // Use the trigger to find the scope
-        Annotation scope = getPhrase(trigger, scopeAnns);
-        annotateScope(scope, trigger, scopeDeps.get(0).getType());
-    }
-
-    /** Annotate the scope of a nominalization with of.
-     * trigger(T) ^ noun(T) ^ prep_of(T, X) =&gt; scope(X)
-     */
-    private void nominalofScope(Annotation trigger, List<ScoperDependency> dependencies) {
-        // Filter all but nouns
-        Annotation token = getToken(trigger);
-        if (!filterPos(token, TOKEN_CATEGORY_NOUN)) return;
-        // Annotate the target of prep_of dependencies
-        List<ScoperDependency> scopeDeps =
-                filterDependencies(dependencies, PREP_OF_DEPENDENCIES, true);
-        if (scopeDeps == null || scopeDeps.isEmpty()) return;
-        List<Annotation> scopeAnns = targetsToAnns(scopeDeps);
-        // Use the trigger to find the scope
-        Annotation scope = getPhrase(trigger, scopeAnns);
-        annotateScope(scope, trigger, "nominalof");
-    }
-
-    /** Annotate the scope of conjunction.
-     * trigger(T) ^ cc(T) ^ conj_*(Y, X) =&gt; scope(X)
-     */
-    private void conjScope(Annotation trigger, List<ScoperDependency> dependencies) {
-        // Filter all but prepositions
-        Annotation token = getToken(trigger);
-        if (!filterPos(token, TOKEN_CATEGORY_PREP)) return;
-        // Annotate the target of PREP dependencies
-        List<ScoperDependency> scopeDeps =
-                filterDependenciesStartsWith(dependencies, CONJ_DEPENDENCIES, true);
-        if (scopeDeps == null || scopeDeps.isEmpty()) return;
-        List<Annotation> scopeAnns = targetsToAnns(scopeDeps);
-        // Use the trigger to find the scope
-        Annotation scope = getPhrase(trigger, scopeAnns);
-        annotateScope(scope, trigger, scopeDeps.get(0).getType());
-    }
-
-    /** Annotate the scope of an auxiliary.
-     * trigger(T) ^ aux(X, T) =&gt; scope(X)
-     */
-    private void auxScope(Annotation trigger, List<ScoperDependency> dependencies) {
-        // Annotate the governor of mod dependencies, if exists
-        List<ScoperDependency> scopeDeps =
-                filterDependencies(dependencies, AUX_DEPENDENCIES, false);
-        if (scopeDeps == null || scopeDeps.isEmpty()) return;
-        List<Annotation> scopeAnns = targetsToAnns(scopeDeps);
-        // Use the trigger to find the scope
-        Annotation scope = getPhrase(trigger, scopeAnns);
-        annotateScope(scope, trigger, scopeDeps.get(0).getType());
-    }
-
-    /** Annotate the scope of a modifier.
-     * trigger(T) ^ mod(X, T) =&gt; scope(X)
-     */
-    private void modScope(Annotation trigger, List<ScoperDependency> dependencies) {
-        // Annotate the governor of mod dependencies, if exists
-        List<ScoperDependency> scopeDeps =
-                filterDependencies(dependencies, MOD_DEPENDENCIES, false);
-        if (scopeDeps == null || scopeDeps.isEmpty()) return;
-        List<Annotation> scopeAnns = targetsToAnns(scopeDeps);
-        Annotation scope = getPhrase(scopeAnns);
-        annotateScope(scope, trigger, scopeDeps.get(0).getType());
-    }
-
-    /** Annotate the subject of an adjective with a copula.
-     * trigger(T) ^ adjective(T) ^ cop(T, X) ^ nsubj(T, Y) =&gt; scope(Y)
-     */
-    private void copsubjScope(Annotation trigger, List<ScoperDependency> dependencies) {
-        // Filter all but adjectives
-        Annotation token = getToken(trigger);
-        if (!filterPos(token, TOKEN_CATEGORY_ADJ)) return;
-        // Check if there is a copula
-        List<ScoperDependency> copDeps =
-                filterDependencies(dependencies, COP_DEPENDENCIES);
-        if (copDeps == null || copDeps.isEmpty()) return;
-        // Annotate the subject, if exists
-        List<ScoperDependency> scopeDeps =
-                filterDependencies(dependencies, SUBJ_DEPENDENCIES);
-        if (scopeDeps == null || scopeDeps.isEmpty()) return;
-        List<Annotation> scopeAnns = targetsToAnns(scopeDeps);
-        Annotation scope = getPhrase(scopeAnns);
-        annotateScope(scope, trigger, "copsubj");
-    }
-
-    /** Annotate the scope of a noun with a premodifier.
-     * trigger(T) ^ noun(T) ^ mod(Y, T) ^ mod(X, T) ^ Y &lt; X =&gt; scope(X)
-     */
-    private void prenommodScope(Annotation trigger, List<ScoperDependency> dependencies) {
-        // Filter all but nouns
-        Annotation token = getToken(trigger);
-        if (!filterPos(token, TOKEN_CATEGORY_NOUN)) return;
-        // Annotate the dep of a mod dependencies, if exists
-        List<ScoperDependency> scopeDeps =
-                filterDependencies(dependencies, MOD_DEPENDENCIES, true);
-        if (scopeDeps == null || scopeDeps.isEmpty()) return;
-        Annotation scope = null;
-        // Look for the nearest prenominal modifier
-        for (ScoperDependency dep : scopeDeps) {
-            Annotation candidate = inAnns.get(dep.getTargetId());
-            // Verify that the candidate scope precedes trigger
-            if (candidate.getStartNode().getOffset()
-                < trigger.getStartNode().getOffset())
-            {
-                // Get the closest modifier to the trigger
-                if (scope == null || candidate.getStartNode().getOffset()
-                                       > scope.getStartNode().getOffset())
-                {
-                    scope = candidate;
+    // Controller callbacks
+
+    /** Start collecting statistics, logging events and writing the scope
+     *  matrices and index for this corpus, if requested */
+    public void controllerExecutionStarted(Controller c)
+            throws ExecutionException {
+        if (sentenceTimeBudget != null && sentenceTimeBudget < 0) {
+            System.err.println("Warning: negative sentenceTimeBudget ("
+                               + sentenceTimeBudget + "), sentences are not bounded");
+        }
+        if (statisticsFile != null) {
+            File file = urlToFile(statisticsFile);
+            try {
+                statistics = ScoperStatistics.acquire(file);
+            } catch (IOException e) {
+                throw new ExecutionException("Could not open statistics file " + file, e);
+            }
+        }
+        if (eventLogFile != null) {
+            File file = urlToFile(eventLogFile);
+            try {
+                eventLog = ScoperEvents.acquireLog(file, logHeuristicEvents);
+            } catch (IOException e) {
+                throw new ExecutionException("Could not open event log " + file, e);
+            }
+        }
+        if (scopeMatrixFile != null) {
+            File file = urlToFile(scopeMatrixFile);
+            try {
+                matrixWriter = ScopeMatrix.acquireWriter(file);
+            } catch (IOException e) {
+                throw new ExecutionException("Could not open scope matrix file " + file, e);
+            }
+        }
+        if (scopeIndexFile != null) {
+            File file = urlToFile(scopeIndexFile);
+            try {
+                indexWriter = ScopeIndex.acquireWriter(file);
+            } catch (IOException e) {
+                throw new ExecutionException("Could not open scope index " + file, e);
+            }
+        }
+    }
+
+    /** Write the statistics summary for this corpus */
+    public void controllerExecutionFinished(Controller c)
+            throws ExecutionException {
+        try {
+            closeSentenceCache();
+        } finally {
+            try {
+                releaseStatistics();
+            } finally {
+                try {
+                    releaseEventLog();
+                } finally {
+                    try {
+                        releaseScopeMatrix();
+                    } finally {
+                        releaseScopeIndex();
+                    }
                 }
             }
         }
-        if (scope != null) {
-            annotateScope(scope, trigger, "prenommod");
-        }
-    }
-
-    /** Annotate using the grammarscope approach.
-     * trigger(T) ^ *dep(T, X) =&gt; scope(X)
-     */
-    private void grammarScope(Annotation trigger, List<ScoperDependency> dependencies) {
-        // Get dependants for this trigger
-        List<ScoperDependency> scopeDeps = filterDependencies(dependencies);
-        if (scopeDeps == null || scopeDeps.isEmpty()) return;
-        // and recursively anotate dependants of dependants, etc.
-        LinkedList<Annotation> openList  = new LinkedList<Annotation>(targetsToAnns(scopeDeps));
-        LinkedList<Annotation> closeList = new LinkedList<Annotation>();
-        while (openList.size() != 0) {
-            Annotation a = openList.remove();
-            if (!closeList.contains(a)) {
-                closeList.add(a);
-                List<ScoperDependency> deps =
-                        filterDependencies(getDependencies(a));
-                if (!(deps == null || deps.isEmpty())) {
-                    openList.addAll(targetsToAnns(deps));
+    }
+
+    public void controllerExecutionAborted(Controller c, Throwable t)
+            throws ExecutionException {
+        try {
+            closeSentenceCache();
+        } finally {
+            try {
+                releaseStatistics();
+            } finally {
+                try {
+                    releaseEventLog();
+                } finally {
+                    try {
+                        releaseScopeMatrix();
+                    } finally {
+                        releaseScopeIndex();
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void cleanup() {
+        try {
+            closeSentenceCache();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+        results.complete();
+        super.cleanup();
+    }
+
+    /** Open the sentence cache for reading or writing, if requested, and
+     *  read the sentences of the document or prepare to write them */
+    private void openSentenceCache(ExecutionContext ctx) throws ExecutionException {
+        if (sentenceCacheFile == null) return;
+        ScoperCache.Reader reader;
+        synchronized (this) {
+            if (cacheReader == null && cacheWriter == null) {
+                File file = urlToFile(sentenceCacheFile);
+                try {
+                    if (readSentenceCache) {
+                        cacheReader = new ScoperCache.Reader(file);
+                    } else {
+                        cacheWriter = ScoperCache.acquireWriter(file);
+                    }
+                } catch (IOException e) {
+                    throw new ExecutionException("Could not open sentence cache " + file, e);
                 }
             }
+            reader = cacheReader;
+            ctx.cacheWriter = cacheWriter;
+        }
+        if (reader != null) {
+            ctx.cachedSentences = reader.getDocument(ctx.documentId);
+            if (ctx.cachedSentences == null) {
+                System.err.println("Warning: document not found in sentence cache: "
+                                   + ctx.documentId);
+            }
+        } else if (ctx.cacheWriter != null) {
+            ctx.cacheSentences = new ArrayList<ScoperSentence>();
+        }
+    }
+
+    /** Close the sentence cache. The cache file is complete once the last
+     *  worker writing to it has closed it. */
+    private synchronized void closeSentenceCache() throws ExecutionException {
+        try {
+            if (cacheReader != null) {
+                ScoperCache.Reader reader = cacheReader;
+                cacheReader = null;
+                reader.close();
+            }
+            if (cacheWriter != null) {
+                ScoperCache.Writer writer = cacheWriter;
+                cacheWriter = null;
+                ScoperCache.releaseWriter(writer);
+            }
+        } catch (IOException e) {
+            throw new ExecutionException("Could not close sentence cache", e);
+        }
+    }
+
+    /** Release the shared statistics, and write them if we are the last user */
+    private void releaseStatistics() throws ExecutionException {
+        if (statistics == null) return;
+        ScoperStatistics stats = statistics;
+        statistics = null;
+        if (ScoperStatistics.release(stats)) {
+            try {
+                stats.write();
+            } catch (IOException e) {
+                throw new ExecutionException("Could not write statistics to "
+                        + stats.getOutputFile(), e);
+            }
+        }
+    }
+
+    /** Release the shared event log, closing it if we are the last user */
+    private void releaseEventLog() throws ExecutionException {
+        if (eventLog == null) return;
+        ScoperEvents.LogListener log = eventLog;
+        eventLog = null;
+        try {
+            ScoperEvents.releaseLog(log);
+        } catch (IOException e) {
+            throw new ExecutionException("Could not close event log " + log.getFile(), e);
+        }
+    }
+
+    /** Release the shared scope matrix writer, closing it if we are the last user */
+    private void releaseScopeMatrix() throws ExecutionException {
+        if (matrixWriter == null) return;
+        ScopeMatrix.Writer writer = matrixWriter;
+        matrixWriter = null;
+        try {
+            ScopeMatrix.releaseWriter(writer);
+        } catch (IOException e) {
+            throw new ExecutionException("Could not close scope matrix file "
+                    + writer.getFile(), e);
+        }
+    }
+
+    /** Release the shared scope index writer, writing the index if we are
+     *  the last user */
+    private void releaseScopeIndex() throws ExecutionException {
+        if (indexWriter == null) return;
+        ScopeIndex.Writer writer = indexWriter;
+        indexWriter = null;
+        try {
+            ScopeIndex.releaseWriter(writer);
+        } catch (IOException e) {
+            throw new ExecutionException("Could not write scope index "
+                    + writer.getFile(), e);
+        }
+    }
+
+    /** Convert a file: URL parameter to a File */
+    public static File urlToFile(URL url) throws ExecutionException {
+        try {
+            return new File(url.toURI());
+        } catch (URISyntaxException e) {
+            throw new ExecutionException("Invalid file URL: " + url, e);
+        } catch (IllegalArgumentException e) {
+            throw new ExecutionException("Not a file URL: " + url, e);
         }
-        Annotation scope = getPhrase(closeList);
-        annotateScope(scope, trigger, "grammarscope");
     }
 
     /** Filter Triggers by type. */
@@ -516,10 +1145,6 @@ public class Scoper extends AbstractLanguageAnalyser
         }
         return results;
     }
-    private List<Annotation> filterTypes(List<Annotation> triggers,
-            String[] types) {
-        return filterTypes(triggers, types, inAnns);
-    }
 
     /** Filter Dependencies by type. */
     public static List<ScoperDependency> filterDependencies(
@@ -581,9 +1206,6 @@ public class Scoper extends AbstractLanguageAnalyser
         }
         return anns;
     }
-    private List<Annotation> targetsToAnns(List<ScoperDependency> deps) {
-        return targetsToAnns(deps, inAnns);
-    }
 
     /** Find the smallest phrase dominating a list of tokens. */
     public static Annotation getPhrase(List<Annotation> tokens,
@@ -595,11 +1217,12 @@ public class Scoper extends AbstractLanguageAnalyser
         }
         // Find the smallest STN which is common to all paths
         PriorityQueue<Annotation> path1 = paths.get(0);
+        List<Set<Annotation>> pathSets = toSets(paths);
         while (path1.size() != 0) {
             Annotation node = path1.remove();
             boolean commonNode = true;
             for (int i=1; i<paths.size(); i++) {
-                if (!paths.get(i).contains(node)) {
+                if (!pathSets.get(i).contains(node)) {
                     commonNode = false;
                     break;
                 }
@@ -609,9 +1232,6 @@ public class Scoper extends AbstractLanguageAnalyser
         System.err.println("Error: No common node for candidate tokens");
         return null;
     }
-    private Annotation getPhrase(List<Annotation> tokens) {
-        return getPhrase(tokens, inAnns);
-    }
 
     /** Find the largest phrase dominating a list of tokens, but not including the trigger.
      *  Reverts to getPhrase(tokens) if no node is found.
@@ -627,12 +1247,14 @@ public class Scoper extends AbstractLanguageAnalyser
         }
         // Find the largest STN which is common to all paths but excludes trigger
         PriorityQueue<Annotation> path1 = paths.get(0);
+        List<Set<Annotation>> pathSets = toSets(paths);
+        Set<Annotation> triggerSet = new HashSet<Annotation>(triggerPath);
         while (path1.size() != 0) {
             Annotation node = path1.remove();
-            if (triggerPath.contains(node)) continue;
+            if (triggerSet.contains(node)) continue;
             boolean commonNode = true;
             for (int i=1; i<paths.size(); i++) {
-                if (!paths.get(i).contains(node)) {
+                if (!pathSets.get(i).contains(node)) {
                     commonNode = false;
                     break;
                 }
@@ -643,89 +1265,196 @@ public class Scoper extends AbstractLanguageAnalyser
         // Revert to getPhrase without trigger
         return getPhrase(tokens, alist);
     }
-    private Annotation getPhrase(Annotation trigger, List<Annotation> tokens) {
-        return getPhrase(trigger, tokens, inAnns);
+
+    /** Paths as sets, for constant time lookups (PriorityQueue.contains is linear) */
+    private static List<Set<Annotation>> toSets(List<PriorityQueue<Annotation>> paths) {
+        List<Set<Annotation>> sets = new ArrayList<Set<Annotation>>(paths.size());
+        for (PriorityQueue<Annotation> path : paths) {
+            sets.add(new HashSet<Annotation>(path));
+        }
+        return sets;
     }
 
-    /** Standard function for creating scope annotation and features */
-    private void annotateScope(Long startOffset, Long endOffset,
-                               Annotation trigger, String heuristic)
-                        throws InvalidOffsetException {
+    /** Standard function for creating scope annotation and features.
+     * The scope is buffered, and added to the output with commitScopes(). */
+    private void annotateScope(ExecutionContext ctx, ScopeOutput output,
+                               long startOffset, long endOffset,
+                               Annotation predicate, String heuristic) {
+        Annotation trigger = output.getTrigger(predicate);
         // If scope already exists for a different heuristic issue a warning
-        Annotation scope = getScope(trigger);
+        String span = trigger.getStartNode().getOffset() + ":"
+                    + trigger.getEndNode().getOffset();
+        BufferedScope scope = output.triggerScopes.get(span);
+        if (scope == null && !output.copyTriggers) {
+            Annotation existing = getExistingScope(ctx, trigger, span);
+            if (existing != null) scope = new BufferedScope(existing);
+        }
         if (scope != null) {
-            if (DEBUG) {
-                String oldHeuristic =
-                    scope.getFeatures().get(SCOPE_HEURISTIC_FEATURE).toString();
+            if (warnMultipleScopes) {
+                String oldHeuristic = scope.heuristic;
                 if (!heuristic.equals(oldHeuristic)) {
-                    String newScope = this.getDocument().getContent().getContent(
-                            startOffset, endOffset).toString();
+                    String newScope = getText(ctx, startOffset, endOffset);
                     System.err.println("Warning: Multiple scopes detected for trigger:");
-                    System.err.println("    OLD: "+getAnnotationText(trigger)+" -> ("
-                                      +oldHeuristic+") "+getAnnotationText(scope));
-                    System.err.println("    NEW: "+getAnnotationText(trigger)+" -> ("
+                    System.err.println("    OLD: "+getAnnotationText(trigger, ctx.document)+" -> ("
+                                      +oldHeuristic+") "+getText(ctx, scope.start, scope.end));
+                    System.err.println("    NEW: "+getAnnotationText(trigger, ctx.document)+" -> ("
                                       +heuristic+") "+newScope);
                 }
             }
         // Otherwise annotate scope
         } else {
-            FeatureMap scopeFeatures = gate.Factory.newFeatureMap();
-            FeatureMap triggerFeatures = trigger.getFeatures();
-
-            scopeFeatures.put(SCOPE_HEURISTIC_FEATURE, heuristic);
-            scopeFeatures.put(SCOPE_TRIGGERID_FEATURE, trigger.getId());
-            scopeFeatures.put(SCOPE_TRIGGERSTRING_FEATURE, getAnnotationText(trigger));
-            for (String f : SCOPE_INHERITED_FEATURES) {
-                if (triggerFeatures.containsKey(f)) {
-                    scopeFeatures.put(f, triggerFeatures.get(f));
-                }
+            scope = new BufferedScope(trigger, startOffset, endOffset, heuristic);
+            output.triggerScopes.put(span, scope);
+            output.pending.add(scope);
+        }
+    }
+
+    /** Find the scope of a trigger already in the input, like getScope().
+     *  The scopes of the sentence (or root node) are indexed by trigger
+     *  span once, rather than scanned for every trigger; the index is
+     *  dropped whenever scopes are committed. */
+    private Annotation getExistingScope(ExecutionContext ctx, Annotation trigger,
+                                        String span) {
+        Annotation region;
+        if (useDependencyScope) {
+            // Without syntax trees, look in the sentence instead of the root node
+            region = ctx.sentence;
+        } else {
+            region = getStn(trigger, PHRASE_CATEGORY_ROOT, ctx.inAnns);
+            if (region == null) {
+                System.err.println("Error: No root node found.");
+                return null;
+            }
+        }
+        if (ctx.existingScopes == null || ctx.existingScopesRegion != region) {
+            Map<String, Annotation> index = new HashMap<String, Annotation>();
+            for (Annotation scope : ctx.inAnns.get(SCOPE_ANNOTATION_TYPE,
+                    region.getStartNode().getOffset(), region.getEndNode().getOffset())) {
+                Annotation scopeTrigger = getScopeTrigger(scope, ctx.inAnns);
+                if (scopeTrigger == null) continue;
+                String key = scopeTrigger.getStartNode().getOffset() + ":"
+                           + scopeTrigger.getEndNode().getOffset();
+                // Keep the first scope, as getScope() does
+                if (!index.containsKey(key)) index.put(key, scope);
             }
+            ctx.existingScopes = index;
+            ctx.existingScopesRegion = region;
+        }
+        return ctx.existingScopes.get(span);
+    }
 
-            outAnns.add(startOffset, endOffset, SCOPE_ANNOTATION_TYPE, scopeFeatures);
+    /** A scope found in PHASE 1, which may not have been added to the output yet */
+    private static class BufferedScope {
+        final Annotation trigger;
+        final long start;
+        final long end;
+        final String heuristic;
 
-            // Add features to trigger: scopeID, scopeString
-            scope = getScope(trigger); // Get the scope we just added to the document
-            triggerFeatures.put(TRIGGER_SCOPEID_FEATURE, scope.getId());
-            triggerFeatures.put(TRIGGER_SCOPESTRING_FEATURE, getAnnotationText(scope));
+        BufferedScope(Annotation trigger, long start, long end, String heuristic) {
+            this.trigger = trigger;
+            this.start = start;
+            this.end = end;
+            this.heuristic = heuristic;
+        }
+
+        /** A scope which is already in the document */
+        BufferedScope(Annotation scope) {
+            this(null, scope.getStartNode().getOffset(), scope.getEndNode().getOffset(),
+                 String.valueOf(scope.getFeatures().get(SCOPE_HEURISTIC_FEATURE)));
         }
     }
-    /** Annotates scope from the offsets of an existing annotation */
-    private void annotateScope(Annotation scope, Annotation trigger,
-                               String heuristic) {
+
+    /** Add the buffered scopes to their outputs, and write the scopeID and
+     *  scopeString features of their triggers. Scopes are added in the order
+     *  they were found, each trigger is updated once. The committed scopes
+     *  are then published to the subscribers, waiting for their demand. */
+    private void commitScopes(ExecutionContext ctx) throws ExecutionException {
+        List<ScopeResult> committed = results.hasSubscribers()
+                ? new ArrayList<ScopeResult>() : null;
+        ctx.existingScopes = null;
+        for (ScopeOutput output : ctx.outputs) {
+            if (output.pending.isEmpty()) continue;
+            for (BufferedScope buffered : output.pending) {
+                Annotation trigger = buffered.trigger;
+                FeatureMap triggerFeatures = trigger.getFeatures();
+                FeatureMap scopeFeatures = gate.Factory.newFeatureMap();
+                scopeFeatures.put(SCOPE_HEURISTIC_FEATURE, buffered.heuristic);
+                scopeFeatures.put(SCOPE_TRIGGERID_FEATURE, trigger.getId());
+                scopeFeatures.put(SCOPE_TRIGGERSTRING_FEATURE,
+                                  getAnnotationText(trigger, ctx.document));
+                for (String f : SCOPE_INHERITED_FEATURES) {
+                    if (triggerFeatures.containsKey(f)) {
+                        scopeFeatures.put(f, triggerFeatures.get(f));
+                    }
+                }
+                FeatureMap scopeRefs = gate.Factory.newFeatureMap();
+                try {
+                    Integer scopeId = output.outAnns.add(buffered.start, buffered.end,
+                                                 SCOPE_ANNOTATION_TYPE, scopeFeatures);
+                    scopeRefs.put(TRIGGER_SCOPEID_FEATURE, scopeId);
+                    scopeRefs.put(TRIGGER_SCOPESTRING_FEATURE, ctx.document.getContent()
+                            .getContent(buffered.start, buffered.end));
+                } catch (InvalidOffsetException e) {
+                    System.err.println("Error: invalid scope offsets.");
+                    e.printStackTrace();
+                    continue;
+                }
+                ctx.scopes++;
+
+                // Add features to trigger in a single update: scopeID, scopeString.
+                // putAll() on the trigger's own map fires an event per feature,
+                // so the features are set as a new map, which fires one.
+                FeatureMap updated = gate.Factory.newFeatureMap();
+                updated.putAll(triggerFeatures);
+                updated.putAll(scopeRefs);
+                trigger.setFeatures(updated);
+                if (committed != null) {
+                    committed.add(new ScopeResult(ctx.documentId,
+                            output.copyTriggers ? output.config.getName() : null,
+                            trigger, (Integer) scopeRefs.get(TRIGGER_SCOPEID_FEATURE),
+                            buffered.start, buffered.end, buffered.heuristic));
+                }
+
+                if (ctx.statistics != null
+                        && (ctx.unsampled == null || !ctx.unsampled.contains(trigger))) {
+                    int tokens = ctx.inAnns.get(TOKEN_ANNOTATION_TYPE,
+                                                buffered.start, buffered.end).size();
+                    ctx.statistics.recordScope(
+                            output.copyTriggers ? output.config.getName() : null,
+                            trigger, buffered.heuristic, tokens,
+                            buffered.end - buffered.start);
+                }
+            }
+            output.pending.clear();
+        }
+        if (committed == null) return;
         try {
-            Long startOffset = scope.getStartNode().getOffset();
-            Long endOffset   = scope.getEndNode().getOffset();
-            annotateScope(startOffset, endOffset, trigger, heuristic);
-        } catch (InvalidOffsetException e) {
-            System.err.println("Error: invalid scope offsets.");
-            e.printStackTrace();
+            for (ScopeResult result : committed) {
+                results.publish(result, this);
+            }
+        } catch (InterruptedException e) {
+            // Keep the interrupt status of the thread, unless the PR was interrupted
+            if (!isInterrupted()) Thread.currentThread().interrupt();
+            throw new ExecutionInterruptedException(
+                    "Interrupted while publishing scopes of " + ctx.document.getName());
         }
     }
 
-    /** Returns true iff token's POS matches given POS.
-     * @param   token  Annotation with a part-of-speech category.
-     * @param   pos    The desired part-of-speech pattern.
-     * @param   strict (optional) whether to match the 'pos' pattern exactly,
-     *                 default is false.
-     * @param   cat    (optional) the feature name for the category,
-     *                 default is "category".
-     * @return  Whether the POS of the token matches the given POS
-     * */
-    private boolean filterPos(Annotation token, String pos) {
-        return filterPos(token, pos, false, "category");
-    }
-    private boolean filterPos(Annotation token, String pos, String cat) {
-        return filterPos(token, pos, false, cat);
-    }
-    private boolean filterPos(Annotation token, String pos, boolean strict) {
-        return filterPos(token, pos, strict, "category");
+    /** Subscribe to the scopes found by this PR, published as soon as
+     *  each sentence has been scoped. The subscriber receives no more
+     *  scopes than it requested: execution waits for its demand. The
+     *  subscription completes when the PR is cleaned up. */
+    public void subscribe(ScoperFlow.Subscriber<? super ScopeResult> subscriber) {
+        results.subscribe(subscriber);
     }
-    private boolean filterPos(Annotation token, String pos,
-                              boolean strict, String cat) {
-        String tokenPos = token.getFeatures().get(cat).toString();
-        if (strict) return tokenPos.equals(pos);
-        return ( tokenPos.length() >= pos.length() &&
-                 tokenPos.substring(0, pos.length()).equals(pos) );
+
+    private static String getText(ExecutionContext ctx, long start, long end) {
+        try {
+            return ctx.document.getContent().getContent(start, end).toString();
+        } catch (InvalidOffsetException e) {
+            System.err.println("Error: Invalid Annotation Offsets");
+            return null;
+        }
     }
 
     /** Get the trigger which corresponds to this scope */
@@ -741,9 +1470,6 @@ public class Scoper extends AbstractLanguageAnalyser
                 scope.getFeatures().get(SCOPE_TRIGGERID_FEATURE).toString()));
         return trigger;
     }
-    private Annotation getScopeTrigger(Annotation scope) {
-        return getScopeTrigger(scope, inAnns);
-    }
 
     /** Find the scope which corresponds to this trigger or token */
     public static Annotation getScope(Annotation trigger,
@@ -753,10 +1479,16 @@ public class Scoper extends AbstractLanguageAnalyser
             System.err.println("Error: No root node found.");
             return null;
         }
+        return getScope(trigger, root, alist);
+    }
+    /** Find the scope which corresponds to this trigger within a sentence
+     *  (or root node) */
+    public static Annotation getScope(Annotation trigger, Annotation sentence,
+            AnnotationSet alist) {
         // Find scope who's triggerId corresponds to this trigger
         AnnotationSet sentenceScopes = alist.get(SCOPE_ANNOTATION_TYPE,
-                                           root.getStartNode().getOffset(),
-                                           root.getEndNode().getOffset());
+                                           sentence.getStartNode().getOffset(),
+                                           sentence.getEndNode().getOffset());
         for (Annotation scope : sentenceScopes) {
             Annotation scopeTrigger = getScopeTrigger(scope, alist);
             if (scopeTrigger != null && trigger.coextensive(scopeTrigger)) {
@@ -766,9 +1498,6 @@ public class Scoper extends AbstractLanguageAnalyser
         // No scope found
         return null;
     }
-    private Annotation getScope(Annotation trigger) {
-        return getScope(trigger, inAnns);
-    }
 
     /** Get a SyntaxTreeNode of a certain category including an annotation */
     public static Annotation getStn(Annotation ann, String cat, AnnotationSet alist) {
@@ -779,9 +1508,6 @@ public class Scoper extends AbstractLanguageAnalyser
         }
         return null;
     }
-    private Annotation getStn(Annotation ann, String cat) {
-        return getStn(ann, cat, inAnns);
-    }
 
     /** Starting from a token, get a sorted list of embedded typed Annotations */
     public static PriorityQueue<Annotation> getPath(Annotation token,
@@ -794,7 +1520,7 @@ public class Scoper extends AbstractLanguageAnalyser
             queue = new PriorityQueue<Annotation>(10,
                             Collections.reverseOrder(comparator));
         }
-        for (Annotation a : getOverlaping(token, alist.get(type))) {
+        for (Annotation a : getOverlaping(token, type, alist)) {
             queue.add(a);
         }
         return queue;
@@ -803,26 +1529,17 @@ public class Scoper extends AbstractLanguageAnalyser
             AnnotationSet alist) {
         return getPath(token, type, true, alist);
     }
-    private PriorityQueue<Annotation> getPath(Annotation token, String type,
-            boolean naturalOrder) {
-        return getPath(token, type, naturalOrder, inAnns);
-    }
-    private PriorityQueue<Annotation> getPath(Annotation token, String type) {
-        return getPath(token, type, inAnns);
-    }
 
     /** Get the dependencies for this token/trigger */
     public static List<ScoperDependency> getDependencies(Annotation trigger,
             AnnotationSet alist) {
         ArrayList<ScoperDependency> depList = new ArrayList<ScoperDependency>();
         Annotation token = getToken(trigger, alist);
-        for (Annotation dep : getOverlaping(trigger, alist.get(DEPENDENCY_ANNOTATION_TYPE))) {
+        for (Annotation dep : getOverlaping(trigger, DEPENDENCY_ANNOTATION_TYPE, alist)) {
             String type = dep.getFeatures().get(DEPENDENCY_LABEL_FEATURE).toString().trim();
-            String ids  = dep.getFeatures().get(DEPENDENCY_ARG_FEATURE).toString().trim();
-            ids = ids.substring(1, ids.length()-1);
-            String[] args = ids.split("\\,");
-            int depId = Integer.parseInt(args[1].trim());
-            int govId = Integer.parseInt(args[0].trim());
+            int[] args = getDependencyArgs(dep);
+            int govId = args[0];
+            int depId = args[1];
             // Convert dependency annotation to ScoperDependency
             if (token.getId() == govId) {
                 depList.add(new ScoperDependency(type, depId, true));
@@ -833,22 +1550,26 @@ public class Scoper extends AbstractLanguageAnalyser
         }
         return depList;
     }
-    private List<ScoperDependency> getDependencies(Annotation trigger) {
-        return getDependencies(trigger, inAnns);
+
+    /** Get the Annotation IDs of the governor and dependant of a Dependency */
+    public static int[] getDependencyArgs(Annotation dep) {
+        String ids = dep.getFeatures().get(DEPENDENCY_ARG_FEATURE).toString().trim();
+        ids = ids.substring(1, ids.length()-1);
+        String[] args = ids.split("\\,");
+        return new int[] { Integer.parseInt(args[0].trim()),
+                           Integer.parseInt(args[1].trim()) };
     }
 
     public static List<ScoperDependency> getCollapsedDependencies(Annotation trigger,
             AnnotationSet alist) {
         ArrayList<ScoperDependency> depList = new ArrayList<ScoperDependency>();
         Annotation token = getToken(trigger, alist);
-        for (Annotation dep : getOverlaping(trigger, alist.get(DEPENDENCY_ANNOTATION_TYPE))) {
+        for (Annotation dep : getOverlaping(trigger, DEPENDENCY_ANNOTATION_TYPE, alist)) {
             String type = dep.getFeatures().get(DEPENDENCY_LABEL_FEATURE).toString().trim();
             if ( !type.endsWith(token.getFeatures().get(TOKEN_STRING_FEATURE).toString()) ) continue;
-            String ids  = dep.getFeatures().get(DEPENDENCY_ARG_FEATURE).toString().trim();
-            ids = ids.substring(1, ids.length()-1);
-            String[] args = ids.split("\\,");
-            int depId = Integer.parseInt(args[1].trim());
-            int govId = Integer.parseInt(args[0].trim());
+            int[] args = getDependencyArgs(dep);
+            int govId = args[0];
+            int depId = args[1];
             // Convert dependency annotation to ScoperDependency
             // Add two dependencies for every collapsed dependency
             depList.add(new ScoperDependency(type, depId, true));
@@ -856,9 +1577,6 @@ public class Scoper extends AbstractLanguageAnalyser
         }
         return depList;
     }
-    private List<ScoperDependency> getCollapsedDependencies(Annotation trigger) {
-        return getCollapsedDependencies(trigger, inAnns);
-    }
 
     /** Get the scope type */
     public static String getScopeType(Annotation trigger) {
@@ -876,28 +1594,21 @@ public class Scoper extends AbstractLanguageAnalyser
     /** Get the Sentence for this token/trigger */
     public static Annotation getSentence(Annotation token, AnnotationSet alist,
             String sentenceType) {
-        for (Annotation a : getOverlaping(token, alist.get(sentenceType))) {
+        for (Annotation a : getOverlaping(token, sentenceType, alist)) {
             return a;
         }
         return null;
     }
-    private Annotation getSentence(Annotation token) {
-        return getSentence(token, inAnns, sentenceAnnName);
-    }
 
     /** Find the token which corresponds to this trigger */
     public static Annotation getToken(Annotation trigger, AnnotationSet alist) {
-        return getCoextensive(trigger, alist.get(TOKEN_ANNOTATION_TYPE));
-    }
-    private Annotation getToken(Annotation trigger) {
-        Annotation token = getToken(trigger, inAnns);
-        if (DEBUG && token == null) {
-            System.err.println( "Warning: no token for trigger ("
-                + getAnnotationText(trigger).toString() + ")" );
+        for (Annotation a : getOverlaping(trigger, TOKEN_ANNOTATION_TYPE, alist)) {
+            if (trigger.coextensive(a)) {
+                return a;
+            }
         }
-        return token;
+        return null;
     }
-
     /** Find the first coextensive annotation in a list or return null */
     public static Annotation getCoextensive(Annotation ann, AnnotationSet alist) {
         for (Annotation a : getOverlaping(ann, alist)) {
@@ -913,6 +1624,15 @@ public class Scoper extends AbstractLanguageAnalyser
         return alist.get(ann.getStartNode().getOffset(),
                          ann.getEndNode().getOffset());
     }
+    /** Find the overlaping annotations of a type. Unlike
+     *  getOverlaping(ann, alist.get(type)), this uses the offset index of
+     *  the whole set rather than building a set of the type and indexing it
+     *  on every call, which made each lookup linear in the document. */
+    public static AnnotationSet getOverlaping(Annotation ann, String type,
+            AnnotationSet alist) {
+        return alist.get(type, ann.getStartNode().getOffset(),
+                         ann.getEndNode().getOffset());
+    }
 
     /** Get the text of an annotation */
     public static gate.DocumentContent getAnnotationText(Annotation annotation,
@@ -927,9 +1647,6 @@ public class Scoper extends AbstractLanguageAnalyser
             return null;
         }
     }
-    private gate.DocumentContent getAnnotationText(Annotation annotation) {
-        return getAnnotationText(annotation, this.getDocument());
-    }
 
     @Optional
     @RunTime
@@ -1041,6 +1758,202 @@ public class Scoper extends AbstractLanguageAnalyser
         return this.enableGrammarScope;
     }
 
+    @RunTime
+    @CreoleParameter(comment = "Derive scope spans from the dependency graph instead of the syntax tree, so that SyntaxTreeNode annotations are not needed",
+                     defaultValue = "false")
+    public void setUseDependencyScope(Boolean useDependencyScope) {
+        this.useDependencyScope = useDependencyScope;
+    }
+
+    public Boolean getUseDependencyScope() {
+        return this.useDependencyScope;
+    }
+
+    @Optional
+    @RunTime
+    @CreoleParameter(comment = "Time budget of a document, in milliseconds (0 for none). Triggers left when it runs out are not scoped, and get the feature degraded=documentBudget",
+                     defaultValue = "0")
+    public void setDocumentTimeBudget(Integer documentTimeBudget) {
+        this.documentTimeBudget = documentTimeBudget;
+    }
+
+    public Integer getDocumentTimeBudget() {
+        return this.documentTimeBudget;
+    }
+
+    @Optional
+    @RunTime
+    @CreoleParameter(comment = "Time budget of a sentence, in milliseconds (0 for none). Triggers left when it runs out are scoped without the grammarscope heuristic, the trigger being scoped stops its grammarscope search and phrase fallbacks, and they get the feature degraded=sentenceBudget",
+                     defaultValue = "0")
+    public void setSentenceTimeBudget(Integer sentenceTimeBudget) {
+        this.sentenceTimeBudget = sentenceTimeBudget;
+    }
+
+    public Integer getSentenceTimeBudget() {
+        return this.sentenceTimeBudget;
+    }
+
+    @Optional
+    @RunTime
+    @CreoleParameter(comment = "Process sentences in windows of this size to bound memory on large documents (0 processes the whole document at once). The sentence cache, scope matrices, scope index and scope tables are still built for the whole document",
+                     defaultValue = "0")
+    public void setSentenceWindowSize(Integer sentenceWindowSize) {
+        this.sentenceWindowSize = sentenceWindowSize;
+    }
+
+    public Integer getSentenceWindowSize() {
+        return this.sentenceWindowSize;
+    }
+
+    @Optional
+    @RunTime
+    @CreoleParameter(comment = "Binary cache of the parsed sentences (tokens, dependencies, syntax trees and triggers) of the corpus",
+                     suffixes = "scpr")
+    public void setSentenceCacheFile(URL sentenceCacheFile) {
+        this.sentenceCacheFile = sentenceCacheFile;
+    }
+
+    public URL getSentenceCacheFile() {
+        return this.sentenceCacheFile;
+    }
+
+    @RunTime
+    @CreoleParameter(comment = "Read the parsed sentences from the sentence cache instead of writing them",
+                     defaultValue = "false")
+    public void setReadSentenceCache(Boolean readSentenceCache) {
+        this.readSentenceCache = readSentenceCache;
+    }
+
+    public Boolean getReadSentenceCache() {
+        return this.readSentenceCache;
+    }
+
+    @Optional
+    @RunTime
+    @CreoleParameter(comment = "Evaluate several configurations in one pass, each written to the annotation set of its name, e.g. narrow:negator or wide:negator,adj,grammar,filter (overrides the enable* and filterPredicates parameters)")
+    public void setSweepConfigurations(List<String> sweepConfigurations) {
+        this.sweepConfigurations = sweepConfigurations;
+    }
+
+    public List<String> getSweepConfigurations() {
+        return this.sweepConfigurations;
+    }
+
+    @Optional
+    @RunTime
+    @CreoleParameter(comment = "Log tracing events (documents, phases and optionally heuristics, with durations) to this file, see ScoperEvents",
+                     suffixes = "tsv")
+    public void setEventLogFile(URL eventLogFile) {
+        this.eventLogFile = eventLogFile;
+    }
+
+    public URL getEventLogFile() {
+        return this.eventLogFile;
+    }
+
+    @RunTime
+    @CreoleParameter(comment = "Also log an event for each heuristic applied to a trigger (slower)",
+                     defaultValue = "false")
+    public void setLogHeuristicEvents(Boolean logHeuristicEvents) {
+        this.logHeuristicEvents = logHeuristicEvents;
+    }
+
+    public Boolean getLogHeuristicEvents() {
+        return this.logHeuristicEvents;
+    }
+
+    @Optional
+    @RunTime
+    @CreoleParameter(comment = "Write corpus statistics (heuristics, scope lengths, noscope rate) as JSON to this file at the end of each corpus",
+                     suffixes = "json")
+    public void setStatisticsFile(URL statisticsFile) {
+        this.statisticsFile = statisticsFile;
+    }
+
+    public URL getStatisticsFile() {
+        return this.statisticsFile;
+    }
+
+    @RunTime
+    @CreoleParameter(comment = "Scope every token of each sentence once, keeping the scopes in the scopeTable document feature; later runs (e.g. with other triggers) look the scopes up instead of parsing the sentences again",
+                     defaultValue = "false")
+    public void setUseScopeTable(Boolean useScopeTable) {
+        this.useScopeTable = useScopeTable;
+    }
+
+    public Boolean getUseScopeTable() {
+        return this.useScopeTable;
+    }
+
+    @Optional
+    @RunTime
+    @CreoleParameter(comment = "Only scope this fraction of the triggers of each type/minorType, for quick corpus estimates (see statisticsFile); triggers left out get the feature sampled=false")
+    public void setSamplingRate(Double samplingRate) {
+        this.samplingRate = samplingRate;
+    }
+
+    public Double getSamplingRate() {
+        return this.samplingRate;
+    }
+
+    @Optional
+    @RunTime
+    @CreoleParameter(comment = "Sampling rates of some trigger groups, as type/minorType=rate or type=rate (overriding samplingRate)")
+    public void setSamplingRates(List<String> samplingRates) {
+        this.samplingRates = samplingRates;
+    }
+
+    public List<String> getSamplingRates() {
+        return this.samplingRates;
+    }
+
+    @Optional
+    @RunTime
+    @CreoleParameter(comment = "Seed of the sample: the same seed samples the same triggers",
+                     defaultValue = "0")
+    public void setSamplingSeed(Long samplingSeed) {
+        this.samplingSeed = samplingSeed;
+    }
+
+    public Long getSamplingSeed() {
+        return this.samplingSeed;
+    }
+
+    @Optional
+    @RunTime
+    @CreoleParameter(comment = "Binary file of the scopes covering each token (a mask of trigger types, the nesting depth and a mask of polarities), for feature extraction (see ScopeMatrix)",
+                     suffixes = "scmx")
+    public void setScopeMatrixFile(URL scopeMatrixFile) {
+        this.scopeMatrixFile = scopeMatrixFile;
+    }
+
+    public URL getScopeMatrixFile() {
+        return this.scopeMatrixFile;
+    }
+
+    @Optional
+    @RunTime
+    @CreoleParameter(comment = "Inverted index of the tokens and the scopes covering them (trigger type, minorType, polarity and heuristic), written at the end of each corpus (see ScopeIndex)",
+                     suffixes = "scix")
+    public void setScopeIndexFile(URL scopeIndexFile) {
+        this.scopeIndexFile = scopeIndexFile;
+    }
+
+    public URL getScopeIndexFile() {
+        return this.scopeIndexFile;
+    }
+
+    @RunTime
+    @CreoleParameter(comment = "Apply every heuristic to each trigger, and warn when several of them find a scope (slower: otherwise the heuristics which cannot find the first scope are skipped)",
+                     defaultValue = "false")
+    public void setWarnMultipleScopes(Boolean warnMultipleScopes) {
+        this.warnMultipleScopes = warnMultipleScopes;
+    }
+
+    public Boolean getWarnMultipleScopes() {
+        return this.warnMultipleScopes;
+    }
+
     @RunTime
     @CreoleParameter(comment = "The document to be processed")
     public void setDocument(gate.Document document) {
@@ -0,0 +1,269 @@
+package clac.creole.scope;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * Binary file holding the parsed sentences (ScoperSentence) of a corpus,
+ * so that Scoper can be run again with different parameters without
+ * loading the token, dependency and syntax tree annotations.
+ *
+ * File layout (big endian):
+ * <pre>
+ *   header:    int MAGIC, int VERSION
+ *   documents: for each document, int sentence count, then the sentences
+ *   lexicon:   int count, then each string (int length, UTF-8 bytes)
+ *   index:     int count, then for each document its id (as a string),
+ *              long offset, int length
+ *   trailer:   long lexicon offset, long index offset, int MAGIC
+ * </pre>
+ * Strings inside sentences are codes of the lexicon. Documents are read
+ * from a memory mapped view of the file.
+ */
+public class ScoperCache {
+
+    public static final int MAGIC   = 0x53435052; // "SCPR"
+    public static final int VERSION = 1;
+
+    private static final int TRAILER_SIZE = 8 + 8 + 4;
+    /** Maximum size of a single mapping */
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    /** Writers shared between workers, by output file */
+    private static final SharedResources<Writer> WRITERS = new SharedResources<Writer>() {
+        protected Writer open(File file) throws IOException {
+            return new Writer(file);
+        }
+    };
+
+    /** Get the writer of a file (see SharedResources) */
+    public static Writer acquireWriter(File file) throws IOException {
+        return WRITERS.acquire(file);
+    }
+
+    /** Release a writer, closing it if this is its last user */
+    public static void releaseWriter(Writer writer) throws IOException {
+        if (WRITERS.release(writer.file)) writer.close();
+    }
+
+    /** Appends documents to a cache file, each as a whole */
+    public static class Writer {
+        private final File file;
+        private final DataOutputStream out;
+        private final ScoperLexicon lexicon = new ScoperLexicon();
+        private final Map<String, long[]> index = new LinkedHashMap<String, long[]>();
+        private long position;
+
+        public Writer(File file) throws IOException {
+            this.file = file;
+            this.out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            position = 8;
+        }
+
+        /** Write the sentences of a document. If a document with the same
+         *  name was already written, the new one replaces it. */
+        public void writeDocument(String name, List<ScoperSentence> sentences)
+                throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream doc = new DataOutputStream(bytes);
+            doc.writeInt(sentences.size());
+            for (ScoperSentence s : sentences) {
+                s.write(doc, lexicon);
+            }
+            doc.flush();
+            synchronized (this) {
+                bytes.writeTo(out);
+                index.put(name, new long[] { position, bytes.size() });
+                position += bytes.size();
+            }
+        }
+
+        /** Write the lexicon, index and trailer, and close the file */
+        public synchronized void close() throws IOException {
+            try {
+                long lexiconOffset = position;
+                String[] strings = lexicon.toArray();
+                out.writeInt(strings.length);
+                position += 4;
+                for (String s : strings) {
+                    position += writeString(out, s);
+                }
+                long indexOffset = position;
+                out.writeInt(index.size());
+                for (Map.Entry<String, long[]> e : index.entrySet()) {
+                    writeString(out, e.getKey());
+                    out.writeLong(e.getValue()[0]);
+                    out.writeInt((int) e.getValue()[1]);
+                }
+                out.writeLong(lexiconOffset);
+                out.writeLong(indexOffset);
+                out.writeInt(MAGIC);
+            } finally {
+                out.close();
+            }
+        }
+
+        public File getFile() {
+            return file;
+        }
+    }
+
+    /** Reads documents from a cache file. A reader may be used by several
+     *  threads. */
+    public static class Reader {
+        private final File file;
+        private final RandomAccessFile raf;
+        private final String[] lexicon;
+        private final Map<String, long[]> index = new LinkedHashMap<String, long[]>();
+        /** Mappings of the document section, with their start offset */
+        private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+        private final List<Long> segmentStarts = new ArrayList<Long>();
+
+        public Reader(File file) throws IOException {
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                long size = channel.size();
+                if (size < 8 + TRAILER_SIZE) {
+                    throw new IOException("Not a Scoper cache file: " + file);
+                }
+                ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, 8);
+                ByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY,
+                                                 size - TRAILER_SIZE, TRAILER_SIZE);
+                long lexiconOffset = trailer.getLong();
+                long indexOffset = trailer.getLong();
+                if (header.getInt() != MAGIC || trailer.getInt() != MAGIC) {
+                    throw new IOException("Not a Scoper cache file: " + file);
+                }
+                int version = header.getInt();
+                if (version != VERSION) {
+                    throw new IOException("Unsupported Scoper cache version "
+                            + version + ": " + file);
+                }
+                // Lexicon and index
+                ByteBuffer tail = channel.map(FileChannel.MapMode.READ_ONLY, lexiconOffset,
+                                              size - TRAILER_SIZE - lexiconOffset);
+                lexicon = new String[tail.getInt()];
+                for (int i = 0; i < lexicon.length; i++) {
+                    lexicon[i] = readString(tail);
+                }
+                tail.position((int) (indexOffset - lexiconOffset));
+                int n = tail.getInt();
+                for (int i = 0; i < n; i++) {
+                    String name = readString(tail);
+                    index.put(name, new long[] { tail.getLong(), tail.getInt() });
+                }
+                mapSegments(channel, lexiconOffset);
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        /** Map the document section, in segments which never split a document */
+        private void mapSegments(FileChannel channel, long end) throws IOException {
+            List<long[]> entries = new ArrayList<long[]>(index.values());
+            Collections.sort(entries, new Comparator<long[]>() {
+                public int compare(long[] e1, long[] e2) {
+                    return e1[0] < e2[0] ? -1 : (e1[0] == e2[0] ? 0 : 1);
+                }
+            });
+            long segmentStart = 8;
+            for (long[] e : entries) {
+                if (e[0] + e[1] - segmentStart > SEGMENT_SIZE) {
+                    map(channel, segmentStart, e[0]);
+                    segmentStart = e[0];
+                }
+            }
+            map(channel, segmentStart, end);
+        }
+
+        private void map(FileChannel channel, long start, long end) throws IOException {
+            if (end <= start) return;
+            segments.add(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+            segmentStarts.add(start);
+        }
+
+        public boolean containsDocument(String name) {
+            return index.containsKey(name);
+        }
+
+        /** Names of the documents, in the order they were written */
+        public Set<String> getDocumentNames() {
+            return Collections.unmodifiableSet(index.keySet());
+        }
+
+        /** The size of a document in the file, in bytes, or -1 if it is not
+         *  in the cache */
+        public int getDocumentSize(String name) {
+            long[] entry = index.get(name);
+            return entry == null ? -1 : (int) entry[1];
+        }
+
+        /** Read the sentences of a document, or null if it is not in the cache */
+        public List<ScoperSentence> getDocument(String name) {
+            long[] entry = index.get(name);
+            if (entry == null) return null;
+            ByteBuffer buffer = getBuffer(entry[0], (int) entry[1]);
+            int n = buffer.getInt();
+            List<ScoperSentence> sentences = new ArrayList<ScoperSentence>(n);
+            for (int i = 0; i < n; i++) {
+                sentences.add(ScoperSentence.read(buffer, lexicon));
+            }
+            return sentences;
+        }
+
+        private ByteBuffer getBuffer(long offset, int length) {
+            int i = segments.size() - 1;
+            while (segmentStarts.get(i) > offset) i--;
+            ByteBuffer buffer = segments.get(i).duplicate();
+            int position = (int) (offset - segmentStarts.get(i));
+            buffer.limit(position + length);
+            buffer.position(position);
+            return buffer.slice();
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public void close() throws IOException {
+            raf.close();
+        }
+    }
+
+    /** Find the sentence with the given offsets in a list of sentences
+     *  sorted by offsets, or null */
+    public static ScoperSentence findSentence(List<ScoperSentence> sentences,
+                                              long start, long end) {
+        int lo = 0, hi = sentences.size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            ScoperSentence s = sentences.get(mid);
+            if (s.getStart() < start) lo = mid + 1;
+            else if (s.getStart() > start) hi = mid - 1;
+            else return s.getEnd() == end ? s : null;
+        }
+        return null;
+    }
+
+    private static int writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        return 4 + bytes.length;
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
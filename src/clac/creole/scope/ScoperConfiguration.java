@@ -0,0 +1,124 @@
+package clac.creole.scope;
+
+import java.util.*;
+
+/**
+ * A named combination of the Scoper heuristic parameters.
+ *
+ * Configurations are written as a name followed by the enabled options:
+ * <pre>
+ *   name:negator,adj,nom,grammar,filter
+ * </pre>
+ * where negator, adj, nom and grammar enable the corresponding heuristics
+ * (enableNegatorScope, enableAdjScope, enableNomScope, enableGrammarScope)
+ * and filter enables filterPredicates. Options which are not listed are
+ * disabled, e.g. "narrow:negator" or "none:".
+ */
+public class ScoperConfiguration {
+
+    // Heuristic groups
+    public static final int GROUP_NEGATOR = 0;
+    public static final int GROUP_ADJ     = 1;
+    public static final int GROUP_NOM     = 2;
+    public static final int GROUP_GRAMMAR = 3;
+
+    public static final String OPTION_NEGATOR = "negator";
+    public static final String OPTION_ADJ     = "adj";
+    public static final String OPTION_NOM     = "nom";
+    public static final String OPTION_GRAMMAR = "grammar";
+    public static final String OPTION_FILTER  = "filter";
+
+    private final String name;
+    private final boolean[] groups;
+    private final boolean filterPredicates;
+
+    public ScoperConfiguration(String name, boolean enableNegatorScope,
+            boolean enableAdjScope, boolean enableNomScope,
+            boolean enableGrammarScope, boolean filterPredicates) {
+        this.name = name;
+        this.groups = new boolean[] { enableNegatorScope, enableAdjScope,
+                                      enableNomScope, enableGrammarScope };
+        this.filterPredicates = filterPredicates;
+    }
+
+    /** Parse a configuration of the form name:option,option,... */
+    public static ScoperConfiguration parse(String spec) {
+        int colon = spec.indexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException(
+                    "Invalid configuration (expected name:options): " + spec);
+        }
+        String name = spec.substring(0, colon).trim();
+        Set<String> options = new HashSet<String>();
+        for (String option : spec.substring(colon + 1).split(",")) {
+            option = option.trim();
+            if (option.length() == 0) continue;
+            if (!Arrays.asList(OPTION_NEGATOR, OPTION_ADJ, OPTION_NOM,
+                               OPTION_GRAMMAR, OPTION_FILTER).contains(option)) {
+                throw new IllegalArgumentException(
+                        "Unknown option '" + option + "' in configuration: " + spec);
+            }
+            options.add(option);
+        }
+        return new ScoperConfiguration(name,
+                options.contains(OPTION_NEGATOR), options.contains(OPTION_ADJ),
+                options.contains(OPTION_NOM), options.contains(OPTION_GRAMMAR),
+                options.contains(OPTION_FILTER));
+    }
+
+    /** Parse a list of configurations, checking that names are unique */
+    public static List<ScoperConfiguration> parseAll(List<String> specs) {
+        List<ScoperConfiguration> configs = new ArrayList<ScoperConfiguration>();
+        Set<String> names = new HashSet<String>();
+        for (String spec : specs) {
+            ScoperConfiguration config = parse(spec);
+            if (!names.add(config.getName())) {
+                throw new IllegalArgumentException(
+                        "Duplicate configuration name: " + config.getName());
+            }
+            configs.add(config);
+        }
+        return configs;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** Whether a group of heuristics (GROUP_*) is enabled */
+    public boolean isEnabled(int group) {
+        return groups[group];
+    }
+
+    /** A copy of this configuration with a group of heuristics disabled */
+    public ScoperConfiguration without(int group) {
+        if (!groups[group]) return this;
+        boolean[] enabled = groups.clone();
+        enabled[group] = false;
+        return new ScoperConfiguration(name, enabled[GROUP_NEGATOR], enabled[GROUP_ADJ],
+                enabled[GROUP_NOM], enabled[GROUP_GRAMMAR], filterPredicates);
+    }
+
+    public boolean getFilterPredicates() {
+        return filterPredicates;
+    }
+
+    /** Whether a trigger of this type is scoped with this configuration */
+    public boolean acceptsTrigger(Object type) {
+        return !filterPredicates || Arrays.asList(Scoper.PREDICATE_ALL).contains(type);
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder(name).append(':');
+        String[] options = { OPTION_NEGATOR, OPTION_ADJ, OPTION_NOM, OPTION_GRAMMAR };
+        String sep = "";
+        for (int g = 0; g < options.length; g++) {
+            if (groups[g]) {
+                sb.append(sep).append(options[g]);
+                sep = ",";
+            }
+        }
+        if (filterPredicates) sb.append(sep).append(OPTION_FILTER);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,168 @@
+package clac.creole.scope;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Tracing events emitted while Scoper runs: one event per document, per
+ * phase (PHASE 1 finds the scopes, PHASE 2 propagates the scope features)
+ * and, optionally, per heuristic applied to a trigger.
+ *
+ * Events are sent to the listeners registered with addListener(), which
+ * receive the events of every Scoper in the JVM. No event is built when
+ * no listener is registered, so tracing costs a field read when it is
+ * off (the default). Heuristic events are only sent when a listener asks
+ * for them, since they time every heuristic.
+ *
+ * LogListener writes the events as tab separated lines, with a timestamp
+ * and the thread name, so that they can be matched with profiler
+ * recordings.
+ */
+public class ScoperEvents {
+
+    public static final int PHASE_SCOPE     = 1;
+    public static final int PHASE_PROPAGATE = 2;
+
+    /** Receives Scoper events. Listeners may be called by several threads. */
+    public interface Listener {
+        /** A document was processed */
+        void documentExecuted(String document, int triggers, int scopes, long nanos);
+        /** A phase was run over a document (or a window of it) */
+        void phaseExecuted(String document, int phase, int triggers, long nanos);
+        /** A heuristic was applied to a trigger */
+        void heuristicApplied(String heuristic, Object triggerId, boolean hit, long nanos);
+    }
+
+    private static final Map<Listener, Boolean> REGISTERED =
+            new LinkedHashMap<Listener, Boolean>();
+    private static volatile Listener[] listeners = new Listener[0];
+    private static volatile boolean heuristicEvents = false;
+
+    /** Logs shared between workers, by output file */
+    private static final SharedResources<LogListener> LOGS = new SharedResources<LogListener>() {
+        protected LogListener open(File file) throws IOException {
+            return new LogListener(file);
+        }
+    };
+
+    /** Register a listener.
+     * @param heuristics whether the listener also wants heuristic events */
+    public static synchronized void addListener(Listener listener, boolean heuristics) {
+        REGISTERED.put(listener, heuristics);
+        update();
+    }
+
+    public static synchronized void removeListener(Listener listener) {
+        REGISTERED.remove(listener);
+        update();
+    }
+
+    private static void update() {
+        listeners = REGISTERED.keySet().toArray(new Listener[REGISTERED.size()]);
+        heuristicEvents = REGISTERED.containsValue(Boolean.TRUE);
+    }
+
+    /** Whether document and phase events are sent */
+    public static boolean isEnabled() {
+        return listeners.length > 0;
+    }
+
+    /** Whether heuristic events are sent */
+    public static boolean isHeuristicEnabled() {
+        return heuristicEvents;
+    }
+
+    static void documentExecuted(String document, int triggers, int scopes, long nanos) {
+        for (Listener l : listeners) {
+            l.documentExecuted(document, triggers, scopes, nanos);
+        }
+    }
+
+    static void phaseExecuted(String document, int phase, int triggers, long nanos) {
+        for (Listener l : listeners) {
+            l.phaseExecuted(document, phase, triggers, nanos);
+        }
+    }
+
+    static void heuristicApplied(String heuristic, Object triggerId, boolean hit, long nanos) {
+        for (Listener l : listeners) {
+            l.heuristicApplied(heuristic, triggerId, hit, nanos);
+        }
+    }
+
+    /** Get the log of a file (see SharedResources), and register it */
+    public static LogListener acquireLog(File file, boolean heuristics) throws IOException {
+        synchronized (LOGS) {
+            LogListener log = LOGS.acquire(file);
+            log.heuristics |= heuristics;
+            addListener(log, log.heuristics);
+            return log;
+        }
+    }
+
+    /** Release a log, unregistering and closing it if this is its last
+     *  user */
+    public static void releaseLog(LogListener log) throws IOException {
+        synchronized (LOGS) {
+            if (!LOGS.release(log.file)) return;
+            removeListener(log);
+        }
+        log.close();
+    }
+
+    /** Writes events as tab separated lines:
+     * <pre>
+     *   time  thread  document   name  triggers  scopes  nanos
+     *   time  thread  phase      name  phase  triggers  nanos
+     *   time  thread  heuristic  heuristic  triggerID  hit|miss  nanos
+     * </pre>
+     */
+    public static class LogListener implements Listener {
+        private final File file;
+        private final Writer out;
+        private boolean heuristics = false;
+
+        public LogListener(File file) throws IOException {
+            this.file = file;
+            this.out = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(file), "UTF-8"));
+        }
+
+        public void documentExecuted(String document, int triggers, int scopes, long nanos) {
+            write("document", document, triggers, scopes, nanos);
+        }
+
+        public void phaseExecuted(String document, int phase, int triggers, long nanos) {
+            write("phase", document, phase, triggers, nanos);
+        }
+
+        public void heuristicApplied(String heuristic, Object triggerId, boolean hit, long nanos) {
+            write("heuristic", heuristic, triggerId, hit ? "hit" : "miss", nanos);
+        }
+
+        private void write(String event, Object... values) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(System.currentTimeMillis()).append('\t');
+            sb.append(Thread.currentThread().getName()).append('\t').append(event);
+            for (Object value : values) {
+                sb.append('\t').append(value);
+            }
+            sb.append('\n');
+            synchronized (this) {
+                try {
+                    out.write(sb.toString());
+                } catch (IOException e) {
+                    System.err.println("Error: could not write Scoper event to " + file);
+                }
+            }
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public synchronized void close() throws IOException {
+            out.close();
+        }
+    }
+}
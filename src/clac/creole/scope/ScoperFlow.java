@@ -0,0 +1,35 @@
+package clac.creole.scope;
+
+/**
+ * Interfaces for streams of results with demand control, following
+ * java.util.concurrent.Flow (which needs Java 9): a Subscriber receives
+ * at most as many items as it has requested through its Subscription.
+ */
+public final class ScoperFlow {
+
+    private ScoperFlow() {
+    }
+
+    /** A producer of items, received by its subscribers */
+    public interface Publisher<T> {
+        /** Add a subscriber. Its onSubscribe() method is called first. */
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /** A receiver of items. Methods are never called concurrently for a
+     *  given subscription. */
+    public interface Subscriber<T> {
+        void onSubscribe(Subscription subscription);
+        void onNext(T item);
+        void onError(Throwable throwable);
+        void onComplete();
+    }
+
+    /** Links a publisher and a subscriber */
+    public interface Subscription {
+        /** Ask for n more items (n must be positive) */
+        void request(long n);
+        /** Stop receiving items */
+        void cancel();
+    }
+}
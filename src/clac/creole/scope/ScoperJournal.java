@@ -0,0 +1,205 @@
+package clac.creole.scope;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A checkpoint journal of the documents completed by a corpus run, so that
+ * a run which died can be restarted without scoping those documents again.
+ * The journal is a text file with one tab separated record per document:
+ * <pre>
+ *   document  location  triggers  scopes
+ * </pre>
+ * where location tells where the output of the document was written.
+ *
+ * Records are appended with a single write to a file opened in append
+ * mode, so several workers (threads or processes) can append to the same
+ * journal. A record cut short by a crash is ignored when the journal is
+ * read. The journal is synced to disk every SYNC_RECORDS records or
+ * SYNC_MILLIS milliseconds, and when it is closed: after a crash, the
+ * documents of the last unsynced records may be processed again. Output
+ * files registered with syncWith() are forced to disk before the journal,
+ * so that a synced record never points to output lost in a crash.
+ *
+ * Workers of the same process share a journal (see acquire()).
+ */
+public class ScoperJournal {
+
+    /** Sync after this many records */
+    public static final int SYNC_RECORDS = 100;
+    /** Sync after this many milliseconds */
+    public static final long SYNC_MILLIS = 5000L;
+
+    // Journals shared by the workers of a corpus, by file
+    private static final SharedResources<ScoperJournal> SHARED =
+            new SharedResources<ScoperJournal>() {
+                protected ScoperJournal open(File file) throws IOException {
+                    return new ScoperJournal(file);
+                }
+            };
+
+    /** A record of the journal */
+    public static class Entry {
+        public final String document;
+        public final String location;
+        public final int triggers;
+        public final int scopes;
+
+        public Entry(String document, String location, int triggers, int scopes) {
+            this.document = document;
+            this.location = location;
+            this.triggers = triggers;
+            this.scopes = scopes;
+        }
+    }
+
+    private final File file;
+    private final FileOutputStream out;
+    private final Map<String, Entry> completed = new ConcurrentHashMap<String, Entry>();
+    private final List<FileChannel> outputs = new ArrayList<FileChannel>();
+    private int unsynced = 0;
+    private long lastSync = System.currentTimeMillis();
+
+    /** Open a journal, reading the documents it already contains */
+    public ScoperJournal(File file) throws IOException {
+        this.file = file;
+        boolean newline = read(file);
+        this.out = new FileOutputStream(file, true);
+        // Terminate a record cut short by a crash
+        if (newline) out.write('\n');
+    }
+
+    /** Get the journal of a file (see SharedResources) */
+    public static ScoperJournal acquire(File file) throws IOException {
+        return SHARED.acquire(file);
+    }
+
+    /** Release a journal, closing it if this is its last user */
+    public static void release(ScoperJournal journal) throws IOException {
+        if (SHARED.release(journal.file)) journal.close();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /** Whether a document was completed (by any worker, before this
+     *  journal was opened, or by a worker using this journal) */
+    public boolean isCompleted(String document) {
+        return completed.containsKey(document);
+    }
+
+    /** The record of a completed document, or null */
+    public Entry getEntry(String document) {
+        return completed.get(document);
+    }
+
+    /** All the completed documents */
+    public Collection<Entry> getEntries() {
+        return Collections.unmodifiableCollection(completed.values());
+    }
+
+    /** Record that a document was completed */
+    public void append(String document, String location, int triggers, int scopes)
+            throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append(escape(document)).append('\t').append(escape(location));
+        sb.append('\t').append(triggers).append('\t').append(scopes).append('\n');
+        byte[] record = sb.toString().getBytes("UTF-8");
+        synchronized (this) {
+            out.write(record);
+            unsynced++;
+            if (unsynced >= SYNC_RECORDS
+                    || System.currentTimeMillis() - lastSync >= SYNC_MILLIS) {
+                sync();
+            }
+        }
+        completed.put(document, new Entry(document, location, triggers, scopes));
+    }
+
+    /** Force an output file to disk before each sync of the journal, when
+     *  the records point to data written to it */
+    public synchronized void syncWith(FileChannel output) {
+        outputs.add(output);
+    }
+
+    /** Force the records written so far, and the outputs they point to,
+     *  to disk */
+    public synchronized void sync() throws IOException {
+        for (FileChannel output : outputs) {
+            if (output.isOpen()) output.force(false);
+        }
+        out.getFD().sync();
+        unsynced = 0;
+        lastSync = System.currentTimeMillis();
+    }
+
+    public synchronized void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    /** Read the records of a journal.
+     * @return whether the journal ends with an incomplete record */
+    private boolean read(File file) throws IOException {
+        if (!file.exists()) return false;
+        Reader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"));
+        try {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) >= 0) {
+                if (c != '\n') {
+                    line.append((char) c);
+                    continue;
+                }
+                parse(line.toString());
+                line.setLength(0);
+            }
+            return line.length() > 0;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void parse(String line) {
+        String[] fields = line.split("\t", -1);
+        if (fields.length != 4) {
+            System.err.println("Warning: invalid journal record: " + line);
+            return;
+        }
+        try {
+            Entry entry = new Entry(unescape(fields[0]), unescape(fields[1]),
+                    Integer.parseInt(fields[2]), Integer.parseInt(fields[3]));
+            completed.put(entry.document, entry);
+        } catch (NumberFormatException e) {
+            System.err.println("Warning: invalid journal record: " + line);
+        }
+    }
+
+    static String escape(String s) {
+        if (s == null) return "";
+        return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n")
+                .replace("\r", "\\r");
+    }
+
+    static String unescape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                c = s.charAt(++i);
+                if (c == 't') c = '\t';
+                else if (c == 'n') c = '\n';
+                else if (c == 'r') c = '\r';
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,45 @@
+package clac.creole.scope;
+
+import java.util.*;
+
+/**
+ * Interns the strings (categories, dependency labels, token strings and
+ * trigger features) written to a ScoperCache file, so that they can be
+ * stored as integer codes. The code -1 stands for null.
+ */
+public class ScoperLexicon {
+
+    private final Map<String, Integer> codes = new HashMap<String, Integer>();
+    private final List<String> strings = new ArrayList<String>();
+
+    /** Get the code of a string, adding it to the lexicon if necessary */
+    public synchronized int intern(String s) {
+        if (s == null) return -1;
+        Integer code = codes.get(s);
+        if (code == null) {
+            code = strings.size();
+            codes.put(s, code);
+            strings.add(s);
+        }
+        return code;
+    }
+
+    /** Get the string of a code */
+    public synchronized String get(int code) {
+        return code < 0 ? null : strings.get(code);
+    }
+
+    public synchronized int size() {
+        return strings.size();
+    }
+
+    /** Get all the strings, indexed by code */
+    public synchronized String[] toArray() {
+        return strings.toArray(new String[strings.size()]);
+    }
+
+    /** Get the string of a code from a table built by toArray() */
+    public static String lookup(String[] table, int code) {
+        return code < 0 ? null : table[code];
+    }
+}
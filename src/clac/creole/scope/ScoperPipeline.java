@@ -0,0 +1,430 @@
+package clac.creole.scope;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import gate.Controller;
+import gate.Corpus;
+import gate.Document;
+import gate.Factory;
+import gate.LanguageAnalyser;
+import gate.corpora.SerialCorpusImpl;
+import gate.creole.ControllerAwarePR;
+import gate.creole.ExecutionException;
+import gate.creole.ExecutionInterruptedException;
+
+/**
+ * Runs a PR (such as Scoper) over a corpus, loading the next documents and
+ * saving the processed ones on other threads, so that the PR does not wait
+ * for the datastore of the corpus.
+ *
+ * A loader thread loads up to prefetch documents ahead of the PR, and a
+ * writer thread releases the processed documents from a queue of at most
+ * writeBehind documents: documents loaded by the pipeline are unloaded
+ * from the corpus (which saves those of a datastore corpus, as GATE
+ * controllers do) and deleted, the others are saved if they belong to a
+ * datastore. The loader also waits while the documents in flight (loaded
+ * and not yet released) hold more than maxInFlightChars characters, but
+ * always keeps at least one document going. The corpus is only accessed
+ * by one thread at a time.
+ *
+ * A document which cannot be loaded, processed or saved does not stop the
+ * run: the error is recorded (see DocumentError) and the pipeline goes on
+ * with the next document. Documents which failed to process are still
+ * released like the others.
+ *
+ * With a checkpoint journal (see setJournal), the documents listed in the
+ * journal are skipped, without loading those of a datastore corpus, and
+ * each document is appended to the journal once it has been processed
+ * without error and released (saved, for a datastore). The PR can be a
+ * whole application (a SerialAnalyserController is a LanguageAnalyser), so
+ * that a document is only journaled once every PR, exporters included, has
+ * run on it. A run cannot resume a journal while a Scoper writes corpus
+ * outputs (a sentence cache, scope matrices, a scope index or statistics):
+ * those files are rewritten by each run, and would lose the documents
+ * skipped.
+ */
+public class ScoperPipeline {
+
+    /** Phases of DocumentError */
+    public static final String PHASE_LOAD    = "load";
+    public static final String PHASE_EXECUTE = "execute";
+    public static final String PHASE_RELEASE = "release";
+    public static final String PHASE_JOURNAL = "journal";
+
+    /** An error on a document of the corpus */
+    public static class DocumentError {
+        public final int index;
+        public final String document;
+        public final String phase;
+        public final Throwable error;
+
+        public DocumentError(int index, String document, String phase, Throwable error) {
+            this.index = index;
+            this.document = document;
+            this.phase = phase;
+            this.error = error;
+        }
+
+        public String toString() {
+            return "Document " + index + " (" + document + "), " + phase + ": " + error;
+        }
+    }
+
+    /** A document going through the pipeline */
+    private static class Item {
+        final int index;
+        final String name;
+        Document document;
+        /** Whether the document was loaded before the pipeline got it */
+        boolean wasLoaded;
+        long chars;
+        /** The id of the document in the journal (see Scoper.getDocumentId) */
+        String id;
+        /** The document is in the journal, and is only released */
+        boolean completed;
+        /** The journal record of the processed document, or null */
+        ScoperJournal.Entry entry;
+
+        Item(int index, String name) {
+            this.index = index;
+            this.name = name;
+        }
+    }
+
+    /** Marks the end of a queue */
+    private static final Item END = new Item(-1, null);
+
+    private final LanguageAnalyser analyser;
+    private final int prefetch;
+    private final int writeBehind;
+    private final long maxInFlightChars;
+
+    // Documents in flight, guarded by this
+    private int inFlight;
+    private long inFlightChars;
+    private volatile boolean interrupted;
+    private volatile ScoperJournal journal;
+
+    /**
+     * @param analyser         the PR run on each document
+     * @param prefetch         number of documents loaded ahead (at least 1)
+     * @param writeBehind      number of processed documents waiting to be
+     *                         released (at least 1)
+     * @param maxInFlightChars characters of the documents in flight (0 for
+     *                         no limit)
+     */
+    public ScoperPipeline(LanguageAnalyser analyser, int prefetch, int writeBehind,
+                          long maxInFlightChars) {
+        if (prefetch < 1 || writeBehind < 1 || maxInFlightChars < 0) {
+            throw new IllegalArgumentException("Invalid pipeline sizes: prefetch="
+                    + prefetch + ", writeBehind=" + writeBehind
+                    + ", maxInFlightChars=" + maxInFlightChars);
+        }
+        this.analyser = analyser;
+        this.prefetch = prefetch;
+        this.writeBehind = writeBehind;
+        this.maxInFlightChars = maxInFlightChars;
+    }
+
+    /** Run the PR over every document of a corpus. The ControllerAwarePR
+     *  callbacks of the PR are called with the given controller (which may
+     *  be null).
+     * @return the errors, in document order
+     * @throws ExecutionException if the PR could not be started or finished,
+     *         or if it writes corpus outputs while resuming a journal
+     * @throws ExecutionInterruptedException if the run or the thread was
+     *         interrupted */
+    public List<DocumentError> run(final Corpus corpus, Controller controller)
+            throws ExecutionException {
+        checkResumable();
+        final List<DocumentError> errors =
+                Collections.synchronizedList(new ArrayList<DocumentError>());
+        final BlockingQueue<Item> loaded = new ArrayBlockingQueue<Item>(prefetch);
+        final BlockingQueue<Item> processed = new ArrayBlockingQueue<Item>(writeBehind);
+        final List<Item> pending = new ArrayList<Item>();
+        synchronized (this) {
+            inFlight = 0;
+            inFlightChars = 0;
+        }
+        interrupted = false;
+        Thread loader = new Thread("ScoperPipeline loader") {
+            public void run() {
+                try {
+                    load(corpus, loaded, pending, errors);
+                } catch (InterruptedException e) {
+                    // Stopped by run()
+                }
+            }
+        };
+        Thread writer = new Thread("ScoperPipeline writer") {
+            public void run() {
+                write(corpus, processed, errors);
+            }
+        };
+        loader.setDaemon(true);
+        writer.setDaemon(true);
+
+        ControllerAwarePR aware = analyser instanceof ControllerAwarePR
+                ? (ControllerAwarePR) analyser : null;
+        if (aware != null) aware.controllerExecutionStarted(controller);
+        loader.start();
+        writer.start();
+        Throwable failure = null;
+        boolean wasInterrupted = false;
+        // The document taken from the loader and not yet queued to the writer
+        Item current = null;
+        try {
+            analyser.setCorpus(corpus);
+            for (current = loaded.take(); current != END; current = loaded.take()) {
+                if (interrupted) {
+                    throw new ExecutionInterruptedException("Execution of "
+                            + analyser.getName() + " over " + corpus.getName()
+                            + " has been abruptly interrupted!");
+                }
+                if (current.document != null && !current.completed) {
+                    try {
+                        analyser.setDocument(current.document);
+                        analyser.execute();
+                        if (journal != null) current.entry = journalEntry(current);
+                    } catch (ExecutionInterruptedException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        errors.add(new DocumentError(current.index, current.name,
+                                                     PHASE_EXECUTE, e));
+                    } finally {
+                        analyser.setDocument(null);
+                    }
+                }
+                processed.put(current);
+                current = null;
+            }
+            current = null;
+        } catch (InterruptedException e) {
+            wasInterrupted = true;
+            failure = new ExecutionInterruptedException("Interrupted while running "
+                    + analyser.getName() + " over " + corpus.getName());
+        } catch (ExecutionInterruptedException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = e;
+        } catch (Error e) {
+            failure = e;
+        } finally {
+            // Stop loading, release the documents loaded but not processed,
+            // and wait for the writer
+            loader.interrupt();
+            wasInterrupted |= Thread.interrupted();
+            try {
+                loader.join();
+                List<Item> rest = new ArrayList<Item>();
+                if (current != null) rest.add(current);
+                loaded.drainTo(rest);
+                rest.addAll(pending);
+                for (Item item : rest) {
+                    if (item != END) processed.put(item);
+                }
+                processed.put(END);
+                writer.join();
+            } catch (InterruptedException e) {
+                wasInterrupted = true;
+            }
+            if (wasInterrupted) Thread.currentThread().interrupt();
+        }
+        if (aware != null) {
+            if (failure == null) {
+                aware.controllerExecutionFinished(controller);
+            } else {
+                aware.controllerExecutionAborted(controller, failure);
+            }
+        }
+        if (failure instanceof ExecutionInterruptedException) {
+            throw (ExecutionInterruptedException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        List<DocumentError> result = new ArrayList<DocumentError>(errors);
+        Collections.sort(result, new Comparator<DocumentError>() {
+            public int compare(DocumentError e1, DocumentError e2) {
+                return e1.index < e2.index ? -1 : (e1.index == e2.index ? 0 : 1);
+            }
+        });
+        return result;
+    }
+
+    /** Skip the documents completed in a checkpoint journal, and record the
+     *  documents completed by the next runs in it (null for none). The
+     *  journal is not closed by the pipeline. */
+    public void setJournal(ScoperJournal journal) {
+        this.journal = journal;
+    }
+
+    public ScoperJournal getJournal() {
+        return journal;
+    }
+
+    /** Stop the current run after the current document (as the interrupt()
+     *  of GATE controllers) */
+    public void interrupt() {
+        interrupted = true;
+        analyser.interrupt();
+    }
+
+    /** The Scoper PRs of the pipeline: the PR itself, or those of a
+     *  controller */
+    private List<Scoper> scopers() {
+        List<Scoper> scopers = new ArrayList<Scoper>();
+        if (analyser instanceof Scoper) {
+            scopers.add((Scoper) analyser);
+        } else if (analyser instanceof Controller) {
+            for (Object pr : ((Controller) analyser).getPRs()) {
+                if (pr instanceof Scoper) scopers.add((Scoper) pr);
+            }
+        }
+        return scopers;
+    }
+
+    /** Refuse to resume a journal with a Scoper writing corpus outputs,
+     *  which are truncated when the run starts and only get the documents
+     *  which are not skipped */
+    private void checkResumable() throws ExecutionException {
+        ScoperJournal checkpoints = journal;
+        if (checkpoints == null || checkpoints.getEntries().isEmpty()) return;
+        for (Scoper scoper : scopers()) {
+            List<String> outputs = new ArrayList<String>();
+            if (scoper.getSentenceCacheFile() != null
+                    && !Boolean.TRUE.equals(scoper.getReadSentenceCache())) {
+                outputs.add("sentenceCacheFile");
+            }
+            if (scoper.getScopeMatrixFile() != null) outputs.add("scopeMatrixFile");
+            if (scoper.getScopeIndexFile() != null) outputs.add("scopeIndexFile");
+            if (scoper.getStatisticsFile() != null) outputs.add("statisticsFile");
+            if (!outputs.isEmpty()) {
+                throw new ExecutionException("Cannot resume the journal "
+                        + checkpoints.getFile() + " with " + scoper.getName()
+                        + " writing " + outputs + ": these files would only"
+                        + " cover the documents not in the journal");
+            }
+        }
+    }
+
+    /** The journal record of a processed document: the one of the Scoper
+     *  PR (see Scoper.getJournalEntry), or of the first Scoper of a
+     *  controller, or a record without location and counts */
+    private ScoperJournal.Entry journalEntry(Item item) throws ExecutionException {
+        List<Scoper> scopers = scopers();
+        if (scopers.isEmpty()) return new ScoperJournal.Entry(item.id, "", 0, 0);
+        ScoperJournal.Entry entry = scopers.get(0).getJournalEntry(item.document);
+        return new ScoperJournal.Entry(item.id, entry.location, entry.triggers, entry.scopes);
+    }
+
+    /** The journal id of a document of a datastore corpus which is not
+     *  loaded, or null if the document has to be loaded to get it */
+    private static String persistentId(Corpus corpus, int index) {
+        if (!(corpus instanceof SerialCorpusImpl)) return null;
+        Object id = ((SerialCorpusImpl) corpus).getDocumentPersistentID(index);
+        return id == null ? null : id.toString();
+    }
+
+    /** Load the documents of the corpus, in order. When interrupted, the
+     *  loaded document which could not be queued is left in pending. */
+    private void load(Corpus corpus, BlockingQueue<Item> loaded, List<Item> pending,
+                      List<DocumentError> errors) throws InterruptedException {
+        int size;
+        synchronized (corpus) {
+            size = corpus.size();
+        }
+        for (int i = 0; i < size; i++) {
+            // Wait for room in the memory budget
+            synchronized (this) {
+                while (maxInFlightChars > 0 && inFlight > 0
+                        && inFlightChars >= maxInFlightChars) {
+                    wait();
+                }
+            }
+            ScoperJournal checkpoints = journal;
+            Item item;
+            synchronized (corpus) {
+                item = new Item(i, corpus.getDocumentName(i));
+                try {
+                    item.wasLoaded = corpus.isDocumentLoaded(i);
+                    // Skip the completed documents of a datastore without loading them
+                    if (checkpoints != null && !item.wasLoaded) {
+                        item.id = persistentId(corpus, i);
+                        if (item.id != null && checkpoints.isCompleted(item.id)) continue;
+                    }
+                    item.document = corpus.get(i);
+                } catch (RuntimeException e) {
+                    errors.add(new DocumentError(i, item.name, PHASE_LOAD, e));
+                }
+            }
+            if (checkpoints != null && item.document != null) {
+                if (item.id == null) item.id = Scoper.getDocumentId(item.document);
+                item.completed = checkpoints.isCompleted(item.id);
+            }
+            if (item.document != null) {
+                Long chars = item.document.getContent().size();
+                item.chars = chars == null ? 0L : chars;
+                synchronized (this) {
+                    inFlight++;
+                    inFlightChars += item.chars;
+                }
+            }
+            try {
+                loaded.put(item);
+            } catch (InterruptedException e) {
+                pending.add(item);
+                throw e;
+            }
+        }
+        loaded.put(END);
+    }
+
+    /** Release the processed documents until the end of the queue */
+    private void write(Corpus corpus, BlockingQueue<Item> processed,
+                       List<DocumentError> errors) {
+        while (true) {
+            Item item;
+            try {
+                item = processed.take();
+            } catch (InterruptedException e) {
+                // Only run() stops the writer, by ending the queue
+                continue;
+            }
+            if (item == END) return;
+            if (item.document == null) continue;
+            try {
+                if (!item.wasLoaded) {
+                    synchronized (corpus) {
+                        corpus.unloadDocument(item.document);
+                    }
+                    Factory.deleteResource(item.document);
+                } else if (item.document.getDataStore() != null && !item.completed) {
+                    item.document.sync();
+                }
+                // Only journal documents whose output is safe
+                ScoperJournal checkpoints = journal;
+                if (item.entry != null && checkpoints != null) {
+                    try {
+                        checkpoints.append(item.entry.document, item.entry.location,
+                                           item.entry.triggers, item.entry.scopes);
+                    } catch (IOException e) {
+                        errors.add(new DocumentError(item.index, item.name, PHASE_JOURNAL, e));
+                    }
+                }
+            } catch (Exception e) {
+                errors.add(new DocumentError(item.index, item.name, PHASE_RELEASE, e));
+            } finally {
+                synchronized (this) {
+                    inFlight--;
+                    inFlightChars -= item.chars;
+                    notifyAll();
+                }
+            }
+        }
+    }
+}
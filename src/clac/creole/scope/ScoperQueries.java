@@ -0,0 +1,349 @@
+package clac.creole.scope;
+
+import java.util.*;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.event.AnnotationSetEvent;
+import gate.event.AnnotationSetListener;
+
+/**
+ * Queries over the annotations of a document, for JAPE grammars and other
+ * PRs which would otherwise call the static helpers of Scoper (getScope,
+ * getScopeTrigger, getPhrase, getDependencies, getStn) once per annotation.
+ *
+ * A ScoperQueries is created once per document and annotation set, and
+ * keeps the syntax tree paths, the dependencies of each token, and the
+ * scopes of each trigger and trigger of each scope it has computed. All of
+ * them are dropped when an annotation is added to or removed from the set;
+ * changes to the features of existing annotations are not seen, call
+ * invalidate() after them.
+ * Instances are not thread safe.
+ *
+ * Results are the same as those of the Scoper helpers, except that where
+ * those depend on the iteration order of annotation sets, annotations are
+ * taken in ID order (dependencies, and the scope of a trigger having
+ * several) or from the smallest node (getStn).
+ */
+public class ScoperQueries {
+
+    private final AnnotationSet alist;
+    private final AnnotationSetListener listener = new AnnotationSetListener() {
+        public void annotationAdded(AnnotationSetEvent e) {
+            invalidate();
+        }
+        public void annotationRemoved(AnnotationSetEvent e) {
+            invalidate();
+        }
+    };
+
+    // Paths by "type:order:start:end", in the order of Scoper.getPath
+    private final Map<String, List<Annotation>> paths = new HashMap<String, List<Annotation>>();
+    // Tokens by span, and dependencies by token id
+    private Map<String, Annotation> tokens;
+    private Map<Integer, List<Annotation>> tokenDependencies;
+    // Scopes, by start offset, with the largest end offset up to each scope
+    private Annotation[] scopes;
+    private long[] scopeStarts;
+    private long[] scopeMaxEnds;
+    // Scopes by trigger span, in ID order, and triggers by scope id
+    private Map<String, List<Annotation>> triggerScopes;
+    private Map<Integer, Annotation> scopeTriggers;
+
+    /** Queries over an annotation set (holding tokens, dependencies, syntax
+     *  tree nodes, triggers and scopes), listening to its changes */
+    public ScoperQueries(AnnotationSet alist) {
+        this.alist = alist;
+        alist.addAnnotationSetListener(listener);
+    }
+
+    /** Stop listening to the annotation set */
+    public void close() {
+        alist.removeAnnotationSetListener(listener);
+        invalidate();
+    }
+
+    /** Drop everything computed so far */
+    public void invalidate() {
+        paths.clear();
+        tokens = null;
+        tokenDependencies = null;
+        scopes = null;
+        scopeStarts = null;
+        scopeMaxEnds = null;
+        triggerScopes = null;
+        scopeTriggers = null;
+    }
+
+    // Syntax trees
+
+    /** The annotations of a type overlapping an annotation, from smallest
+     *  to largest (see Scoper.getPath) */
+    public List<Annotation> getPath(Annotation ann, String type) {
+        return getPath(ann, type, true);
+    }
+
+    /** As above, from largest to smallest if naturalOrder is false */
+    public List<Annotation> getPath(Annotation ann, String type, boolean naturalOrder) {
+        String key = type + ":" + naturalOrder + ":" + span(ann);
+        List<Annotation> path = paths.get(key);
+        if (path == null) {
+            PriorityQueue<Annotation> queue = Scoper.getPath(ann, type, naturalOrder, alist);
+            path = new ArrayList<Annotation>(queue.size());
+            while (!queue.isEmpty()) path.add(queue.remove());
+            path = Collections.unmodifiableList(path);
+            paths.put(key, path);
+        }
+        return path;
+    }
+
+    /** The smallest SyntaxTreeNode of a category including an annotation
+     *  (see Scoper.getStn) */
+    public Annotation getStn(Annotation ann, String cat) {
+        for (Annotation node : getPath(ann, Scoper.PHRASE_ANNOTATION_TYPE)) {
+            if (cat.equals(node.getFeatures().get(Scoper.PHRASE_CATEGORY_FEATURE))) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /** Find the smallest phrase dominating a list of tokens (see Scoper.getPhrase) */
+    public Annotation getPhrase(List<Annotation> tokens) {
+        List<Set<Annotation>> sets = pathSets(tokens, true);
+        for (Annotation node : getPath(tokens.get(0), Scoper.PHRASE_ANNOTATION_TYPE, true)) {
+            if (inAll(node, sets)) return node;
+        }
+        System.err.println("Error: No common node for candidate tokens");
+        return null;
+    }
+
+    /** Find the largest phrase dominating a list of tokens, but not including
+     *  the trigger (see Scoper.getPhrase) */
+    public Annotation getPhrase(Annotation trigger, List<Annotation> tokens) {
+        Set<Annotation> triggerPath = new HashSet<Annotation>(
+                getPath(trigger, Scoper.PHRASE_ANNOTATION_TYPE, true));
+        List<Set<Annotation>> sets = pathSets(tokens, false);
+        for (Annotation node : getPath(tokens.get(0), Scoper.PHRASE_ANNOTATION_TYPE, false)) {
+            if (triggerPath.contains(node)) continue;
+            if (inAll(node, sets)) return node;
+        }
+        System.err.println("Warning: No common node for candidate tokens excluding trigger");
+        return getPhrase(tokens);
+    }
+
+    private List<Set<Annotation>> pathSets(List<Annotation> tokens, boolean naturalOrder) {
+        List<Set<Annotation>> sets = new ArrayList<Set<Annotation>>(tokens.size());
+        for (Annotation token : tokens) {
+            sets.add(new HashSet<Annotation>(
+                    getPath(token, Scoper.PHRASE_ANNOTATION_TYPE, naturalOrder)));
+        }
+        return sets;
+    }
+
+    private static boolean inAll(Annotation node, List<Set<Annotation>> sets) {
+        for (int i = 1; i < sets.size(); i++) {
+            if (!sets.get(i).contains(node)) return false;
+        }
+        return true;
+    }
+
+    // Dependencies
+
+    /** The token coextensive with an annotation, or null (see Scoper.getToken) */
+    public Annotation getToken(Annotation ann) {
+        if (tokens == null) indexDependencies();
+        return tokens.get(span(ann));
+    }
+
+    /** The dependencies of the token of a trigger (see Scoper.getDependencies) */
+    public List<ScoperDependency> getDependencies(Annotation trigger) {
+        List<ScoperDependency> depList = new ArrayList<ScoperDependency>();
+        Annotation token = getToken(trigger);
+        if (token == null) return depList;
+        List<Annotation> deps = tokenDependencies.get(token.getId());
+        if (deps == null) return depList;
+        for (Annotation dep : deps) {
+            String type = dep.getFeatures().get(Scoper.DEPENDENCY_LABEL_FEATURE).toString().trim();
+            int[] args = Scoper.getDependencyArgs(dep);
+            if (token.getId() == args[0]) {
+                depList.add(new ScoperDependency(type, args[1], true));
+            } else if (token.getId() == args[1]) {
+                depList.add(new ScoperDependency(type, args[0], false));
+            }
+        }
+        return depList;
+    }
+
+    private void indexDependencies() {
+        tokens = new HashMap<String, Annotation>();
+        for (Annotation token : sortById(alist.get(Scoper.TOKEN_ANNOTATION_TYPE))) {
+            String key = span(token);
+            if (!tokens.containsKey(key)) tokens.put(key, token);
+        }
+        tokenDependencies = new HashMap<Integer, List<Annotation>>();
+        for (Annotation dep : sortById(alist.get(Scoper.DEPENDENCY_ANNOTATION_TYPE))) {
+            int[] args = Scoper.getDependencyArgs(dep);
+            addDependency(args[0], dep);
+            if (args[1] != args[0]) addDependency(args[1], dep);
+        }
+    }
+
+    private void addDependency(int token, Annotation dep) {
+        List<Annotation> deps = tokenDependencies.get(token);
+        if (deps == null) {
+            deps = new ArrayList<Annotation>(2);
+            tokenDependencies.put(token, deps);
+        }
+        deps.add(dep);
+    }
+
+    // Scopes
+
+    /** The trigger of a scope (see Scoper.getScopeTrigger) */
+    public Annotation getScopeTrigger(Annotation scope) {
+        if (scopeTriggers == null) indexScopes();
+        // Scopes without a TriggerID go to the helper, which reports them
+        if (!scopeTriggers.containsKey(scope.getId())) {
+            return Scoper.getScopeTrigger(scope, alist);
+        }
+        return scopeTriggers.get(scope.getId());
+    }
+
+    /** The scope of a trigger within its root node (see Scoper.getScope) */
+    public Annotation getScope(Annotation trigger) {
+        Annotation root = getStn(trigger, Scoper.PHRASE_CATEGORY_ROOT);
+        if (root == null) {
+            System.err.println("Error: No root node found.");
+            return null;
+        }
+        return getScope(trigger, root);
+    }
+
+    /** The scope of a trigger within a sentence (or root node) */
+    public Annotation getScope(Annotation trigger, Annotation sentence) {
+        if (triggerScopes == null) indexScopes();
+        List<Annotation> candidates = triggerScopes.get(span(trigger));
+        if (candidates == null) return null;
+        long start = sentence.getStartNode().getOffset();
+        long end = sentence.getEndNode().getOffset();
+        for (Annotation scope : candidates) {
+            if (ScoperSentence.overlaps(scope.getStartNode().getOffset(),
+                                        scope.getEndNode().getOffset(), start, end)) {
+                return scope;
+            }
+        }
+        return null;
+    }
+
+    /** The scopes covering an offset, from smallest to largest */
+    public List<Annotation> getScopesCovering(long offset) {
+        if (scopes == null) indexScopes();
+        List<Annotation> result = new ArrayList<Annotation>();
+        // Scopes starting at or before the offset, while one may still cover it
+        for (int i = upperBound(offset) - 1; i >= 0 && scopeMaxEnds[i] > offset; i--) {
+            if (scopes[i].getEndNode().getOffset() > offset) result.add(scopes[i]);
+        }
+        Collections.sort(result, BY_LENGTH);
+        return result;
+    }
+
+    /** The scopes overlapping an annotation, other than its own scope,
+     *  from smallest to largest (the scopes of Scoper PHASE 2) */
+    public List<Annotation> getScopesOver(Annotation ann) {
+        if (scopes == null) indexScopes();
+        long start = ann.getStartNode().getOffset();
+        long end = ann.getEndNode().getOffset();
+        List<Annotation> result = new ArrayList<Annotation>();
+        for (int i = upperBound(Math.max(start, end - 1)) - 1; i >= 0; i--) {
+            if (scopeStarts[i] < start && scopeMaxEnds[i] <= start) break;
+            Annotation scope = scopes[i];
+            if (!ScoperSentence.overlaps(scopeStarts[i], scope.getEndNode().getOffset(),
+                                         start, end)) continue;
+            Object triggerId = scope.getFeatures().get(Scoper.SCOPE_TRIGGERID_FEATURE);
+            if (triggerId != null && ann.getId().equals(triggerId)) continue;
+            result.add(scope);
+        }
+        Collections.sort(result, BY_LENGTH);
+        return result;
+    }
+
+    /** The triggers whose scopes overlap an annotation, innermost first */
+    public List<Annotation> getTriggersScopingOver(Annotation ann) {
+        List<Annotation> triggers = new ArrayList<Annotation>();
+        for (Annotation scope : getScopesOver(ann)) {
+            Annotation trigger = getScopeTrigger(scope);
+            if (trigger != null) triggers.add(trigger);
+        }
+        return triggers;
+    }
+
+    private void indexScopes() {
+        List<Annotation> sorted = sortById(alist.get(Scoper.SCOPE_ANNOTATION_TYPE));
+        triggerScopes = new HashMap<String, List<Annotation>>();
+        scopeTriggers = new HashMap<Integer, Annotation>();
+        for (Annotation scope : sorted) {
+            if (!scope.getFeatures().containsKey(Scoper.SCOPE_TRIGGERID_FEATURE)) continue;
+            Annotation trigger = Scoper.getScopeTrigger(scope, alist);
+            scopeTriggers.put(scope.getId(), trigger);
+            if (trigger == null) continue;
+            List<Annotation> list = triggerScopes.get(span(trigger));
+            if (list == null) {
+                list = new ArrayList<Annotation>(1);
+                triggerScopes.put(span(trigger), list);
+            }
+            list.add(scope);
+        }
+        // Stable sort: scopes with the same start stay in ID order
+        Collections.sort(sorted, new Comparator<Annotation>() {
+            public int compare(Annotation a1, Annotation a2) {
+                return a1.getStartNode().getOffset().compareTo(a2.getStartNode().getOffset());
+            }
+        });
+        scopes = sorted.toArray(new Annotation[sorted.size()]);
+        scopeStarts = new long[scopes.length];
+        scopeMaxEnds = new long[scopes.length];
+        long maxEnd = Long.MIN_VALUE;
+        for (int i = 0; i < scopes.length; i++) {
+            scopeStarts[i] = scopes[i].getStartNode().getOffset();
+            maxEnd = Math.max(maxEnd, scopes[i].getEndNode().getOffset());
+            scopeMaxEnds[i] = maxEnd;
+        }
+    }
+
+    /** Number of scopes starting at or before an offset */
+    private int upperBound(long offset) {
+        int lo = 0, hi = scopeStarts.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (scopeStarts[mid] <= offset) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    // Helpers
+
+    private static final Comparator<Annotation> BY_LENGTH = new Comparator<Annotation>() {
+        public int compare(Annotation a1, Annotation a2) {
+            long l1 = a1.getEndNode().getOffset() - a1.getStartNode().getOffset();
+            long l2 = a2.getEndNode().getOffset() - a2.getStartNode().getOffset();
+            if (l1 != l2) return l1 < l2 ? -1 : 1;
+            return a1.getId().compareTo(a2.getId());
+        }
+    };
+
+    private static List<Annotation> sortById(AnnotationSet anns) {
+        List<Annotation> sorted = new ArrayList<Annotation>(anns);
+        Collections.sort(sorted, new Comparator<Annotation>() {
+            public int compare(Annotation a1, Annotation a2) {
+                return a1.getId().compareTo(a2.getId());
+            }
+        });
+        return sorted;
+    }
+
+    private static String span(Annotation ann) {
+        return ann.getStartNode().getOffset() + ":" + ann.getEndNode().getOffset();
+    }
+}
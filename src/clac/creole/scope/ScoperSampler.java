@@ -0,0 +1,87 @@
+package clac.creole.scope;
+
+import java.util.*;
+
+import gate.Annotation;
+
+/**
+ * Chooses the triggers scoped in sampling mode (see the samplingRate
+ * parameter of Scoper).
+ *
+ * Triggers are sampled independently, with the rate of their stratum: their
+ * type/minorType (as grouped in ScoperStatistics), their type, or the
+ * default rate. Whether a trigger is sampled only depends on the seed, the
+ * document id and the offsets of the trigger, so a sample can be reproduced
+ * whatever the order of the documents and the number of workers.
+ */
+public class ScoperSampler {
+
+    private final double rate;
+    private final Map<String, Double> rates = new HashMap<String, Double>();
+    private final long seed;
+
+    /**
+     * @param rate  the default sampling rate, in [0, 1]
+     * @param rates rates of strata, as type/minorType=rate or type=rate (or null)
+     * @param seed  the seed of the sample
+     * @throws IllegalArgumentException if a rate is invalid
+     */
+    public ScoperSampler(double rate, List<String> rates, long seed) {
+        this.rate = checkRate(rate, "samplingRate");
+        this.seed = seed;
+        if (rates == null) return;
+        for (String entry : rates) {
+            int eq = entry.lastIndexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("Invalid sampling rate " + entry
+                        + ", expected type/minorType=rate or type=rate");
+            }
+            double value;
+            try {
+                value = Double.parseDouble(entry.substring(eq + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid sampling rate " + entry);
+            }
+            this.rates.put(entry.substring(0, eq).trim(), checkRate(value, entry));
+        }
+    }
+
+    private static double checkRate(double rate, String name) {
+        if (!(rate >= 0.0 && rate <= 1.0)) {
+            throw new IllegalArgumentException("Invalid sampling rate " + name
+                    + ", expected a value between 0 and 1");
+        }
+        return rate;
+    }
+
+    /** The sampling rate of the stratum of a trigger */
+    public double getRate(Annotation trigger) {
+        String stratum = ScoperStatistics.getStratum(trigger.getFeatures());
+        Double r = rates.get(stratum);
+        if (r == null) r = rates.get(stratum.substring(0, stratum.indexOf('/')));
+        return r == null ? rate : r;
+    }
+
+    /** Whether a trigger of a document is in the sample */
+    public boolean isSampled(String document, Annotation trigger) {
+        return uniform(document, trigger.getStartNode().getOffset(),
+                       trigger.getEndNode().getOffset()) < getRate(trigger);
+    }
+
+    /** A number in [0, 1) determined by the seed, document and offsets */
+    double uniform(String document, long start, long end) {
+        long h = mix(seed);
+        h = mix(h ^ (document == null ? 0 : document.hashCode()));
+        h = mix(h ^ start);
+        h = mix(h ^ end);
+        return (h >>> 11) * 0x1.0p-53;
+    }
+
+    /** The finalizer of SplitMix64 */
+    private static long mix(long z) {
+        z += 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,660 @@
+package clac.creole.scope;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.FeatureMap;
+
+/**
+ * Compact representation of a parsed sentence, holding everything the
+ * scope heuristics need: token offsets and categories, dependency edges
+ * between tokens, the syntax tree and the triggers of the sentence.
+ *
+ * Tokens, dependencies, tree nodes and triggers are stored in parallel
+ * arrays and refered to by their index in the sentence. Tokens and
+ * triggers are in document order, dependencies are in the order they
+ * were created by the parser (Annotation ID order).
+ *
+ * A sentence is built from GATE annotations, or read from a ScoperCache
+ * file, in which case no GATE annotation is needed.
+ */
+public class ScoperSentence {
+
+    private final long start;
+    private final long end;
+
+    // Tokens
+    private final long[]   tokenStart;
+    private final long[]   tokenEnd;
+    private final String[] tokenCategory;
+    private final String[] tokenString;
+
+    // Dependencies (governor and dependant are token indices)
+    private final int[]    depGov;
+    private final int[]    depDep;
+    private final String[] depLabel;
+
+    // SyntaxTreeNodes (parent is a node index, or -1 for the root)
+    private final long[]   nodeStart;
+    private final long[]   nodeEnd;
+    private final String[] nodeCategory;
+    private final int[]    nodeParent;
+    private final int[]    nodeDepth;
+    /** Nodes sorted from smallest to largest (see AnnotationSpanComparator) */
+    private final int[]    nodeOrder;
+    /** First governor of each token, or -1 (see DependencyScopeResolver) */
+    private final int[]    tokenHead;
+    /** Dependencies of each token: tokenDeps[tokenDepStart[t]..tokenDepStart[t+1]) */
+    private final int[]    tokenDepStart;
+    private final int[]    tokenDeps;
+    /** Dependencies by label, in order */
+    private final Map<String, int[]> labelDeps;
+    /** Subtrees of the head forest, in preorder: the subtree of token t
+     *  is headOrder[headIndex[t]..headIndex[t] + headSize[t]). Only valid
+     *  if the heads have no cycle (headAcyclic). */
+    private final int[]    headOrder;
+    private final int[]    headIndex;
+    private final int[]    headSize;
+    /** First and last tokens of the subtree of each token */
+    private final int[]    headFirst;
+    private final int[]    headLast;
+    private final boolean  headAcyclic;
+    /** Nearest attached tokens (with a head or a dependant) before and
+     *  after each token, or -1 */
+    private final int[]    attachedBefore;
+    private final int[]    attachedAfter;
+
+    // Triggers (token is a token index, or -1 if there is no coextensive token)
+    private final int[]    triggerId;
+    private final long[]   triggerStart;
+    private final long[]   triggerEnd;
+    private final int[]    triggerToken;
+    /** Values of Scoper.SCOPE_INHERITED_FEATURES for each trigger */
+    private final String[][] triggerFeatures;
+
+    ScoperSentence(long start, long end,
+            long[] tokenStart, long[] tokenEnd,
+            String[] tokenCategory, String[] tokenString,
+            int[] depGov, int[] depDep, String[] depLabel,
+            long[] nodeStart, long[] nodeEnd,
+            String[] nodeCategory, int[] nodeParent,
+            int[] triggerId, long[] triggerStart, long[] triggerEnd,
+            int[] triggerToken, String[][] triggerFeatures) {
+        this.start = start;
+        this.end = end;
+        this.tokenStart = tokenStart;
+        this.tokenEnd = tokenEnd;
+        this.tokenCategory = tokenCategory;
+        this.tokenString = tokenString;
+        this.depGov = depGov;
+        this.depDep = depDep;
+        this.depLabel = depLabel;
+        this.nodeStart = nodeStart;
+        this.nodeEnd = nodeEnd;
+        this.nodeCategory = nodeCategory;
+        this.nodeParent = nodeParent;
+        this.triggerId = triggerId;
+        this.triggerStart = triggerStart;
+        this.triggerEnd = triggerEnd;
+        this.triggerToken = triggerToken;
+        this.triggerFeatures = triggerFeatures;
+        this.nodeDepth = computeDepths(nodeParent);
+        this.nodeOrder = computeOrder();
+        this.tokenHead = computeHeads();
+        this.tokenDepStart = new int[tokenStart.length + 1];
+        this.tokenDeps = indexDependencies();
+        this.labelDeps = indexLabels();
+        int nt = tokenStart.length;
+        this.headOrder = new int[nt];
+        this.headIndex = new int[nt];
+        this.headSize  = new int[nt];
+        this.headFirst = new int[nt];
+        this.headLast  = new int[nt];
+        this.headAcyclic = computeSubtrees();
+        this.attachedBefore = new int[nt];
+        this.attachedAfter = new int[nt];
+        computeAttached();
+    }
+
+    /** Build a sentence from its GATE annotations.
+     * @param sentence    the sentence annotation
+     * @param alist       the annotation set holding tokens, dependencies
+     *                    and syntax tree nodes
+     * @param triggerType the trigger annotation type, or null to build the
+     *                    sentence without triggers
+     */
+    public static ScoperSentence fromAnnotations(Annotation sentence,
+            AnnotationSet alist, String triggerType) {
+        long start = sentence.getStartNode().getOffset();
+        long end   = sentence.getEndNode().getOffset();
+
+        // Tokens
+        List<Annotation> tokens = gate.Utils.inDocumentOrder(
+                alist.get(Scoper.TOKEN_ANNOTATION_TYPE, start, end));
+        int nt = tokens.size();
+        long[] tokenStart = new long[nt];
+        long[] tokenEnd = new long[nt];
+        String[] tokenCategory = new String[nt];
+        String[] tokenString = new String[nt];
+        Map<Integer, Integer> tokenIndex = new HashMap<Integer, Integer>();
+        for (int i = 0; i < nt; i++) {
+            Annotation token = tokens.get(i);
+            FeatureMap features = token.getFeatures();
+            tokenStart[i] = token.getStartNode().getOffset();
+            tokenEnd[i] = token.getEndNode().getOffset();
+            tokenCategory[i] = featureString(features, Scoper.TOKEN_CATEGORY_FEATURE);
+            tokenString[i] = featureString(features, Scoper.TOKEN_STRING_FEATURE);
+            tokenIndex.put(token.getId(), i);
+        }
+
+        // Dependencies, in the order they were created
+        List<Annotation> deps = new ArrayList<Annotation>(
+                alist.get(Scoper.DEPENDENCY_ANNOTATION_TYPE, start, end));
+        Collections.sort(deps, ID_ORDER);
+        int[] gov = new int[deps.size()];
+        int[] dep = new int[deps.size()];
+        String[] label = new String[deps.size()];
+        int nd = 0;
+        for (Annotation d : deps) {
+            int[] args = Scoper.getDependencyArgs(d);
+            Integer g = tokenIndex.get(args[0]);
+            Integer t = tokenIndex.get(args[1]);
+            if (g == null || t == null) continue;
+            gov[nd] = g;
+            dep[nd] = t;
+            label[nd] = d.getFeatures().get(Scoper.DEPENDENCY_LABEL_FEATURE).toString().trim();
+            nd++;
+        }
+
+        // SyntaxTreeNodes
+        List<Annotation> nodes = gate.Utils.inDocumentOrder(
+                alist.get(Scoper.PHRASE_ANNOTATION_TYPE, start, end));
+        int nn = nodes.size();
+        long[] nodeStart = new long[nn];
+        long[] nodeEnd = new long[nn];
+        String[] nodeCategory = new String[nn];
+        int[] nodeParent = new int[nn];
+        Map<Integer, Integer> nodeIndex = new HashMap<Integer, Integer>();
+        for (int i = 0; i < nn; i++) {
+            Annotation node = nodes.get(i);
+            nodeStart[i] = node.getStartNode().getOffset();
+            nodeEnd[i] = node.getEndNode().getOffset();
+            nodeCategory[i] = featureString(node.getFeatures(), Scoper.PHRASE_CATEGORY_FEATURE);
+            nodeParent[i] = -1;
+            nodeIndex.put(node.getId(), i);
+        }
+        for (int i = 0; i < nn; i++) {
+            List<?> consists = (List<?>) nodes.get(i).getFeatures().get("consists");
+            if (consists == null) continue;
+            for (Object child : consists) {
+                Integer c = nodeIndex.get(Integer.valueOf(child.toString()));
+                if (c != null) nodeParent[c] = i;
+            }
+        }
+
+        // Triggers
+        List<Annotation> triggers = triggerType == null
+                ? Collections.<Annotation>emptyList()
+                : gate.Utils.inDocumentOrder(alist.get(triggerType, start, end));
+        int ng = triggers.size();
+        int[] triggerId = new int[ng];
+        long[] triggerStart = new long[ng];
+        long[] triggerEnd = new long[ng];
+        int[] triggerToken = new int[ng];
+        String[][] triggerFeatures = new String[ng][];
+        for (int i = 0; i < ng; i++) {
+            Annotation trigger = triggers.get(i);
+            triggerId[i] = trigger.getId();
+            triggerStart[i] = trigger.getStartNode().getOffset();
+            triggerEnd[i] = trigger.getEndNode().getOffset();
+            triggerFeatures[i] = new String[Scoper.SCOPE_INHERITED_FEATURES.length];
+            for (int f = 0; f < Scoper.SCOPE_INHERITED_FEATURES.length; f++) {
+                triggerFeatures[i][f] = featureString(trigger.getFeatures(),
+                                                      Scoper.SCOPE_INHERITED_FEATURES[f]);
+            }
+        }
+
+        ScoperSentence s = new ScoperSentence(start, end,
+                tokenStart, tokenEnd, tokenCategory, tokenString,
+                Arrays.copyOf(gov, nd), Arrays.copyOf(dep, nd), Arrays.copyOf(label, nd),
+                nodeStart, nodeEnd, nodeCategory, nodeParent,
+                triggerId, triggerStart, triggerEnd, triggerToken, triggerFeatures);
+        for (int i = 0; i < ng; i++) {
+            triggerToken[i] = s.getToken(triggerStart[i], triggerEnd[i]);
+        }
+        return s;
+    }
+
+    // Serialization
+
+    /** Write the sentence. Strings are written as codes of the lexicon,
+     *  and offsets relative to the start of the sentence. */
+    public void write(DataOutput out, ScoperLexicon lexicon) throws IOException {
+        out.writeLong(start);
+        out.writeInt((int) (end - start));
+        out.writeInt(getTokenCount());
+        for (int i = 0; i < getTokenCount(); i++) {
+            out.writeInt((int) (tokenStart[i] - start));
+            out.writeInt((int) (tokenEnd[i] - start));
+            out.writeInt(lexicon.intern(tokenCategory[i]));
+            out.writeInt(lexicon.intern(tokenString[i]));
+        }
+        out.writeInt(getDependencyCount());
+        for (int i = 0; i < getDependencyCount(); i++) {
+            out.writeInt(depGov[i]);
+            out.writeInt(depDep[i]);
+            out.writeInt(lexicon.intern(depLabel[i]));
+        }
+        out.writeInt(getNodeCount());
+        for (int i = 0; i < getNodeCount(); i++) {
+            out.writeInt((int) (nodeStart[i] - start));
+            out.writeInt((int) (nodeEnd[i] - start));
+            out.writeInt(lexicon.intern(nodeCategory[i]));
+            out.writeInt(nodeParent[i]);
+        }
+        out.writeInt(getTriggerCount());
+        for (int i = 0; i < getTriggerCount(); i++) {
+            out.writeInt(triggerId[i]);
+            out.writeInt((int) (triggerStart[i] - start));
+            out.writeInt((int) (triggerEnd[i] - start));
+            out.writeInt(triggerToken[i]);
+            for (String f : triggerFeatures[i]) {
+                out.writeInt(lexicon.intern(f));
+            }
+        }
+    }
+
+    /** Read a sentence written by write(), using the lexicon strings. */
+    public static ScoperSentence read(ByteBuffer in, String[] lexicon) {
+        long start = in.getLong();
+        long end   = start + in.getInt();
+        int nt = in.getInt();
+        long[] tokenStart = new long[nt];
+        long[] tokenEnd = new long[nt];
+        String[] tokenCategory = new String[nt];
+        String[] tokenString = new String[nt];
+        for (int i = 0; i < nt; i++) {
+            tokenStart[i] = start + in.getInt();
+            tokenEnd[i] = start + in.getInt();
+            tokenCategory[i] = ScoperLexicon.lookup(lexicon, in.getInt());
+            tokenString[i] = ScoperLexicon.lookup(lexicon, in.getInt());
+        }
+        int nd = in.getInt();
+        int[] depGov = new int[nd];
+        int[] depDep = new int[nd];
+        String[] depLabel = new String[nd];
+        for (int i = 0; i < nd; i++) {
+            depGov[i] = in.getInt();
+            depDep[i] = in.getInt();
+            depLabel[i] = ScoperLexicon.lookup(lexicon, in.getInt());
+        }
+        int nn = in.getInt();
+        long[] nodeStart = new long[nn];
+        long[] nodeEnd = new long[nn];
+        String[] nodeCategory = new String[nn];
+        int[] nodeParent = new int[nn];
+        for (int i = 0; i < nn; i++) {
+            nodeStart[i] = start + in.getInt();
+            nodeEnd[i] = start + in.getInt();
+            nodeCategory[i] = ScoperLexicon.lookup(lexicon, in.getInt());
+            nodeParent[i] = in.getInt();
+        }
+        int ng = in.getInt();
+        int[] triggerId = new int[ng];
+        long[] triggerStart = new long[ng];
+        long[] triggerEnd = new long[ng];
+        int[] triggerToken = new int[ng];
+        String[][] triggerFeatures = new String[ng][];
+        for (int i = 0; i < ng; i++) {
+            triggerId[i] = in.getInt();
+            triggerStart[i] = start + in.getInt();
+            triggerEnd[i] = start + in.getInt();
+            triggerToken[i] = in.getInt();
+            triggerFeatures[i] = new String[Scoper.SCOPE_INHERITED_FEATURES.length];
+            for (int f = 0; f < triggerFeatures[i].length; f++) {
+                triggerFeatures[i][f] = ScoperLexicon.lookup(lexicon, in.getInt());
+            }
+        }
+        return new ScoperSentence(start, end,
+                tokenStart, tokenEnd, tokenCategory, tokenString,
+                depGov, depDep, depLabel,
+                nodeStart, nodeEnd, nodeCategory, nodeParent,
+                triggerId, triggerStart, triggerEnd, triggerToken, triggerFeatures);
+    }
+
+    // Queries
+
+    public long getStart() { return start; }
+    public long getEnd()   { return end; }
+
+    public int getTokenCount()      { return tokenStart.length; }
+    public int getDependencyCount() { return depGov.length; }
+    public int getNodeCount()       { return nodeStart.length; }
+    public int getTriggerCount()    { return triggerId.length; }
+
+    public long getTokenStart(int t)      { return tokenStart[t]; }
+    public long getTokenEnd(int t)        { return tokenEnd[t]; }
+    public String getTokenCategory(int t) { return tokenCategory[t]; }
+    public String getTokenString(int t)   { return tokenString[t]; }
+    /** The first governor of a token, or -1 if it has none */
+    public int getTokenHead(int t)        { return tokenHead[t]; }
+
+    public int getDependencyGovernor(int d)     { return depGov[d]; }
+    public int getDependencyDependant(int d)    { return depDep[d]; }
+    public String getDependencyLabel(int d)     { return depLabel[d]; }
+    /** Dependency spans cover both tokens, as created by the Stanford Parser */
+    public long getDependencyStart(int d) {
+        return Math.min(tokenStart[depGov[d]], tokenStart[depDep[d]]);
+    }
+    public long getDependencyEnd(int d) {
+        return Math.max(tokenEnd[depGov[d]], tokenEnd[depDep[d]]);
+    }
+
+    public long getNodeStart(int n)      { return nodeStart[n]; }
+    public long getNodeEnd(int n)        { return nodeEnd[n]; }
+    public String getNodeCategory(int n) { return nodeCategory[n]; }
+    public int getNodeParent(int n)      { return nodeParent[n]; }
+    public int getNodeDepth(int n)       { return nodeDepth[n]; }
+
+    public int getTriggerId(int g)       { return triggerId[g]; }
+    public long getTriggerStart(int g)   { return triggerStart[g]; }
+    public long getTriggerEnd(int g)     { return triggerEnd[g]; }
+    public int getTriggerToken(int g)    { return triggerToken[g]; }
+    /** Value of Scoper.SCOPE_INHERITED_FEATURES[f] for a trigger, or null */
+    public String getTriggerFeature(int g, int f) { return triggerFeatures[g][f]; }
+
+    /** Find the token coextensive with a span, or -1 */
+    public int getToken(long s, long e) {
+        int lo = 0, hi = tokenStart.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (tokenStart[mid] < s) lo = mid + 1;
+            else hi = mid - 1;
+        }
+        for (int t = lo; t < tokenStart.length && tokenStart[t] == s; t++) {
+            if (tokenEnd[t] == e) return t;
+        }
+        return -1;
+    }
+
+    /** Get the dependencies for this token (see Scoper.getDependencies).
+     *  Dependency targets are token indices. */
+    public List<ScoperDependency> getDependencies(int token) {
+        List<ScoperDependency> depList = new ArrayList<ScoperDependency>(
+                tokenDepStart[token + 1] - tokenDepStart[token]);
+        for (int i = tokenDepStart[token]; i < tokenDepStart[token + 1]; i++) {
+            int d = tokenDeps[i];
+            if (depGov[d] == token) {
+                depList.add(new ScoperDependency(depLabel[d], depDep[d], true));
+            } else if (depDep[d] == token) {
+                depList.add(new ScoperDependency(depLabel[d], depGov[d], false));
+            }
+        }
+        return depList;
+    }
+
+    /** Get the collapsed dependencies inferring this token
+     *  (see Scoper.getCollapsedDependencies). Dependency targets are token indices. */
+    public List<ScoperDependency> getCollapsedDependencies(int token) {
+        List<ScoperDependency> depList = new ArrayList<ScoperDependency>();
+        String string = tokenString[token];
+        if (string == null) return depList;
+        // Only look at the dependencies whose label ends with the token
+        int[] candidates = new int[0];
+        for (Map.Entry<String, int[]> entry : labelDeps.entrySet()) {
+            if (entry.getKey().endsWith(string)) {
+                candidates = merge(candidates, entry.getValue());
+            }
+        }
+        for (int d : candidates) {
+            if (!overlaps(getDependencyStart(d), getDependencyEnd(d),
+                          tokenStart[token], tokenEnd[token])) continue;
+            // Add two dependencies for every collapsed dependency
+            depList.add(new ScoperDependency(depLabel[d], depDep[d], true));
+            depList.add(new ScoperDependency(depLabel[d], depGov[d], false));
+        }
+        return depList;
+    }
+
+    /** Whether the heads of the tokens form a forest (no cycle), in which
+     *  case the subtree queries below can be used */
+    boolean isHeadForest() { return headAcyclic; }
+
+    /** Whether a token is in the subtree of a head (or is the head) */
+    boolean inSubtree(int head, int token) {
+        int i = headIndex[token] - headIndex[head];
+        return i >= 0 && i < headSize[head];
+    }
+
+    /** Number of tokens in the subtree of a head */
+    int getSubtreeSize(int head) { return headSize[head]; }
+
+    /** The i-th token of the subtree of a head, in preorder */
+    int getSubtreeToken(int head, int i) { return headOrder[headIndex[head] + i]; }
+
+    /** First and last tokens of the subtree of a head */
+    int getSubtreeFirst(int head) { return headFirst[head]; }
+    int getSubtreeLast(int head)  { return headLast[head]; }
+
+    /** Whether a token has a head or a dependant in the head forest */
+    boolean isAttached(int t) {
+        return tokenHead[t] >= 0 || headSize[t] > 1;
+    }
+
+    /** The nearest attached token before (after) a token, or -1 */
+    int getAttachedBefore(int t) { return attachedBefore[t]; }
+    int getAttachedAfter(int t)  { return attachedAfter[t]; }
+
+    /** Whether a node overlaps a span, with the semantics of AnnotationSet.get(start, end) */
+    public boolean nodeOverlaps(int node, long s, long e) {
+        return overlaps(nodeStart[node], nodeEnd[node], s, e);
+    }
+
+    /** Nodes from smallest to largest, i.e. the order of Scoper.getPath */
+    int[] getNodeOrder() {
+        return nodeOrder;
+    }
+
+    /** Overlap with the semantics of AnnotationSet.get(start, end) */
+    public static boolean overlaps(long annStart, long annEnd, long s, long e) {
+        if (annStart < s) return annEnd > s;
+        return annStart < e;
+    }
+
+    // Helpers
+
+    private static final Comparator<Annotation> ID_ORDER = new Comparator<Annotation>() {
+        public int compare(Annotation a1, Annotation a2) {
+            return a1.getId().compareTo(a2.getId());
+        }
+    };
+
+    private static String featureString(FeatureMap features, String name) {
+        Object value = features.get(name);
+        return value == null ? null : value.toString();
+    }
+
+    /** Depth of each node, i.e. its number of ancestors. Depths are
+     *  computed once per node along each path, and nodes on or below a
+     *  cycle in malformed trees get parent.length + 1. */
+    private static int[] computeDepths(int[] parent) {
+        int n = parent.length;
+        int[] depth = new int[n];
+        Arrays.fill(depth, -1);
+        int[] path = new int[n];
+        boolean[] onPath = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            if (depth[i] >= 0) continue;
+            // Climb until a root or a node of known depth
+            int length = 0;
+            int p = i;
+            boolean cycle = false;
+            while (p >= 0 && depth[p] < 0) {
+                if (onPath[p]) {
+                    cycle = true;
+                    break;
+                }
+                onPath[p] = true;
+                path[length++] = p;
+                p = parent[p];
+            }
+            int d = cycle ? n + 1 : p < 0 ? -1 : depth[p];
+            for (int k = length - 1; k >= 0; k--) {
+                d = Math.min(d + 1, n + 1);
+                if (cycle) d = n + 1;
+                depth[path[k]] = d;
+                onPath[path[k]] = false;
+            }
+        }
+        return depth;
+    }
+
+    private int[] computeHeads() {
+        int[] head = new int[tokenStart.length];
+        Arrays.fill(head, -1);
+        for (int d = 0; d < depGov.length; d++) {
+            int gov = depGov[d], dep = depDep[d];
+            if (gov < 0 || dep < 0 || gov == dep) continue;
+            if (head[dep] < 0) head[dep] = gov;
+        }
+        return head;
+    }
+
+    /** Index the dependencies of each token, in order
+     * @return the dependencies, grouped by token (see tokenDepStart) */
+    private int[] indexDependencies() {
+        int nt = tokenStart.length;
+        int[] count = new int[nt + 1];
+        for (int d = 0; d < depGov.length; d++) {
+            count[depGov[d]]++;
+            if (depDep[d] != depGov[d]) count[depDep[d]]++;
+        }
+        for (int t = 0; t < nt; t++) tokenDepStart[t + 1] = tokenDepStart[t] + count[t];
+        int[] next = Arrays.copyOf(tokenDepStart, nt);
+        int[] deps = new int[tokenDepStart[nt]];
+        for (int d = 0; d < depGov.length; d++) {
+            deps[next[depGov[d]]++] = d;
+            if (depDep[d] != depGov[d]) deps[next[depDep[d]]++] = d;
+        }
+        return deps;
+    }
+
+    private Map<String, int[]> indexLabels() {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (String label : depLabel) {
+            Integer count = counts.get(label);
+            counts.put(label, count == null ? 1 : count + 1);
+        }
+        Map<String, int[]> index = new HashMap<String, int[]>();
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            index.put(entry.getKey(), new int[entry.getValue()]);
+        }
+        Map<String, Integer> next = new HashMap<String, Integer>();
+        for (int d = 0; d < depLabel.length; d++) {
+            Integer i = next.get(depLabel[d]);
+            if (i == null) i = 0;
+            index.get(depLabel[d])[i] = d;
+            next.put(depLabel[d], i + 1);
+        }
+        return index;
+    }
+
+    /** Merge two sorted arrays of dependencies */
+    private static int[] merge(int[] a, int[] b) {
+        if (a.length == 0) return b;
+        int[] merged = new int[a.length + b.length];
+        int i = 0, j = 0, k = 0;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || (i < a.length && a[i] < b[j])) merged[k++] = a[i++];
+            else merged[k++] = b[j++];
+        }
+        return merged;
+    }
+
+    /** Lay out the subtrees of the head forest in preorder (see headOrder).
+     * @return false if the heads have a cycle */
+    private boolean computeSubtrees() {
+        int nt = tokenHead.length;
+        // Children of each token, in token order
+        int[] childStart = new int[nt + 1];
+        for (int t = 0; t < nt; t++) {
+            if (tokenHead[t] >= 0) childStart[tokenHead[t] + 1]++;
+        }
+        for (int t = 0; t < nt; t++) childStart[t + 1] += childStart[t];
+        int[] next = Arrays.copyOf(childStart, nt);
+        int[] children = new int[childStart[nt]];
+        for (int t = 0; t < nt; t++) {
+            if (tokenHead[t] >= 0) children[next[tokenHead[t]]++] = t;
+        }
+        // Iterative preorder from each root
+        int visited = 0;
+        int[] stack = new int[nt];
+        for (int root = 0; root < nt; root++) {
+            if (tokenHead[root] >= 0) continue;
+            int top = 0;
+            stack[top++] = root;
+            while (top > 0) {
+                int t = stack[--top];
+                headIndex[t] = visited;
+                headOrder[visited++] = t;
+                for (int c = childStart[t + 1] - 1; c >= childStart[t]; c--) {
+                    stack[top++] = children[c];
+                }
+            }
+        }
+        // Tokens not reached from a root are on or below a cycle
+        if (visited < nt) return false;
+        // Sizes and extents, children before parents
+        for (int i = nt - 1; i >= 0; i--) {
+            int t = headOrder[i];
+            headSize[t] += 1;
+            headFirst[t] = headLast[t] = t;
+        }
+        for (int i = nt - 1; i >= 0; i--) {
+            int t = headOrder[i];
+            for (int c = childStart[t]; c < childStart[t + 1]; c++) {
+                int child = children[c];
+                headSize[t] += headSize[child];
+                headFirst[t] = Math.min(headFirst[t], headFirst[child]);
+                headLast[t] = Math.max(headLast[t], headLast[child]);
+            }
+        }
+        return true;
+    }
+
+    /** Find the nearest attached tokens around each token (see
+     *  attachedBefore). Only valid if the heads have no cycle. */
+    private void computeAttached() {
+        int nt = tokenHead.length;
+        int previous = -1;
+        for (int t = 0; t < nt; t++) {
+            attachedBefore[t] = previous;
+            if (headAcyclic && isAttached(t)) previous = t;
+        }
+        int next = -1;
+        for (int t = nt - 1; t >= 0; t--) {
+            attachedAfter[t] = next;
+            if (headAcyclic && isAttached(t)) next = t;
+        }
+    }
+
+    private int[] computeOrder() {
+        Integer[] order = new Integer[nodeStart.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer n1, Integer n2) {
+                long span1 = nodeEnd[n1] - nodeStart[n1];
+                long span2 = nodeEnd[n2] - nodeStart[n2];
+                if (span1 != span2) return span1 < span2 ? -1 : 1;
+                // Same span: children before parents
+                return nodeDepth[n2] - nodeDepth[n1];
+            }
+        });
+        int[] result = new int[order.length];
+        for (int i = 0; i < order.length; i++) result[i] = order[i];
+        return result;
+    }
+}
@@ -0,0 +1,529 @@
+package clac.creole.scope;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/**
+ * Runs CachedScoper over a ScoperCache file in several processes (on one
+ * host, or on several hosts sharing a filesystem), coordinated through the
+ * files of a shard directory:
+ * <pre>
+ *   shard-NNNNN.docs     the documents of a shard, one per line (split)
+ *   shard-NNNNN.claim.K  attempt K at a shard, holding the worker id
+ *   shard-NNNNN.tsv      the CachedScoper records of a shard
+ *   shard-NNNNN.done     worker, documents, triggers, scopes, milliseconds
+ *   settings             the shard count and worker parameters (local)
+ * </pre>
+ * The corpus is split into shards of consecutive documents of about the
+ * same size. Workers claim shards by creating their claim file, which only
+ * one of them can do. Each worker starts with its own part of the shards,
+ * and goes on with the unclaimed shards of the others once it is done, so
+ * that workers finishing early take over the work of slower ones. A claim
+ * which has made no progress for a given time (its worker died) can be
+ * taken over by a new attempt. Outputs are written to a temporary file and
+ * renamed once complete, so a shard is either done or not; a worker whose
+ * claim was taken over (it was only slow) drops its output instead, so
+ * that it does not replace the output of the new attempt. Merging
+ * concatenates the outputs in shard order, which gives the same records as
+ * a single CachedScoper run, and sums up the metrics of the shards.
+ *
+ * Usage:
+ * <pre>
+ *   java clac.creole.scope.ScoperShards split cacheFile shardDir shards=N
+ *   java clac.creole.scope.ScoperShards work cacheFile shardDir [index=I workers=W]
+ *        [stale=MILLIS] [param=value ...]
+ *   java clac.creole.scope.ScoperShards merge shardDir outputFile
+ *   java clac.creole.scope.ScoperShards local cacheFile outputFile workers=W
+ *        [shards=N] [param=value ...]
+ * </pre>
+ * where local splits the corpus next to the output file, starts W worker
+ * processes and merges their outputs, and the parameters are those of
+ * CachedScoper. Once merged, the shard directory of local is deleted; if
+ * some workers failed, it is kept, and the next local run over the same
+ * cache, with the same shards and parameters, only scopes the shards which
+ * are not done.
+ */
+public class ScoperShards {
+
+    private static final String DOCS   = ".docs";
+    private static final String CLAIM  = ".claim.";
+    private static final String OUTPUT = ".tsv";
+    private static final String DONE   = ".done";
+    private static final String SETTINGS = "settings";
+
+    private final File dir;
+
+    public ScoperShards(File dir) {
+        this.dir = dir;
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    /** Split the documents of a cache into shards of consecutive documents
+     *  of about the same size. */
+    public void split(ScoperCache.Reader cache, int shards) throws IOException {
+        split(cache, shards, null);
+    }
+
+    /** Split the documents of a cache into shards, recording the settings
+     *  of the run they are split for (see isSplitFrom), or null for none */
+    public void split(ScoperCache.Reader cache, int shards, String settings)
+            throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create shard directory " + dir);
+        }
+        if (getShardCount() > 0) {
+            throw new IOException("Shard directory already split: " + dir);
+        }
+        List<String> names = new ArrayList<String>(cache.getDocumentNames());
+        long total = 0;
+        for (String name : names) total += cache.getDocumentSize(name);
+        shards = Math.max(1, Math.min(shards, names.size()));
+        int d = 0;
+        long size = 0;
+        for (int shard = 0; shard < shards; shard++) {
+            // Cut once the shard reaches its share of the total size,
+            // leaving at least one document for each following shard
+            long limit = total * (shard + 1) / shards;
+            List<String> docs = new ArrayList<String>();
+            while (d < names.size() && names.size() - d > shards - shard - 1
+                    && (docs.isEmpty() || size < limit || shard == shards - 1)) {
+                docs.add(names.get(d));
+                size += cache.getDocumentSize(names.get(d));
+                d++;
+            }
+            StringBuilder sb = new StringBuilder();
+            for (String name : docs) sb.append(ScoperJournal.escape(name)).append('\n');
+            writeAtomically(file(shard, DOCS), sb.toString());
+        }
+        // Last, so that a split cut short never matches
+        if (settings != null) writeAtomically(new File(dir, SETTINGS), settings);
+    }
+
+    /** The number of shards of the directory */
+    public int getShardCount() {
+        String[] files = dir.list();
+        if (files == null) return 0;
+        int n = 0;
+        for (String f : files) {
+            if (f.startsWith("shard-") && f.endsWith(DOCS)) n++;
+        }
+        return n;
+    }
+
+    /** Whether the directory was split, with the given settings, after the
+     *  last change of a cache */
+    public boolean isSplitFrom(File cacheFile, String settings) throws IOException {
+        File file = new File(dir, SETTINGS);
+        return getShardCount() > 0 && file.exists()
+                && file(0, DOCS).lastModified() >= cacheFile.lastModified()
+                && readFile(file).equals(settings);
+    }
+
+    /** The settings of a local run: the shard count asked for, and every
+     *  CachedScoper parameter (defaults included) */
+    static String settings(int shards, Map<String, Boolean> params) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("shards=").append(shards).append('\n');
+        for (Map.Entry<String, Boolean> e : new TreeMap<String, Boolean>(params).entrySet()) {
+            sb.append(e.getKey()).append('=').append(e.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /** Drop the claims (and partial outputs) of the shards which are not
+     *  done, so that they can be claimed again. Only for a directory no
+     *  worker is using any more. */
+    public void releaseClaims() throws IOException {
+        String[] files = dir.list();
+        if (files == null) return;
+        for (String f : files) {
+            if (!f.startsWith("shard-") || f.indexOf(CLAIM) < 0) continue;
+            int shard = Integer.parseInt(f.substring("shard-".length(), f.indexOf('.')));
+            if (!isDone(shard)) deleteFile(new File(dir, f));
+        }
+    }
+
+    /** Delete the shard directory and its files */
+    public void delete() throws IOException {
+        String[] files = dir.list();
+        if (files != null) {
+            for (String f : files) deleteFile(new File(dir, f));
+        }
+        deleteFile(dir);
+    }
+
+    private static void deleteFile(File file) throws IOException {
+        if (!file.delete() && file.exists()) {
+            throw new IOException("Could not delete " + file);
+        }
+    }
+
+    /** Whether a shard is done */
+    public boolean isDone(int shard) {
+        return file(shard, DONE).exists();
+    }
+
+    /** Claim a shard which is neither done nor claimed by a live worker.
+     * @param staleMillis time without progress after which a claim is taken
+     *                    over (0 to never take over claims)
+     * @return the claim file, or null if the shard could not be claimed */
+    public File claim(int shard, String worker, long staleMillis) throws IOException {
+        if (isDone(shard)) return null;
+        int attempt = 0;
+        while (file(shard, CLAIM + attempt).exists()) attempt++;
+        if (attempt > 0) {
+            File last = file(shard, CLAIM + (attempt - 1));
+            if (staleMillis <= 0
+                    || System.currentTimeMillis() - last.lastModified() < staleMillis) {
+                return null;
+            }
+        }
+        File claim = file(shard, CLAIM + attempt);
+        // Only one worker can create the claim file of an attempt
+        if (!claim.createNewFile()) return null;
+        Writer out = new OutputStreamWriter(new FileOutputStream(claim), "UTF-8");
+        try {
+            out.write(worker + "\n");
+        } finally {
+            out.close();
+        }
+        return claim;
+    }
+
+    /** Claim and scope shards until none are left.
+     * @param index   the index of this worker, from 0 to workers - 1, which
+     *                sets the shard it starts from
+     * @return the number of shards scoped by this worker */
+    public int work(ScoperCache.Reader cache, CachedScoper scoper, String worker,
+                    int index, int workers, long staleMillis) throws IOException {
+        int n = getShardCount();
+        int first = workers <= 0 ? 0 : (int) ((long) n * index / workers);
+        int done = 0;
+        for (int i = 0; i < n; i++) {
+            int shard = (first + i) % n;
+            File claim = claim(shard, worker, staleMillis);
+            if (claim == null) continue;
+            if (scopeShard(cache, scoper, worker, shard, claim)) done++;
+        }
+        return done;
+    }
+
+    /** Whether a claim is the latest attempt at its shard (it was not taken
+     *  over) */
+    boolean isLatestAttempt(int shard, File claim) {
+        String name = claim.getName();
+        int attempt = Integer.parseInt(name.substring(name.lastIndexOf(CLAIM)
+                                                      + CLAIM.length()));
+        return !file(shard, CLAIM + (attempt + 1)).exists();
+    }
+
+    /** Scope the documents of a claimed shard
+     * @return false if the claim was taken over, in which case the output
+     *         is dropped */
+    boolean scopeShard(ScoperCache.Reader cache, CachedScoper scoper, String worker,
+                       int shard, File claim) throws IOException {
+        long start = System.currentTimeMillis();
+        File tmp = new File(dir, claim.getName() + OUTPUT + ".tmp");
+        Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(tmp), "UTF-8"));
+        int documents = 0, triggers = 0, scopes = 0;
+        try {
+            for (String name : readDocuments(shard)) {
+                List<ScoperSentence> sentences = cache.getDocument(name);
+                if (sentences == null) {
+                    System.err.println("Warning: document not found in sentence cache: "
+                                       + name);
+                    continue;
+                }
+                for (ScoperSentence s : sentences) {
+                    triggers += s.getTriggerCount();
+                    scopes += scoper.scopeSentence(name, s, out);
+                }
+                documents++;
+                // Show that the claim is alive
+                claim.setLastModified(System.currentTimeMillis());
+                if (!isLatestAttempt(shard, claim)) break;
+            }
+        } finally {
+            out.close();
+        }
+        if (!isLatestAttempt(shard, claim)) {
+            System.err.println("Warning: claim " + claim.getName() + " was taken over,"
+                               + " dropping its output");
+            deleteFile(tmp);
+            return false;
+        }
+        File output = file(shard, OUTPUT);
+        output.delete();
+        if (!tmp.renameTo(output)) {
+            throw new IOException("Could not rename " + tmp + " to " + output);
+        }
+        writeAtomically(file(shard, DONE), worker + "\t" + documents + "\t" + triggers
+                + "\t" + scopes + "\t" + (System.currentTimeMillis() - start) + "\n");
+        return true;
+    }
+
+    /** The shards which are not done */
+    public List<Integer> getUnfinishedShards() {
+        List<Integer> unfinished = new ArrayList<Integer>();
+        for (int shard = 0; shard < getShardCount(); shard++) {
+            if (!isDone(shard)) unfinished.add(shard);
+        }
+        return unfinished;
+    }
+
+    /** Concatenate the outputs of the shards, in shard order, and sum up
+     *  their metrics.
+     * @return the metrics, as JSON
+     * @throws IOException if a shard is not done */
+    public String merge(OutputStream out) throws IOException {
+        int n = getShardCount();
+        List<Integer> unfinished = getUnfinishedShards();
+        if (!unfinished.isEmpty()) {
+            throw new IOException("Shards not done: " + unfinished);
+        }
+        long documents = 0, triggers = 0, scopes = 0, millis = 0;
+        Map<String, long[]> workers = new TreeMap<String, long[]>();
+        byte[] buffer = new byte[1 << 16];
+        for (int shard = 0; shard < n; shard++) {
+            InputStream in = new FileInputStream(file(shard, OUTPUT));
+            try {
+                int r;
+                while ((r = in.read(buffer)) > 0) out.write(buffer, 0, r);
+            } finally {
+                in.close();
+            }
+            String[] fields = readFile(file(shard, DONE)).trim().split("\t");
+            documents += Long.parseLong(fields[1]);
+            triggers += Long.parseLong(fields[2]);
+            scopes += Long.parseLong(fields[3]);
+            millis += Long.parseLong(fields[4]);
+            long[] worker = workers.get(fields[0]);
+            if (worker == null) workers.put(fields[0], worker = new long[2]);
+            worker[0]++;
+            worker[1] += Long.parseLong(fields[4]);
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n  \"shards\": ").append(n);
+        sb.append(",\n  \"documents\": ").append(documents);
+        sb.append(",\n  \"triggers\": ").append(triggers);
+        sb.append(",\n  \"scopes\": ").append(scopes);
+        sb.append(",\n  \"millis\": ").append(millis);
+        sb.append(",\n  \"workers\": {");
+        boolean first = true;
+        for (Map.Entry<String, long[]> e : workers.entrySet()) {
+            if (!first) sb.append(",");
+            sb.append("\n    ").append(ScoperStatistics.jsonString(e.getKey()))
+              .append(": { \"shards\": ").append(e.getValue()[0])
+              .append(", \"millis\": ").append(e.getValue()[1]).append(" }");
+            first = false;
+        }
+        sb.append("\n  }\n}\n");
+        return sb.toString();
+    }
+
+    /** The documents of a shard */
+    public List<String> readDocuments(int shard) throws IOException {
+        List<String> names = new ArrayList<String>();
+        for (String line : readFile(file(shard, DOCS)).split("\n")) {
+            if (line.length() > 0) names.add(ScoperJournal.unescape(line));
+        }
+        return names;
+    }
+
+    private File file(int shard, String suffix) {
+        return new File(dir, String.format(Locale.ROOT, "shard-%05d%s", shard, suffix));
+    }
+
+    /** Write a file under a temporary name, then rename it */
+    private static void writeAtomically(File file, String content) throws IOException {
+        File tmp = new File(file.getPath() + "." + workerId() + ".tmp");
+        Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        file.delete();
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not rename " + tmp + " to " + file);
+        }
+    }
+
+    private static String readFile(File file) throws IOException {
+        Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            StringBuilder sb = new StringBuilder();
+            char[] buffer = new char[4096];
+            int r;
+            while ((r = in.read(buffer)) > 0) sb.append(buffer, 0, r);
+            return sb.toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    /** The id of this process: pid@host */
+    static String workerId() {
+        return ManagementFactory.getRuntimeMXBean().getName();
+    }
+
+    /** Start worker processes and wait for them.
+     * @return whether all workers succeeded */
+    static boolean launch(File cacheFile, File dir, int workers, List<String> params)
+            throws IOException, InterruptedException {
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java")
+                .getPath();
+        List<Process> processes = new ArrayList<Process>();
+        for (int i = 0; i < workers; i++) {
+            List<String> command = new ArrayList<String>(Arrays.asList(java, "-cp",
+                    System.getProperty("java.class.path"), ScoperShards.class.getName(),
+                    "work", cacheFile.getPath(), dir.getPath(), "index=" + i,
+                    "workers=" + workers));
+            command.addAll(params);
+            ProcessBuilder builder = new ProcessBuilder(command);
+            builder.redirectErrorStream(true);
+            final Process process = builder.start();
+            processes.add(process);
+            // Forward the output of the worker
+            Thread pump = new Thread("ScoperShards worker " + i) {
+                public void run() {
+                    try {
+                        InputStream in = process.getInputStream();
+                        byte[] buffer = new byte[4096];
+                        int r;
+                        while ((r = in.read(buffer)) > 0) System.err.write(buffer, 0, r);
+                    } catch (IOException e) {
+                        // The worker is gone
+                    }
+                }
+            };
+            pump.setDaemon(true);
+            pump.start();
+        }
+        boolean ok = true;
+        for (Process process : processes) {
+            ok &= process.waitFor() == 0;
+        }
+        return ok;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 3) {
+            usage();
+        }
+        String command = args[0];
+        Map<String, String> options = new HashMap<String, String>();
+        List<String> params = new ArrayList<String>();
+        Map<String, Boolean> scoperParams = CachedScoper.defaultParameters();
+        for (int i = 3; i < args.length; i++) {
+            String[] kv = args[i].split("=", 2);
+            if (CachedScoper.parseParameter(scoperParams, args[i])) {
+                params.add(args[i]);
+            } else if (kv.length == 2 && Arrays.asList("shards", "index", "workers", "stale")
+                    .contains(kv[0])) {
+                options.put(kv[0], kv[1]);
+            } else {
+                System.err.println("Unknown parameter: " + args[i]);
+                System.exit(1);
+            }
+        }
+        try {
+            if (command.equals("split")) {
+                ScoperCache.Reader cache = new ScoperCache.Reader(new File(args[1]));
+                try {
+                    new ScoperShards(new File(args[2])).split(cache,
+                            intOption(options, "shards", -1));
+                } finally {
+                    cache.close();
+                }
+            } else if (command.equals("work")) {
+                ScoperCache.Reader cache = new ScoperCache.Reader(new File(args[1]));
+                try {
+                    new ScoperShards(new File(args[2])).work(cache,
+                            CachedScoper.create(scoperParams), workerId(),
+                            intOption(options, "index", 0), intOption(options, "workers", 1),
+                            Long.parseLong(options.containsKey("stale")
+                                           ? options.get("stale") : "0"));
+                } finally {
+                    cache.close();
+                }
+            } else if (command.equals("merge")) {
+                merge(new ScoperShards(new File(args[1])), new File(args[2]));
+            } else if (command.equals("local")) {
+                int workers = intOption(options, "workers", -1);
+                File cacheFile = new File(args[1]);
+                File outputFile = new File(args[2]);
+                ScoperShards shards = new ScoperShards(new File(outputFile.getPath() + ".shards"));
+                String settings = settings(intOption(options, "shards", 4 * workers),
+                                           scoperParams);
+                if (shards.isSplitFrom(cacheFile, settings)) {
+                    // Left by a run whose workers failed: scope the rest
+                    System.err.println("Resuming the shards of " + shards.getDirectory());
+                    shards.releaseClaims();
+                } else {
+                    // Split from an older cache, or for other settings
+                    if (shards.getShardCount() > 0) shards.delete();
+                    ScoperCache.Reader cache = new ScoperCache.Reader(cacheFile);
+                    try {
+                        shards.split(cache, intOption(options, "shards", 4 * workers),
+                                     settings);
+                    } finally {
+                        cache.close();
+                    }
+                }
+                if (!launch(cacheFile, shards.getDirectory(), workers, params)) {
+                    System.err.println("Some workers failed, see " + shards.getDirectory());
+                    System.exit(1);
+                }
+                merge(shards, outputFile);
+                shards.delete();
+            } else {
+                usage();
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid number: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void merge(ScoperShards shards, File outputFile) throws IOException {
+        List<Integer> unfinished = shards.getUnfinishedShards();
+        if (!unfinished.isEmpty()) {
+            System.err.println("Shards not done: " + unfinished
+                    + " (run workers with stale=MILLIS to take over dead claims)");
+            System.exit(1);
+        }
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile));
+        try {
+            System.out.print(shards.merge(out));
+        } finally {
+            out.close();
+        }
+    }
+
+    /** An integer option, or its default value (required if negative) */
+    private static int intOption(Map<String, String> options, String name,
+                                 int defaultValue) {
+        if (options.containsKey(name)) return Integer.parseInt(options.get(name));
+        if (defaultValue < 0) {
+            System.err.println("Missing parameter: " + name);
+            System.exit(1);
+        }
+        return defaultValue;
+    }
+
+    private static void usage() {
+        System.err.println("Usage: ScoperShards split cacheFile shardDir shards=N");
+        System.err.println("       ScoperShards work cacheFile shardDir [index=I workers=W]"
+                           + " [stale=MILLIS] [param=value ...]");
+        System.err.println("       ScoperShards merge shardDir outputFile");
+        System.err.println("       ScoperShards local cacheFile outputFile workers=W"
+                           + " [shards=N] [param=value ...]");
+        System.exit(1);
+    }
+}
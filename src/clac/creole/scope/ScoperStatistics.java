@@ -0,0 +1,467 @@
+package clac.creole.scope;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import gate.Annotation;
+import gate.FeatureMap;
+
+/**
+ * Corpus level statistics collected while Scoper runs.
+ * Statistics are grouped by trigger type and minorType (prefixed with the
+ * configuration name in sweep mode, e.g. "narrow:negator/none"), and contain the
+ * number of triggers, the number of scopes found by each heuristic,
+ * the scope length (in tokens and characters), the noscope rate, the
+ * nesting depth of triggers and the number of triggers covered by a scope
+ * of each predicate type (e.g. sentiment triggers under a negator). The
+ * number of triggers processed in a
+ * degraded way (see Scoper.TRIGGER_DEGRADED_FEATURE) is kept per degradation.
+ *
+ * In sampling mode (see ScoperSampler), the triggers left out of the sample
+ * are only counted. Each group then also reports its population and
+ * estimates of its noscope rate, heuristic rates and coverage rates, with
+ * 95% confidence intervals (Wilson score intervals), and the groups of each
+ * configuration are combined into stratified estimates of the noscope rate
+ * and, for each trigger type, of the rate of triggers covered by each
+ * predicate type.
+ *
+ * All counters can be updated concurrently, so a single instance may be
+ * shared by every duplicate of a Scoper PR running on parallel workers
+ * (see acquire()). The last worker to release() an instance writes the
+ * JSON summary.
+ */
+public class ScoperStatistics {
+
+    /** Instances shared between workers, by output file */
+    private static final SharedResources<ScoperStatistics> SHARED =
+            new SharedResources<ScoperStatistics>() {
+                protected ScoperStatistics open(File file) {
+                    return new ScoperStatistics(file);
+                }
+            };
+
+    /** Key used for triggers without a type or minorType */
+    public static final String UNKNOWN = "none";
+
+    /** z value of the confidence intervals of estimates (95%) */
+    public static final double Z = 1.959964;
+
+    private final File outputFile;
+
+    private final StripedCounter documents = new StripedCounter();
+    private final ConcurrentMap<String, StripedCounter> degradations =
+            new ConcurrentHashMap<String, StripedCounter>();
+    private final ConcurrentMap<String, TriggerStatistics> groups =
+            new ConcurrentHashMap<String, TriggerStatistics>();
+    /** Configuration of each group ("" outside of sweep mode) */
+    private final ConcurrentMap<String, String> configurations =
+            new ConcurrentHashMap<String, String>();
+    /** Trigger type of each group */
+    private final ConcurrentMap<String, String> types =
+            new ConcurrentHashMap<String, String>();
+
+    public ScoperStatistics() {
+        this(null);
+    }
+
+    public ScoperStatistics(File outputFile) {
+        this.outputFile = outputFile;
+    }
+
+    /** Get the statistics of an output file (see SharedResources) */
+    public static ScoperStatistics acquire(File outputFile) throws IOException {
+        return SHARED.acquire(outputFile);
+    }
+
+    /** Release statistics.
+     *  @return true iff this was their last user, who writes them. */
+    public static boolean release(ScoperStatistics stats) {
+        return SHARED.release(stats.outputFile);
+    }
+
+    public File getOutputFile() {
+        return outputFile;
+    }
+
+    /** Record that a document was processed */
+    public void recordDocument() {
+        documents.increment();
+    }
+
+    /** Record a scope created by a heuristic for a trigger */
+    public void recordScope(Annotation trigger, String heuristic,
+                            long tokenLength, long charLength) {
+        recordScope(null, trigger, heuristic, tokenLength, charLength);
+    }
+
+    /** Record a scope created by a heuristic for a trigger, in a sweep
+     *  configuration (or null) */
+    public void recordScope(String configuration, Annotation trigger, String heuristic,
+                            long tokenLength, long charLength) {
+        TriggerStatistics group = getGroup(configuration, trigger);
+        group.getHeuristic(heuristic).increment();
+        group.scopeTokens.record(tokenLength);
+        group.scopeChars.record(charLength);
+    }
+
+    /** Record a trigger after its scope features have been propagated.
+     * @param depth the number of scopes the trigger is embedded in
+     * @param scopeTypes the trigger types of the scopes covering the
+     *                   trigger (empty if it is outside of any scope) */
+    public void recordTrigger(Annotation trigger, long depth, Set<String> scopeTypes) {
+        recordTrigger(null, trigger, depth, scopeTypes);
+    }
+
+    /** Record a trigger of a sweep configuration (or null) */
+    public void recordTrigger(String configuration, Annotation trigger,
+                              long depth, Set<String> scopeTypes) {
+        TriggerStatistics group = getGroup(configuration, trigger);
+        group.triggers.increment();
+        group.nestingDepth.record(depth);
+        if (scopeTypes.isEmpty()) group.noScope.increment();
+        for (String type : scopeTypes) group.getCoveredBy(type).increment();
+    }
+
+    /** Record a trigger left out of the sample, in a sweep configuration
+     *  (or null) */
+    public void recordUnsampled(String configuration, Annotation trigger) {
+        getGroup(configuration, trigger).unsampled.increment();
+    }
+
+    /** Record a trigger processed in a degraded way */
+    public void recordDegradation(String degradation) {
+        getDegradation(degradation).increment();
+    }
+
+    /** Add all statistics from another instance */
+    public void merge(ScoperStatistics other) {
+        documents.merge(other.documents);
+        for (Map.Entry<String, StripedCounter> e : other.degradations.entrySet()) {
+            getDegradation(e.getKey()).merge(e.getValue());
+        }
+        configurations.putAll(other.configurations);
+        types.putAll(other.types);
+        for (Map.Entry<String, TriggerStatistics> e : other.groups.entrySet()) {
+            getGroup(e.getKey()).merge(e.getValue());
+        }
+    }
+
+    /** Format the statistics as a JSON object */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n  \"documents\": ").append(documents.sum());
+        sb.append(",\n  \"degradations\": {");
+        boolean first = true;
+        for (String key : new TreeSet<String>(degradations.keySet())) {
+            if (!first) sb.append(", ");
+            sb.append(jsonString(key)).append(": ").append(degradations.get(key).sum());
+            first = false;
+        }
+        sb.append("}");
+        boolean sampled = false;
+        for (TriggerStatistics group : groups.values()) {
+            sampled |= group.unsampled.sum() > 0;
+        }
+        sb.append(",\n  \"triggers\": {");
+        first = true;
+        for (String key : new TreeSet<String>(groups.keySet())) {
+            if (!first) sb.append(",");
+            sb.append("\n    ").append(jsonString(key)).append(": ");
+            groups.get(key).toJson(sb, "    ", sampled);
+            first = false;
+        }
+        sb.append("\n  }");
+        if (sampled) {
+            sb.append(",\n  \"estimates\": {");
+            first = true;
+            for (String configuration : new TreeSet<String>(configurations.values())) {
+                if (!first) sb.append(",");
+                sb.append("\n    ").append(jsonString(configuration)).append(": ");
+                estimatesToJson(sb, configuration);
+                first = false;
+            }
+            sb.append("\n  }");
+        }
+        sb.append("\n}\n");
+        return sb.toString();
+    }
+
+    /** Stratified estimates of a configuration: its noscope rate and, for
+     *  each trigger type, the rate of triggers covered by a scope of each
+     *  predicate type (the headline "sentiment under a negator" is
+     *  coveredBy.sentiment.negator). */
+    private void estimatesToJson(StringBuilder sb, String configuration) {
+        long population = 0, sample = 0;
+        int unestimated = 0;
+        List<TriggerStatistics> strata = new ArrayList<TriggerStatistics>();
+        Map<String, List<TriggerStatistics>> byType =
+                new TreeMap<String, List<TriggerStatistics>>();
+        Set<String> scopeTypes = new TreeSet<String>(Arrays.asList(Scoper.PREDICATE_ALL));
+        for (Map.Entry<String, String> e : configurations.entrySet()) {
+            if (!e.getValue().equals(configuration)) continue;
+            TriggerStatistics group = groups.get(e.getKey());
+            long n = group.triggers.sum();
+            population += n + group.unsampled.sum();
+            sample += n;
+            if (n == 0) unestimated++;
+            strata.add(group);
+            String type = types.get(e.getKey());
+            if (!byType.containsKey(type)) byType.put(type, new ArrayList<TriggerStatistics>());
+            byType.get(type).add(group);
+            scopeTypes.addAll(group.coveredBy.keySet());
+        }
+        sb.append("{ \"population\": ").append(population);
+        sb.append(", \"sampled\": ").append(sample);
+        sb.append(", \"unestimatedGroups\": ").append(unestimated);
+        sb.append(", \"noscopeRate\": ");
+        stratifiedToJson(sb, strata, null);
+        sb.append(",\n      \"coveredBy\": {");
+        boolean first = true;
+        for (Map.Entry<String, List<TriggerStatistics>> e : byType.entrySet()) {
+            if (!first) sb.append(",");
+            sb.append("\n        ").append(jsonString(e.getKey())).append(": {");
+            boolean firstScope = true;
+            for (String scopeType : scopeTypes) {
+                if (!firstScope) sb.append(",");
+                sb.append("\n          ").append(jsonString(scopeType)).append(": ");
+                stratifiedToJson(sb, e.getValue(), scopeType);
+                firstScope = false;
+            }
+            sb.append("\n        }");
+            first = false;
+        }
+        sb.append("\n      } }");
+    }
+
+    /** Stratified estimate of a rate over groups: the rates of the groups
+     *  weighted by their populations. Groups without sampled triggers
+     *  cannot be estimated, and are left out.
+     * @param scopeType the rate of triggers covered by a scope of this
+     *                  predicate type, or null for the noscope rate */
+    private static void stratifiedToJson(StringBuilder sb, List<TriggerStatistics> strata,
+                                         String scopeType) {
+        long estimated = 0;
+        for (TriggerStatistics group : strata) {
+            long n = group.triggers.sum();
+            if (n > 0) estimated += n + group.unsampled.sum();
+        }
+        if (estimated == 0) {
+            sb.append("null");
+            return;
+        }
+        double sum = 0.0, variance = 0.0;
+        for (TriggerStatistics group : strata) {
+            long n = group.triggers.sum();
+            if (n == 0) continue;
+            long size = n + group.unsampled.sum();
+            double weight = (double) size / estimated;
+            long k = scopeType == null ? group.noScope.sum() : group.getCovered(scopeType);
+            double p = (double) k / n;
+            sum += weight * p;
+            variance += weight * weight * (1.0 - (double) n / size) * p * (1.0 - p) / n;
+        }
+        double margin = Z * Math.sqrt(variance);
+        intervalToJson(sb, sum, Math.max(0.0, sum - margin), Math.min(1.0, sum + margin));
+    }
+
+    /** A proportion with its Wilson score interval */
+    static void proportionToJson(StringBuilder sb, long k, long n) {
+        if (n == 0) {
+            sb.append("null");
+            return;
+        }
+        double p = (double) k / n;
+        double z2 = Z * Z;
+        double center = (p + z2 / (2 * n)) / (1 + z2 / n);
+        double margin = Z / (1 + z2 / n) * Math.sqrt(p * (1 - p) / n + z2 / (4.0 * n * n));
+        intervalToJson(sb, p, Math.max(0.0, center - margin), Math.min(1.0, center + margin));
+    }
+
+    private static void intervalToJson(StringBuilder sb, double value, double low, double high) {
+        sb.append(String.format(Locale.ROOT,
+                "{ \"value\": %.4f, \"low\": %.4f, \"high\": %.4f }", value, low, high));
+    }
+
+    /** Write the JSON summary to the output file */
+    public void write() throws IOException {
+        write(outputFile);
+    }
+
+    public synchronized void write(File file) throws IOException {
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write(toJson());
+        } finally {
+            out.close();
+        }
+    }
+
+    private TriggerStatistics getGroup(String configuration, Annotation trigger) {
+        String key = getStratum(trigger.getFeatures());
+        if (configuration != null) key = configuration + ":" + key;
+        if (!configurations.containsKey(key)) {
+            configurations.put(key, configuration == null ? "" : configuration);
+            types.put(key, featureOrUnknown(trigger.getFeatures(), Scoper.TRIGGER_TYPE_FEATURE));
+        }
+        return getGroup(key);
+    }
+
+    /** The group of a trigger: type/minorType */
+    static String getStratum(FeatureMap features) {
+        return featureOrUnknown(features, Scoper.TRIGGER_TYPE_FEATURE)
+                + "/" + featureOrUnknown(features, Scoper.TRIGGER_MINORTYPE_FEATURE);
+    }
+
+    private TriggerStatistics getGroup(String key) {
+        TriggerStatistics group = groups.get(key);
+        if (group == null) {
+            group = new TriggerStatistics();
+            TriggerStatistics old = groups.putIfAbsent(key, group);
+            if (old != null) group = old;
+        }
+        return group;
+    }
+
+    private StripedCounter getDegradation(String degradation) {
+        StripedCounter counter = degradations.get(degradation);
+        if (counter == null) {
+            counter = new StripedCounter();
+            StripedCounter old = degradations.putIfAbsent(degradation, counter);
+            if (old != null) counter = old;
+        }
+        return counter;
+    }
+
+    private static String featureOrUnknown(FeatureMap features, String name) {
+        Object value = features.get(name);
+        return value == null ? UNKNOWN : value.toString();
+    }
+
+    static String jsonString(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':  sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                    else sb.append(c);
+            }
+        }
+        return sb.append("\"").toString();
+    }
+
+    /** Statistics for a single trigger type/minorType */
+    private static class TriggerStatistics {
+        final StripedCounter triggers = new StripedCounter();
+        final StripedCounter noScope  = new StripedCounter();
+        final StripedCounter unsampled = new StripedCounter();
+        final ConcurrentMap<String, StripedCounter> heuristics =
+                new ConcurrentHashMap<String, StripedCounter>();
+        /** Triggers covered by a scope of each predicate type */
+        final ConcurrentMap<String, StripedCounter> coveredBy =
+                new ConcurrentHashMap<String, StripedCounter>();
+        final ScopeHistogram scopeTokens  = new ScopeHistogram();
+        final ScopeHistogram scopeChars   = new ScopeHistogram();
+        final ScopeHistogram nestingDepth = new ScopeHistogram();
+
+        StripedCounter getHeuristic(String heuristic) {
+            StripedCounter counter = heuristics.get(heuristic);
+            if (counter == null) {
+                counter = new StripedCounter();
+                StripedCounter old = heuristics.putIfAbsent(heuristic, counter);
+                if (old != null) counter = old;
+            }
+            return counter;
+        }
+
+        StripedCounter getCoveredBy(String scopeType) {
+            StripedCounter counter = coveredBy.get(scopeType);
+            if (counter == null) {
+                counter = new StripedCounter();
+                StripedCounter old = coveredBy.putIfAbsent(scopeType, counter);
+                if (old != null) counter = old;
+            }
+            return counter;
+        }
+
+        /** The number of triggers covered by a scope of a predicate type */
+        long getCovered(String scopeType) {
+            StripedCounter counter = coveredBy.get(scopeType);
+            return counter == null ? 0 : counter.sum();
+        }
+
+        void merge(TriggerStatistics other) {
+            triggers.merge(other.triggers);
+            noScope.merge(other.noScope);
+            unsampled.merge(other.unsampled);
+            for (Map.Entry<String, StripedCounter> e : other.heuristics.entrySet()) {
+                getHeuristic(e.getKey()).merge(e.getValue());
+            }
+            for (Map.Entry<String, StripedCounter> e : other.coveredBy.entrySet()) {
+                getCoveredBy(e.getKey()).merge(e.getValue());
+            }
+            scopeTokens.merge(other.scopeTokens);
+            scopeChars.merge(other.scopeChars);
+            nestingDepth.merge(other.nestingDepth);
+        }
+
+        void toJson(StringBuilder sb, String indent, boolean sampled) {
+            long n = triggers.sum();
+            long none = noScope.sum();
+            sb.append("{\n").append(indent).append("  \"triggers\": ").append(n);
+            sb.append(",\n").append(indent).append("  \"noscope\": ").append(none);
+            sb.append(",\n").append(indent).append("  \"noscopeRate\": ")
+              .append(String.format(Locale.ROOT, "%.4f", n == 0 ? 0.0 : (double) none / n));
+            sb.append(",\n").append(indent).append("  \"heuristics\": {");
+            boolean first = true;
+            for (String h : new TreeSet<String>(heuristics.keySet())) {
+                if (!first) sb.append(", ");
+                sb.append(jsonString(h)).append(": ").append(heuristics.get(h).sum());
+                first = false;
+            }
+            sb.append("}");
+            sb.append(",\n").append(indent).append("  \"coveredBy\": {");
+            first = true;
+            for (String t : new TreeSet<String>(coveredBy.keySet())) {
+                if (!first) sb.append(", ");
+                sb.append(jsonString(t)).append(": ").append(coveredBy.get(t).sum());
+                first = false;
+            }
+            sb.append("}");
+            sb.append(",\n").append(indent).append("  \"scopeTokens\": ").append(scopeTokens.toJson());
+            sb.append(",\n").append(indent).append("  \"scopeChars\": ").append(scopeChars.toJson());
+            sb.append(",\n").append(indent).append("  \"nestingDepth\": ").append(nestingDepth.toJson());
+            if (sampled) {
+                sb.append(",\n").append(indent).append("  \"population\": ")
+                  .append(n + unsampled.sum());
+                sb.append(",\n").append(indent).append("  \"estimates\": { \"noscopeRate\": ");
+                proportionToJson(sb, none, n);
+                sb.append(", \"heuristics\": {");
+                first = true;
+                for (String h : new TreeSet<String>(heuristics.keySet())) {
+                    if (!first) sb.append(", ");
+                    sb.append(jsonString(h)).append(": ");
+                    proportionToJson(sb, heuristics.get(h).sum(), n);
+                    first = false;
+                }
+                sb.append("}, \"coveredBy\": {");
+                first = true;
+                for (String t : new TreeSet<String>(coveredBy.keySet())) {
+                    if (!first) sb.append(", ");
+                    sb.append(jsonString(t)).append(": ");
+                    proportionToJson(sb, coveredBy.get(t).sum(), n);
+                    first = false;
+                }
+                sb.append("} }");
+            }
+            sb.append("\n").append(indent).append("}");
+        }
+    }
+}
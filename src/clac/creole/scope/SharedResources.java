@@ -0,0 +1,49 @@
+package clac.creole.scope;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Resources (writers, logs, journals, statistics) shared by the workers of
+ * a process, by the file they write. Duplicates of a Scoper PR running on
+ * parallel workers write the same files, so the first worker to acquire
+ * the resource of a file opens it, and the last one to release it is left
+ * to close it. Each call to acquire() must be matched by a call to
+ * release().
+ */
+public abstract class SharedResources<T> {
+
+    private final Map<File, T> resources = new HashMap<File, T>();
+    private final Map<File, Integer> users = new HashMap<File, Integer>();
+
+    /** Open the resource of a file, for its first user */
+    protected abstract T open(File file) throws IOException;
+
+    /** Get the resource of a file, opening it if it has no other user */
+    public synchronized T acquire(File file) throws IOException {
+        T resource = resources.get(file);
+        if (resource == null) {
+            resource = open(file);
+            resources.put(file, resource);
+            users.put(file, 0);
+        }
+        users.put(file, users.get(file) + 1);
+        return resource;
+    }
+
+    /** Release the resource of a file.
+     *  @return true iff this was its last user, in which case the resource
+     *          is no longer shared, and the caller closes it. */
+    public synchronized boolean release(File file) {
+        int left = users.get(file) - 1;
+        if (left > 0) {
+            users.put(file, left);
+            return false;
+        }
+        users.remove(file);
+        resources.remove(file);
+        return true;
+    }
+}
@@ -0,0 +1,73 @@
+package clac.creole.scope;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter which may be updated concurrently by many threads with little
+ * contention. Increments are spread over a number of stripes chosen from the
+ * current thread, and the value is the sum of all stripes.
+ * Counters can be merged, which allows partial results to be combined.
+ */
+public class StripedCounter {
+
+    /** Number of stripes, always a power of two */
+    private static final int STRIPES = stripeCount();
+
+    /** Stripes are padded so that two threads don't share a cache line */
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells =
+            new AtomicLongArray(STRIPES * PADDING);
+
+    /** Add one to the counter */
+    public void increment() {
+        add(1L);
+    }
+
+    /** Add a value to the counter */
+    public void add(long x) {
+        cells.addAndGet(stripe() * PADDING, x);
+    }
+
+    /** Get the current value of the counter.
+     * The value is only exact if no updates are concurrently in progress. */
+    public long sum() {
+        long sum = 0L;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    /** Add the value of another counter to this counter */
+    public void merge(StripedCounter other) {
+        add(other.sum());
+    }
+
+    /** Reset the counter to zero */
+    public void reset() {
+        for (int i = 0; i < STRIPES; i++) {
+            cells.set(i * PADDING, 0L);
+        }
+    }
+
+    public String toString() {
+        return Long.toString(sum());
+    }
+
+    private static int stripe() {
+        long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32));
+        h ^= (h >>> 16);
+        return h & (STRIPES - 1);
+    }
+
+    private static int stripeCount() {
+        int n = 1;
+        int cpus = Runtime.getRuntime().availableProcessors();
+        while (n < 2 * cpus) {
+            n <<= 1;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,339 @@
+package clac.creole.scope;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.Gate;
+
+/**
+ * Checks that a single Scoper instance can process documents from several
+ * threads at once (see Scoper.execute(Document)).
+ *
+ * Random documents are generated with Token, SyntaxTreeNode, Dependency,
+ * Sentence and Trigger annotations, and scoped once by a single thread.
+ * Fresh copies of the documents are then scoped by threads sharing the
+ * same Scoper, for a number of rounds, and the Scope annotations and
+ * trigger features of every copy are compared to those of the single
+ * threaded run.
+ *
+ * Usage:
+ * <pre>
+ *   java clac.creole.scope.ScoperConcurrency [param=value ...]
+ * </pre>
+ * with the parameters threads (default 8), documents (default 64),
+ * sentences (per document, default 20), rounds (default 5), seed (default
+ * 1) and the Scoper runtime parameters enableNegatorScope, enableAdjScope,
+ * enableNomScope, enableGrammarScope (all enabled by default),
+ * filterPredicates and useDependencyScope. The exit status is 1 if a
+ * document differs from the single threaded run, or if a thread failed.
+ */
+public class ScoperConcurrency {
+
+    private static final String[] CATEGORIES =
+            { "NN", "JJ", "IN", "RB", "VB", "DT", "MD", "VBD", "NNS", "CC" };
+    private static final String[] PHRASES = { "NP", "VP", "PP", "ADJP", "S", "SBAR" };
+    private static final String[] LABELS =
+            { "nsubj", "dobj", "amod", "neg", "prep_without", "xcomp", "ccomp",
+              "advmod", "det", "conj_nor", "cc", "nn" };
+    private static final String[] WORDS =
+            { "not", "lack", "unhappy", "without", "could", "very", "good", "food", "nor" };
+
+    private final Scoper scoper;
+
+    public ScoperConcurrency(Scoper scoper) {
+        this.scoper = scoper;
+    }
+
+    /** Scope documents on a single thread
+     * @return the outputs of the documents (see dump()) */
+    public List<String> runSingle(List<Document> documents) throws Exception {
+        List<String> outputs = new ArrayList<String>();
+        for (Document document : documents) {
+            scoper.execute(document);
+            outputs.add(dump(document));
+        }
+        return outputs;
+    }
+
+    /** Scope documents on several threads, each thread taking the next
+     *  document not yet taken
+     * @return the outputs of the documents (see dump()) */
+    public List<String> runConcurrent(final List<Document> documents, int threads)
+            throws Exception {
+        final String[] outputs = new String[documents.size()];
+        final AtomicInteger next = new AtomicInteger();
+        final List<Throwable> failures =
+                Collections.synchronizedList(new ArrayList<Throwable>());
+        // Start all threads at once, to get as much overlap as possible
+        final Object start = new Object();
+        final boolean[] started = new boolean[1];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread("ScoperConcurrency " + t) {
+                public void run() {
+                    try {
+                        synchronized (start) {
+                            while (!started[0]) start.wait();
+                        }
+                        for (int i = next.getAndIncrement(); i < outputs.length;
+                             i = next.getAndIncrement()) {
+                            scoper.execute(documents.get(i));
+                            outputs[i] = dump(documents.get(i));
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        synchronized (start) {
+            started[0] = true;
+            start.notifyAll();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (!failures.isEmpty()) {
+            Throwable failure = failures.get(0);
+            throw failure instanceof Exception ? (Exception) failure
+                                               : new RuntimeException(failure);
+        }
+        return Arrays.asList(outputs);
+    }
+
+    /** The Scope annotations and trigger features of a document, in a
+     *  canonical order */
+    static String dump(Document document) {
+        List<String> lines = new ArrayList<String>();
+        Set<String> names = new TreeSet<String>();
+        names.add("");
+        if (document.getAnnotationSetNames() != null) {
+            names.addAll(document.getAnnotationSetNames());
+        }
+        for (String name : names) {
+            AnnotationSet anns = name.length() == 0 ? document.getAnnotations()
+                                                    : document.getAnnotations(name);
+            for (Annotation ann : anns) {
+                if (!ann.getType().equals(Scoper.SCOPE_ANNOTATION_TYPE)
+                        && !ann.getType().equals(Scoper.TRIGGER_ANNOTATION_TYPE)) {
+                    continue;
+                }
+                Map<String, String> features = new TreeMap<String, String>();
+                for (Map.Entry<Object, Object> e : ann.getFeatures().entrySet()) {
+                    features.put(String.valueOf(e.getKey()), String.valueOf(e.getValue()));
+                }
+                lines.add(name + ":" + ann.getType() + ":" + ann.getId()
+                        + " [" + ann.getStartNode().getOffset() + ","
+                        + ann.getEndNode().getOffset() + "] " + features);
+            }
+        }
+        Collections.sort(lines);
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines) {
+            sb.append(line).append('\n');
+        }
+        return sb.toString();
+    }
+
+    // Random documents
+
+    /** Generate documents; the same seed gives the same documents */
+    static List<Document> documents(int count, int sentences, long seed) throws Exception {
+        List<Document> documents = new ArrayList<Document>();
+        for (int d = 0; d < count; d++) {
+            documents.add(document(sentences, new Random(seed * 31 + d)));
+        }
+        return documents;
+    }
+
+    /** Generate a document of the given number of sentences (also used by
+     *  ScoperScalability) */
+    static Document document(int sentences, Random random) throws Exception {
+        // Words of each sentence, and the text
+        List<int[]> words = new ArrayList<int[]>();
+        StringBuilder text = new StringBuilder();
+        for (int s = 0; s < sentences; s++) {
+            int[] w = new int[4 + random.nextInt(28)];
+            for (int t = 0; t < w.length; t++) {
+                w[t] = random.nextInt(WORDS.length);
+            }
+            words.add(w);
+            for (int t = 0; t < w.length; t++) {
+                text.append(WORDS[w[t]]).append(' ');
+            }
+            text.append(". ");
+        }
+        Document document = Factory.newDocument(text.toString());
+        AnnotationSet anns = document.getAnnotations();
+        long offset = 0;
+        for (int[] w : words) {
+            long[] start = new long[w.length];
+            long[] end = new long[w.length];
+            Integer[] tokens = new Integer[w.length];
+            for (int t = 0; t < w.length; t++) {
+                start[t] = offset;
+                end[t] = offset + WORDS[w[t]].length();
+                offset = end[t] + 1;
+                FeatureMap features = Factory.newFeatureMap();
+                features.put(Scoper.TOKEN_STRING_FEATURE, WORDS[w[t]]);
+                features.put(Scoper.TOKEN_CATEGORY_FEATURE,
+                             CATEGORIES[random.nextInt(CATEGORIES.length)]);
+                tokens[t] = anns.add(start[t], end[t], Scoper.TOKEN_ANNOTATION_TYPE, features);
+            }
+            offset += 2;
+            anns.add(start[0], end[w.length - 1], "Sentence", Factory.newFeatureMap());
+
+            // Preterminals, then a random binary tree of phrases under ROOT
+            Integer[] leaves = new Integer[w.length];
+            for (int t = 0; t < w.length; t++) {
+                FeatureMap features = Factory.newFeatureMap();
+                features.put(Scoper.PHRASE_CATEGORY_FEATURE, CATEGORIES[random.nextInt(4)]);
+                leaves[t] = anns.add(start[t], end[t], Scoper.PHRASE_ANNOTATION_TYPE, features);
+            }
+            Integer top = phrase(anns, leaves, start, end, 0, w.length - 1, random);
+            FeatureMap root = Factory.newFeatureMap();
+            root.put(Scoper.PHRASE_CATEGORY_FEATURE, Scoper.PHRASE_CATEGORY_ROOT);
+            root.put("consists", new ArrayList<Integer>(Collections.singletonList(top)));
+            anns.add(start[0], end[w.length - 1], Scoper.PHRASE_ANNOTATION_TYPE, root);
+
+            // Each token but the first depends on an earlier one
+            for (int t = 1; t < w.length; t++) {
+                int gov = random.nextInt(t);
+                FeatureMap features = Factory.newFeatureMap();
+                features.put(Scoper.DEPENDENCY_LABEL_FEATURE,
+                             LABELS[random.nextInt(LABELS.length)]);
+                features.put(Scoper.DEPENDENCY_ARG_FEATURE,
+                             new ArrayList<Integer>(Arrays.asList(tokens[gov], tokens[t])));
+                anns.add(start[gov], end[t], Scoper.DEPENDENCY_ANNOTATION_TYPE, features);
+            }
+
+            // About one token in four is a trigger
+            for (int t = 0; t < w.length; t++) {
+                if (random.nextInt(4) != 0) continue;
+                FeatureMap features = Factory.newFeatureMap();
+                String type = Scoper.PREDICATE_ALL[random.nextInt(Scoper.PREDICATE_ALL.length)];
+                features.put(Scoper.TRIGGER_TYPE_FEATURE, type);
+                if (type.equals(Scoper.PREDICATE_SENTIMENT)) {
+                    features.put(Scoper.TRIGGER_POLARITY_FEATURE,
+                            Scoper.SENTIMENT_ALL[random.nextInt(Scoper.SENTIMENT_ALL.length)]);
+                }
+                anns.add(start[t], end[t], Scoper.TRIGGER_ANNOTATION_TYPE, features);
+            }
+        }
+        return document;
+    }
+
+    /** Add the phrases of a random binary tree over the leaves first..last
+     * @return the id of the top phrase */
+    private static Integer phrase(AnnotationSet anns, Integer[] leaves, long[] start,
+                                  long[] end, int first, int last, Random random)
+            throws Exception {
+        if (first == last) return leaves[first];
+        int split = first + random.nextInt(last - first);
+        List<Integer> consists = new ArrayList<Integer>();
+        consists.add(phrase(anns, leaves, start, end, first, split, random));
+        consists.add(phrase(anns, leaves, start, end, split + 1, last, random));
+        FeatureMap features = Factory.newFeatureMap();
+        features.put(Scoper.PHRASE_CATEGORY_FEATURE, PHRASES[random.nextInt(PHRASES.length)]);
+        features.put("consists", consists);
+        return anns.add(start[first], end[last], Scoper.PHRASE_ANNOTATION_TYPE, features);
+    }
+
+    private static void deleteAll(List<Document> documents) {
+        for (Document document : documents) {
+            Factory.deleteResource(document);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = 8;
+        int count = 64;
+        int sentences = 20;
+        int rounds = 5;
+        long seed = 1L;
+        Map<String, Boolean> params = CachedScoper.defaultParameters();
+        params.put("enableNomScope", true);
+        params.put("enableGrammarScope", true);
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            if (kv.length != 2) {
+                System.err.println("Usage: ScoperConcurrency [param=value ...]");
+                System.exit(1);
+            }
+            if (kv[0].equals("threads")) {
+                threads = Integer.parseInt(kv[1]);
+            } else if (kv[0].equals("documents")) {
+                count = Integer.parseInt(kv[1]);
+            } else if (kv[0].equals("sentences")) {
+                sentences = Integer.parseInt(kv[1]);
+            } else if (kv[0].equals("rounds")) {
+                rounds = Integer.parseInt(kv[1]);
+            } else if (kv[0].equals("seed")) {
+                seed = Long.parseLong(kv[1]);
+            } else if (!CachedScoper.parseParameter(params, arg)) {
+                System.err.println("Unknown parameter: " + arg);
+                System.exit(1);
+            }
+        }
+        if (!Gate.isInitialised()) Gate.init();
+
+        Scoper scoper = new Scoper();
+        scoper.setSentenceAnnName("Sentence");
+        scoper.setTriggerAnnName(Scoper.TRIGGER_ANNOTATION_TYPE);
+        scoper.setEnableNegatorScope(params.get("enableNegatorScope"));
+        scoper.setEnableAdjScope(params.get("enableAdjScope"));
+        scoper.setEnableNomScope(params.get("enableNomScope"));
+        scoper.setEnableGrammarScope(params.get("enableGrammarScope"));
+        scoper.setFilterPredicates(params.get("filterPredicates"));
+        scoper.setUseDependencyScope(params.get("useDependencyScope"));
+        ScoperConcurrency suite = new ScoperConcurrency(scoper);
+
+        // Heuristic warnings are expected on generated documents
+        PrintStream err = System.err;
+        System.setErr(new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+        }));
+        int mismatches = 0;
+        boolean failed = false;
+        try {
+            List<Document> documents = documents(count, sentences, seed);
+            List<String> expected = suite.runSingle(documents);
+            deleteAll(documents);
+            for (int r = 0; r < rounds; r++) {
+                documents = documents(count, sentences, seed);
+                List<String> outputs;
+                try {
+                    outputs = suite.runConcurrent(documents, threads);
+                } catch (Exception e) {
+                    System.setErr(err);
+                    e.printStackTrace();
+                    failed = true;
+                    break;
+                }
+                for (int d = 0; d < count; d++) {
+                    if (!expected.get(d).equals(outputs.get(d))) {
+                        System.out.println("Round " + r + ": document " + d
+                                + " differs from the single threaded run");
+                        mismatches++;
+                    }
+                }
+                deleteAll(documents);
+            }
+        } finally {
+            System.setErr(err);
+        }
+        System.out.println(String.format(Locale.ROOT,
+                "%d documents x %d rounds on %d threads: %d mismatches %s",
+                count, rounds, threads, mismatches,
+                failed || mismatches > 0 ? "FAILED" : "OK"));
+        System.exit(failed || mismatches > 0 ? 1 : 0);
+    }
+}
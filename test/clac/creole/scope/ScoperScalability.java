@@ -0,0 +1,478 @@
+package clac.creole.scope;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.*;
+
+import gate.Document;
+import gate.Factory;
+import gate.Gate;
+import gate.creole.ExecutionException;
+
+/**
+ * Checks that the cost of Scoper grows linearly with the size of its input.
+ *
+ * Each case generates stress sentences at doubling sizes, and measures the
+ * time (and, on JVMs which report it, the allocation) of building the
+ * sentences and scoping their triggers with all heuristics enabled (inputs
+ * which are not part of the measured work, such as GATE documents, are
+ * generated before the timer starts). The
+ * growth factor of a case is the mean ratio between the costs of two
+ * consecutive sizes: about 2 for linear cost, 4 for quadratic cost.
+ * A case fails if a growth factor is above its bound.
+ *
+ * Cases:
+ * <pre>
+ *   longSentence   one sentence of n tokens, 16 triggers
+ *   deepTree       one right-branching tree of depth n, 16 triggers
+ *   conjChain      a chain of n/2 conjuncts, 16 triggers
+ *   denseTriggers  one sentence of n tokens, every token a trigger, scoped
+ *                  with both resolvers
+ *   manySentences  n sentences, in documents of 1000 sentences, written to
+ *                  and read from a sentence cache, and scoped with
+ *                  CachedScoper
+ *   largeDocument  one GATE document of n sentences (up to 100k), scoped
+ *                  by Scoper.execute from its annotations
+ * </pre>
+ * The largeDocument case initialises GATE, and needs a large heap (-Xmx4g
+ * for 100k sentences).
+ *
+ * Usage:
+ * <pre>
+ *   java clac.creole.scope.ScoperScalability [param=value ...]
+ * </pre>
+ * with the parameters timeBound (default 2.8), allocationBound (default
+ * 2.8), steps (number of sizes, default 5), cases (comma separated, default
+ * all) and useDependencyScope (default false). The exit status is 1 if a
+ * case failed.
+ */
+public class ScoperScalability {
+
+    public static final String[] CASES =
+            { "longSentence", "deepTree", "conjChain", "denseTriggers", "manySentences",
+              "largeDocument" };
+
+    /** Minimum measured time per size, in nanoseconds */
+    private static final long MIN_NANOS = 200000000L;
+    private static final int MIN_RUNS = 3;
+
+    private final ScopeHeuristics heuristics;
+    /** All heuristics with each resolver, for the denseTriggers case */
+    private final ScopeHeuristics[] resolverHeuristics;
+    /** Scoper with all heuristics enabled, for the largeDocument case */
+    private final Scoper scoper = new Scoper();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    /** com.sun.management.ThreadMXBean.getThreadAllocatedBytes(long), or
+     *  null on JVMs without it */
+    private final Method threadAllocatedBytes = allocationMethod(threads);
+
+    public ScoperScalability(ScopeResolver resolver) {
+        this.heuristics = new ScopeHeuristics(
+                new ScoperConfiguration(null, true, true, true, true, false), resolver);
+        this.resolverHeuristics = new ScopeHeuristics[] {
+                new ScopeHeuristics(new ScoperConfiguration(null, true, true, true, true, false),
+                                    ScopeResolver.PHRASE),
+                new ScopeHeuristics(new ScoperConfiguration(null, true, true, true, true, false),
+                                    ScopeResolver.DEPENDENCY) };
+        scoper.setSentenceAnnName("Sentence");
+        scoper.setTriggerAnnName(Scoper.TRIGGER_ANNOTATION_TYPE);
+        scoper.setEnableNegatorScope(true);
+        scoper.setEnableAdjScope(true);
+        scoper.setEnableNomScope(true);
+        scoper.setEnableGrammarScope(true);
+        scoper.setUseDependencyScope(resolver == ScopeResolver.DEPENDENCY);
+    }
+
+    /** The result of a case at one size */
+    public static class Measure {
+        public final int size;
+        public final long nanos;
+        /** Bytes allocated, or -1 if the JVM does not report it */
+        public final long bytes;
+
+        Measure(int size, long nanos, long bytes) {
+            this.size = size;
+            this.nanos = nanos;
+            this.bytes = bytes;
+        }
+    }
+
+    /** Run a case at doubling sizes */
+    public List<Measure> run(String name, int steps) throws IOException {
+        List<Measure> measures = new ArrayList<Measure>();
+        int size = baseSize(name);
+        // Warm up the JIT on the smallest size
+        measure(name, size);
+        for (int i = 0; i < steps; i++, size *= 2) {
+            measures.add(measure(name, size));
+        }
+        return measures;
+    }
+
+    /** The mean growth factor of a cost between consecutive sizes */
+    public static double growth(List<Measure> measures, boolean allocation) {
+        Measure first = measures.get(0);
+        Measure last = measures.get(measures.size() - 1);
+        double a = allocation ? first.bytes : first.nanos;
+        double b = allocation ? last.bytes : last.nanos;
+        if (a <= 0 || measures.size() < 2) return Double.NaN;
+        return Math.pow(b / a, 1.0 / (measures.size() - 1));
+    }
+
+    private static int baseSize(String name) {
+        if (name.equals("longSentence"))  return 500;
+        if (name.equals("deepTree"))      return 250;
+        if (name.equals("conjChain"))     return 500;
+        if (name.equals("denseTriggers")) return 200;
+        if (name.equals("manySentences")) return 6250;
+        if (name.equals("largeDocument")) return 6250;
+        throw new IllegalArgumentException("Unknown case: " + name);
+    }
+
+    /** Time one size, repeating runs until MIN_NANOS have passed */
+    private Measure measure(String name, int size) throws IOException {
+        long best = Long.MAX_VALUE;
+        long bytes = -1L;
+        long total = 0L;
+        for (int run = 0; run < MIN_RUNS || total < MIN_NANOS; run++) {
+            Document document = name.equals("largeDocument") ? document(size) : null;
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            if (document != null) {
+                executeDocument(document);
+            } else {
+                execute(name, size);
+            }
+            long nanos = System.nanoTime() - start;
+            if (allocated >= 0) bytes = allocatedBytes() - allocated;
+            if (document != null) Factory.deleteResource(document);
+            best = Math.min(best, nanos);
+            total += nanos;
+        }
+        return new Measure(size, best, bytes);
+    }
+
+    private void execute(String name, int size) throws IOException {
+        if (name.equals("manySentences")) {
+            executeCache(size);
+            return;
+        }
+        List<ScoperSentence> sentences = new ArrayList<ScoperSentence>();
+        ScopeHeuristics[] applied = { heuristics };
+        if (name.equals("longSentence")) {
+            sentences.add(longSentence(size, 16));
+        } else if (name.equals("deepTree")) {
+            sentences.add(deepTree(size, 16));
+        } else if (name.equals("conjChain")) {
+            sentences.add(conjChain(size, 16));
+        } else if (name.equals("denseTriggers")) {
+            sentences.add(longSentence(size, size));
+            applied = resolverHeuristics;
+        }
+        ScopeHeuristics.ScopeSink sink = new ScopeHeuristics.ScopeSink() {
+            public void scope(long startOffset, long endOffset, String heuristic) {
+            }
+        };
+        for (ScoperSentence s : sentences) {
+            for (ScopeHeuristics h : applied) {
+                for (int g = 0; g < s.getTriggerCount(); g++) {
+                    h.scope(s, s.getTriggerToken(g), sink);
+                }
+            }
+        }
+    }
+
+    /** A GATE document of n sentences (the same for a given n) */
+    private static Document document(int n) throws IOException {
+        try {
+            return ScoperConcurrency.document(n, new Random(n));
+        } catch (Exception e) {
+            throw new IOException("Could not generate a document of " + n + " sentences", e);
+        }
+    }
+
+    /** Scope a GATE document, from its annotations */
+    private void executeDocument(Document document) throws IOException {
+        try {
+            scoper.execute(document);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not scope a document of "
+                    + document.getContent().size() + " characters", e);
+        }
+    }
+
+    /** Write sentences to a cache, read them back and scope them */
+    private void executeCache(int size) throws IOException {
+        File file = File.createTempFile("scoper", ".scpr");
+        try {
+            ScoperCache.Writer writer = new ScoperCache.Writer(file);
+            List<ScoperSentence> document = new ArrayList<ScoperSentence>();
+            for (int i = 0; i < size; i++) {
+                document.add(longSentence(12, 2));
+                if (document.size() == 1000) {
+                    writer.writeDocument("d" + i, document);
+                    document = new ArrayList<ScoperSentence>();
+                }
+            }
+            if (!document.isEmpty()) writer.writeDocument("d" + size, document);
+            writer.close();
+            ScoperCache.Reader reader = new ScoperCache.Reader(file);
+            try {
+                new CachedScoper(heuristics, false).run(reader, new Writer() {
+                    public void write(char[] buffer, int offset, int length) {
+                    }
+                    public void flush() {
+                    }
+                    public void close() {
+                    }
+                });
+            } finally {
+                reader.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /** The bytes allocated by the current thread so far, or -1 if the JVM
+     *  does not report them */
+    private long allocatedBytes() {
+        if (threadAllocatedBytes == null) return -1L;
+        try {
+            return (Long) threadAllocatedBytes.invoke(threads,
+                    Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1L;
+        }
+    }
+
+    /** Look up the allocation counter of the JVM, which is not part of the
+     *  java.lang.management API */
+    private static Method allocationMethod(ThreadMXBean threads) {
+        try {
+            Class<?> sun = Class.forName("com.sun.management.ThreadMXBean");
+            if (!sun.isInstance(threads)) return null;
+            if (!(Boolean) sun.getMethod("isThreadAllocatedMemorySupported").invoke(threads)
+                    || !(Boolean) sun.getMethod("isThreadAllocatedMemoryEnabled").invoke(threads)) {
+                return null;
+            }
+            return sun.getMethod("getThreadAllocatedBytes", long.class);
+        } catch (Exception e) {
+            // ClassNotFoundException, NoSuchMethodException, ...
+            return null;
+        }
+    }
+
+    // Stress sentences
+
+    private static final String[] CATEGORIES = { "NN", "JJ", "IN", "RB", "VB", "DT" };
+    private static final String[] TRIGGERS   = { "lack", "unhappy", "without", "not" };
+
+    /** A sentence whose dependencies form a balanced tree (the head of
+     *  token i is token (i - 1) / 2), under a flat phrase. As in parser
+     *  output, each "without" is collapsed into a prep_without dependency
+     *  between its neighbours (a collapsed label on the long arcs of the
+     *  tree would make every "without" overlap a share of them). */
+    static ScoperSentence longSentence(int n, int triggers) {
+        Builder b = new Builder(n);
+        b.node(0, n - 1, Scoper.PHRASE_CATEGORY_ROOT, -1);
+        b.node(0, n - 1, "S", 0);
+        String[] labels = { "nsubj", "dobj", "amod", "prep", "neg", "det" };
+        for (int t = 1; t < n; t++) {
+            b.dep((t - 1) / 2, t, labels[t % labels.length]);
+        }
+        b.triggers(triggers);
+        for (int t = 1; t < n - 1; t++) {
+            if ("without".equals(b.string[t])) b.dep(t - 1, t + 1, "prep_without");
+        }
+        return b.build();
+    }
+
+    /** A right-branching sentence: phrase k covers tokens k to n-1, and
+     *  each token governs the next one */
+    static ScoperSentence deepTree(int n, int triggers) {
+        Builder b = new Builder(n);
+        b.node(0, n - 1, Scoper.PHRASE_CATEGORY_ROOT, -1);
+        for (int k = 0; k < n; k++) {
+            b.node(k, n - 1, "VP", k);
+        }
+        for (int t = 1; t < n; t++) {
+            b.dep(t - 1, t, t % 2 == 0 ? "xcomp" : "dobj");
+        }
+        b.triggers(triggers);
+        return b.build();
+    }
+
+    /** A chain of conjuncts "w nor w nor w ...": each conjunct governs the
+     *  next one with conj_nor, and its coordination with cc */
+    static ScoperSentence conjChain(int n, int triggers) {
+        Builder b = new Builder(n);
+        b.node(0, n - 1, Scoper.PHRASE_CATEGORY_ROOT, -1);
+        b.node(0, n - 1, "NP", 0);
+        for (int t = 1; t < n; t += 2) {
+            b.category[t] = Scoper.TOKEN_CATEGORY_PREP;
+            b.string[t] = "nor";
+            if (t + 1 < n) {
+                b.dep(t - 1, t + 1, "conj_nor");
+                b.dep(t - 1, t, "cc");
+            }
+        }
+        int step = 2 * Math.max(1, n / (2 * triggers));
+        for (int g = 0, t = 1; g < triggers && t < n; g++, t += step) {
+            b.trigger(t, Scoper.PREDICATE_NEGATOR);
+        }
+        return b.build();
+    }
+
+    /** Builds the arrays of a ScoperSentence; token t spans [2t, 2t+1) */
+    private static class Builder {
+        final int n;
+        final String[] category;
+        final String[] string;
+        final List<int[]> deps = new ArrayList<int[]>();
+        final List<String> labels = new ArrayList<String>();
+        final List<int[]> nodes = new ArrayList<int[]>();
+        final List<String> nodeCategories = new ArrayList<String>();
+        final List<Integer> triggerTokens = new ArrayList<Integer>();
+        final List<String> triggerTypes = new ArrayList<String>();
+
+        Builder(int n) {
+            this.n = n;
+            this.category = new String[n];
+            this.string = new String[n];
+            for (int t = 0; t < n; t++) {
+                category[t] = CATEGORIES[t % CATEGORIES.length];
+                string[t] = "w";
+            }
+        }
+
+        void dep(int gov, int dep, String label) {
+            deps.add(new int[] { gov, dep });
+            labels.add(label);
+        }
+
+        void node(int first, int last, String cat, int parent) {
+            nodes.add(new int[] { first, last, parent });
+            nodeCategories.add(cat);
+        }
+
+        void trigger(int token, String type) {
+            triggerTokens.add(token);
+            triggerTypes.add(type);
+        }
+
+        /** Spread triggers over the sentence, with various categories */
+        void triggers(int count) {
+            for (int g = 0; g < count && g < n; g++) {
+                int t = (int) ((long) g * n / Math.min(count, n));
+                category[t] = CATEGORIES[g % 4];
+                string[t] = TRIGGERS[g % 4];
+                trigger(t, g % 2 == 0 ? Scoper.PREDICATE_NEGATOR : Scoper.PREDICATE_SENTIMENT);
+            }
+        }
+
+        ScoperSentence build() {
+            long[] tokenStart = new long[n];
+            long[] tokenEnd = new long[n];
+            for (int t = 0; t < n; t++) {
+                tokenStart[t] = 2L * t;
+                tokenEnd[t] = 2L * t + 1;
+            }
+            int nd = deps.size();
+            int[] gov = new int[nd];
+            int[] dep = new int[nd];
+            for (int d = 0; d < nd; d++) {
+                gov[d] = deps.get(d)[0];
+                dep[d] = deps.get(d)[1];
+            }
+            int nn = nodes.size();
+            long[] nodeStart = new long[nn];
+            long[] nodeEnd = new long[nn];
+            int[] nodeParent = new int[nn];
+            for (int i = 0; i < nn; i++) {
+                nodeStart[i] = tokenStart[nodes.get(i)[0]];
+                nodeEnd[i] = tokenEnd[nodes.get(i)[1]];
+                nodeParent[i] = nodes.get(i)[2];
+            }
+            int ng = triggerTokens.size();
+            int[] triggerId = new int[ng];
+            long[] triggerStart = new long[ng];
+            long[] triggerEnd = new long[ng];
+            int[] triggerToken = new int[ng];
+            String[][] triggerFeatures = new String[ng][Scoper.SCOPE_INHERITED_FEATURES.length];
+            for (int g = 0; g < ng; g++) {
+                int t = triggerTokens.get(g);
+                triggerId[g] = g;
+                triggerStart[g] = tokenStart[t];
+                triggerEnd[g] = tokenEnd[t];
+                triggerToken[g] = t;
+                triggerFeatures[g][0] = triggerTypes.get(g);
+            }
+            return new ScoperSentence(0L, tokenEnd[n - 1], tokenStart, tokenEnd,
+                    category, string, gov, dep, labels.toArray(new String[nd]),
+                    nodeStart, nodeEnd, nodeCategories.toArray(new String[nn]), nodeParent,
+                    triggerId, triggerStart, triggerEnd, triggerToken, triggerFeatures);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        double timeBound = 2.8;
+        double allocationBound = 2.8;
+        int steps = 5;
+        List<String> cases = Arrays.asList(CASES);
+        boolean useDependencyScope = false;
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            if (kv.length != 2) {
+                System.err.println("Usage: ScoperScalability [param=value ...]");
+                System.exit(1);
+            }
+            if (kv[0].equals("timeBound")) {
+                timeBound = Double.parseDouble(kv[1]);
+            } else if (kv[0].equals("allocationBound")) {
+                allocationBound = Double.parseDouble(kv[1]);
+            } else if (kv[0].equals("steps")) {
+                steps = Integer.parseInt(kv[1]);
+            } else if (kv[0].equals("cases")) {
+                cases = Arrays.asList(kv[1].split(","));
+            } else if (kv[0].equals("useDependencyScope")) {
+                useDependencyScope = Boolean.valueOf(kv[1]);
+            } else {
+                System.err.println("Unknown parameter: " + arg);
+                System.exit(1);
+            }
+        }
+        if (cases.contains("largeDocument") && !Gate.isInitialised()) Gate.init();
+        ScoperScalability suite = new ScoperScalability(useDependencyScope
+                ? ScopeResolver.DEPENDENCY : ScopeResolver.PHRASE);
+        // Heuristic warnings are expected on generated sentences
+        PrintStream err = System.err;
+        boolean failed = false;
+        for (String name : cases) {
+            List<Measure> measures;
+            System.setErr(new PrintStream(new OutputStream() {
+                public void write(int b) {
+                }
+            }));
+            try {
+                measures = suite.run(name, steps);
+            } finally {
+                System.setErr(err);
+            }
+            for (Measure m : measures) {
+                System.out.println(String.format(Locale.ROOT, "%-14s %8d %10.2f ms %12d bytes",
+                        name, m.size, m.nanos / 1e6, m.bytes));
+            }
+            double time = growth(measures, false);
+            double allocation = growth(measures, true);
+            boolean ok = !(time > timeBound) && !(allocation > allocationBound);
+            System.out.println(String.format(Locale.ROOT,
+                    "%-14s growth: time %.2f (bound %.2f), allocation %.2f (bound %.2f) %s",
+                    name, time, timeBound, allocation, allocationBound, ok ? "OK" : "FAILED"));
+            failed |= !ok;
+        }
+        System.exit(failed ? 1 : 0);
+    }
+}
@@ -0,0 +1,221 @@
+package clac.creole.scope;
+
+import java.io.*;
+import java.util.*;
+
+import gate.Document;
+import gate.Factory;
+import gate.Gate;
+
+/**
+ * Checks that scoping a sentence cache in shards (see ScoperShards) gives
+ * the same records as a single CachedScoper run.
+ *
+ * Random documents (see ScoperConcurrency) are scoped once by Scoper to
+ * write a sentence cache, which is then scoped by a single CachedScoper
+ * run. The records of the shards must be the same, in the same order:
+ * <ul>
+ *   <li>when a claim is taken over while its worker is still running: the
+ *       first worker must drop its output, and the shard must be done by
+ *       the new attempt;</li>
+ *   <li>when the cache is scoped by ScoperShards local, with several
+ *       worker processes.</li>
+ * </ul>
+ *
+ * Usage:
+ * <pre>
+ *   java clac.creole.scope.ScoperSharding [param=value ...]
+ * </pre>
+ * with the parameters workers (default 2), shards (default 8), documents
+ * (default 64), sentences (per document, default 20), seed (default 1) and
+ * the parameters of CachedScoper. The exit status is 1 if a check fails.
+ */
+public class ScoperSharding {
+
+    private final File cacheFile;
+    private final Map<String, Boolean> params;
+    private final byte[] expected;
+
+    public ScoperSharding(File cacheFile, Map<String, Boolean> params) throws IOException {
+        this.cacheFile = cacheFile;
+        this.params = params;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Writer writer = new OutputStreamWriter(out, "UTF-8");
+        ScoperCache.Reader cache = new ScoperCache.Reader(cacheFile);
+        try {
+            CachedScoper.create(params).run(cache, writer);
+        } finally {
+            cache.close();
+        }
+        writer.close();
+        this.expected = out.toByteArray();
+    }
+
+    /** Take over the claim of a shard while its first worker is scoping
+     *  it, then scope the other shards and merge them
+     * @return the failures (empty if the check passed) */
+    public List<String> checkTakeover(File dir, int shardCount) throws IOException {
+        List<String> failures = new ArrayList<String>();
+        ScoperShards shards = new ScoperShards(dir);
+        ScoperCache.Reader cache = new ScoperCache.Reader(cacheFile);
+        try {
+            shards.split(cache, shardCount);
+            CachedScoper scoper = CachedScoper.create(params);
+            File slow = shards.claim(0, "slow", 0);
+            // The first worker looks dead, and its claim is taken over
+            slow.setLastModified(System.currentTimeMillis() - 60000L);
+            File fast = shards.claim(0, "fast", 1000L);
+            if (fast == null) {
+                failures.add("a stale claim could not be taken over");
+                return failures;
+            }
+            if (shards.scopeShard(cache, scoper, "slow", 0, slow)) {
+                failures.add("a worker whose claim was taken over wrote its output");
+            }
+            if (shards.isDone(0)) {
+                failures.add("a shard is done before the new attempt finished");
+            }
+            if (!shards.scopeShard(cache, scoper, "fast", 0, fast)) {
+                failures.add("the latest attempt at a shard dropped its output");
+            }
+            shards.work(cache, scoper, "fast", 0, 1, 0);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            String metrics = shards.merge(out);
+            if (!Arrays.equals(expected, out.toByteArray())) {
+                failures.add("the merged output after a takeover differs from a single run");
+            }
+            if (metrics.contains("\"slow\"")) {
+                failures.add("the metrics count a shard of a worker which was taken over");
+            }
+        } finally {
+            cache.close();
+            shards.delete();
+        }
+        return failures;
+    }
+
+    /** Scope the cache with ScoperShards local, in worker processes
+     * @return the failures (empty if the check passed) */
+    public List<String> checkLocal(File outputFile, int workers, int shardCount)
+            throws IOException, InterruptedException {
+        List<String> failures = new ArrayList<String>();
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java")
+                .getPath();
+        List<String> command = new ArrayList<String>(Arrays.asList(java, "-cp",
+                System.getProperty("java.class.path"), ScoperShards.class.getName(),
+                "local", cacheFile.getPath(), outputFile.getPath(), "workers=" + workers,
+                "shards=" + shardCount));
+        for (Map.Entry<String, Boolean> e : params.entrySet()) {
+            command.add(e.getKey() + "=" + e.getValue());
+        }
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectErrorStream(true);
+        Process process = builder.start();
+        // Keep the output of the run for failures
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        InputStream in = process.getInputStream();
+        byte[] buffer = new byte[4096];
+        int r;
+        while ((r = in.read(buffer)) > 0) log.write(buffer, 0, r);
+        if (process.waitFor() != 0) {
+            failures.add("ScoperShards local failed:\n" + log.toString("UTF-8"));
+        } else if (!Arrays.equals(expected, readBytes(outputFile))) {
+            failures.add("the merged output of " + workers
+                         + " workers differs from a single run");
+        }
+        outputFile.delete();
+        return failures;
+    }
+
+    private static byte[] readBytes(File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[1 << 16];
+            int r;
+            while ((r = in.read(buffer)) > 0) out.write(buffer, 0, r);
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    /** Write the sentence cache of generated documents */
+    static void writeCache(File cacheFile, int count, int sentences, long seed)
+            throws Exception {
+        Scoper scoper = new Scoper();
+        scoper.setSentenceAnnName("Sentence");
+        scoper.setTriggerAnnName(Scoper.TRIGGER_ANNOTATION_TYPE);
+        scoper.setSentenceCacheFile(cacheFile.toURI().toURL());
+        List<Document> documents = ScoperConcurrency.documents(count, sentences, seed);
+        for (Document document : documents) {
+            scoper.execute(document);
+            Factory.deleteResource(document);
+        }
+        // Closes the cache
+        scoper.cleanup();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int workers = 2;
+        int shards = 8;
+        int count = 64;
+        int sentences = 20;
+        long seed = 1L;
+        Map<String, Boolean> params = CachedScoper.defaultParameters();
+        params.put("enableNomScope", true);
+        params.put("enableGrammarScope", true);
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            if (kv.length != 2) {
+                System.err.println("Usage: ScoperSharding [param=value ...]");
+                System.exit(1);
+            }
+            if (kv[0].equals("workers")) {
+                workers = Integer.parseInt(kv[1]);
+            } else if (kv[0].equals("shards")) {
+                shards = Integer.parseInt(kv[1]);
+            } else if (kv[0].equals("documents")) {
+                count = Integer.parseInt(kv[1]);
+            } else if (kv[0].equals("sentences")) {
+                sentences = Integer.parseInt(kv[1]);
+            } else if (kv[0].equals("seed")) {
+                seed = Long.parseLong(kv[1]);
+            } else if (!CachedScoper.parseParameter(params, arg)) {
+                System.err.println("Unknown parameter: " + arg);
+                System.exit(1);
+            }
+        }
+        if (!Gate.isInitialised()) Gate.init();
+
+        File dir = File.createTempFile("ScoperSharding", "");
+        dir.delete();
+        dir.mkdirs();
+        File cacheFile = new File(dir, "sentences.cache");
+        List<String> failures = new ArrayList<String>();
+        // Heuristic warnings are expected on generated documents
+        PrintStream err = System.err;
+        System.setErr(new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+        }));
+        try {
+            writeCache(cacheFile, count, sentences, seed);
+            ScoperSharding suite = new ScoperSharding(cacheFile, params);
+            failures.addAll(suite.checkTakeover(new File(dir, "takeover"), shards));
+            failures.addAll(suite.checkLocal(new File(dir, "scopes.tsv"), workers, shards));
+        } finally {
+            System.setErr(err);
+            cacheFile.delete();
+            dir.delete();
+        }
+        for (String failure : failures) {
+            System.out.println(failure);
+        }
+        System.out.println(String.format(Locale.ROOT,
+                "%d documents in %d shards, %d workers: %d failures %s",
+                count, shards, workers, failures.size(),
+                failures.isEmpty() ? "OK" : "FAILED"));
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+}